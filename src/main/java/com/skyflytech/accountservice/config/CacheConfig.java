@@ -1,5 +1,6 @@
 package com.skyflytech.accountservice.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.context.annotation.Bean;
@@ -9,12 +10,14 @@ import org.springframework.data.redis.cache.RedisCacheWriter;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
 import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 @Configuration
 @EnableCaching
@@ -35,7 +38,19 @@ public class CacheConfig {
     }
 
     @Bean
-    public CacheManager cacheManager(RedisConnectionFactory redisConnectionFactory, RedisTemplate<Object, Object> redisTemplate) {
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory redisConnectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        return container;
+    }
+
+    @Bean
+    public CacheManager cacheManager(RedisConnectionFactory redisConnectionFactory, RedisTemplate<Object, Object> redisTemplate,
+                                     CacheEvictionBus cacheEvictionBus,
+                                     @Value("${accounting.cache.local.enabled:true}") boolean localEnabled,
+                                     @Value("${accounting.cache.local.caches:accounts}") Set<String> localCaches,
+                                     @Value("${accounting.cache.local.maximum-size:10000}") long localMaximumSize,
+                                     @Value("${accounting.cache.local.expire-after-write-seconds:60}") long localExpireSeconds) {
         RedisCacheConfiguration defaultCacheConfig = RedisCacheConfiguration.defaultCacheConfig()
             .entryTtl(Duration.ofMinutes(10))
             .disableCachingNullValues();
@@ -51,12 +66,20 @@ public class CacheConfig {
         cacheSizes.put("accountSet", 500);
         cacheSizes.put("accountingPeriods", 2000);
         cacheSizes.put("accounts", 2000);
-        return new SizeRestrictedRedisCacheManager(
+        SizeRestrictedRedisCacheManager redisCacheManager = new SizeRestrictedRedisCacheManager(
             RedisCacheWriter.nonLockingRedisCacheWriter(redisConnectionFactory),
             defaultCacheConfig,
             cacheConfigurations,
             redisTemplate,
             cacheSizes
         );
+        if (!localEnabled) {
+            return redisCacheManager;
+        }
+        // 不是bean，需要自己初始化才会按上面的配置创建各个缓存
+        redisCacheManager.afterPropertiesSet();
+        // 进程内缓存在前，Redis在后，失效通过Redis发布订阅通知其他实例
+        return new TwoLevelCacheManager(redisCacheManager, localCaches, localMaximumSize,
+            Duration.ofSeconds(localExpireSeconds), cacheEvictionBus);
     }
 }
\ No newline at end of file
@@ -0,0 +1,81 @@
+package com.skyflytech.accountservice.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 通过Redis发布订阅把本地缓存的失效通知到其他实例。
+ * 消息格式：实例ID|缓存名|K:键，或 实例ID|缓存名|* 表示清空整个缓存；本实例发出的消息被忽略。
+ * Redis不可用时只记录日志，其他实例的本地缓存到过期时间后自然失效。
+ */
+@Component
+public class CacheEvictionBus implements MessageListener {
+    private static final Logger logger = LoggerFactory.getLogger(CacheEvictionBus.class);
+
+    private static final String CHANNEL = "account-service:cache-evictions";
+    private static final String ALL = "*";
+    private static final String KEY_PREFIX = "K:";
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final StringRedisTemplate redisTemplate;
+    // cacheName -> listeners, called with the evicted key or null when the whole cache is cleared
+    private final Map<String, List<Consumer<String>>> listeners = new ConcurrentHashMap<>();
+
+    @Autowired
+    public CacheEvictionBus(RedisConnectionFactory redisConnectionFactory,
+                            RedisMessageListenerContainer listenerContainer) {
+        this.redisTemplate = new StringRedisTemplate(redisConnectionFactory);
+        listenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+    }
+
+    /**
+     * 通知其他实例丢弃本地缓存中的一个键，key为null表示整个缓存
+     */
+    public void publish(String cacheName, Object key) {
+        String message = nodeId + "|" + cacheName + "|" + (key == null ? ALL : KEY_PREFIX + key);
+        try {
+            redisTemplate.convertAndSend(CHANNEL, message);
+        } catch (Exception e) {
+            logger.warn("Failed to publish eviction of cache {} key {}: {}", cacheName, key, e.getMessage());
+        }
+    }
+
+    /**
+     * 收到其他实例的失效通知时调用listener，参数为键的字符串形式，整个缓存失效时为null
+     */
+    public void subscribe(String cacheName, Consumer<String> listener) {
+        listeners.computeIfAbsent(cacheName, name -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split("\\|", 3);
+        if (parts.length != 3 || parts[0].equals(nodeId)) {
+            return;
+        }
+        String key = parts[2].startsWith(KEY_PREFIX) ? parts[2].substring(KEY_PREFIX.length()) : null;
+        for (Consumer<String> listener : listeners.getOrDefault(parts[1], List.of())) {
+            try {
+                listener.accept(key);
+            } catch (Exception e) {
+                logger.warn("Failed to evict cache {} key {}: {}", parts[1], key, e.getMessage());
+            }
+        }
+    }
+}
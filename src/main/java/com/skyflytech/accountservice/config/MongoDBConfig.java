@@ -1,9 +1,17 @@
 package com.skyflytech.accountservice.config;
 
+import org.bson.types.Decimal128;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.data.convert.ReadingConverter;
+import org.springframework.data.convert.WritingConverter;
 import org.springframework.data.mongodb.MongoDatabaseFactory;
 import org.springframework.data.mongodb.MongoTransactionManager;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+
+import java.math.BigDecimal;
+import java.util.List;
 
 /**
  * @Author pzr
@@ -20,4 +28,27 @@ public class MongoDBConfig {
         return new MongoTransactionManager(dbFactory);
     }
 
+    // 金额以Decimal128存储（默认是字符串），这样才能在服务端做$inc和$sum
+    @Bean
+    MongoCustomConversions mongoCustomConversions() {
+        return new MongoCustomConversions(List.of(new BigDecimalToDecimal128Converter(),
+                new Decimal128ToBigDecimalConverter()));
+    }
+
+    @WritingConverter
+    static class BigDecimalToDecimal128Converter implements Converter<BigDecimal, Decimal128> {
+        @Override
+        public Decimal128 convert(BigDecimal source) {
+            return new Decimal128(source);
+        }
+    }
+
+    @ReadingConverter
+    static class Decimal128ToBigDecimalConverter implements Converter<Decimal128, BigDecimal> {
+        @Override
+        public BigDecimal convert(Decimal128 source) {
+            return source.bigDecimalValue();
+        }
+    }
+
 }
@@ -0,0 +1,241 @@
+package com.skyflytech.accountservice.config;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import com.skyflytech.accountservice.utils.BigramTokenizer;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 启动时对旧数据做一次性的格式迁移，已迁移的数据不会被再次修改
+ */
+@Component
+public class MongoDataMigration {
+    private static final Logger logger = LoggerFactory.getLogger(MongoDataMigration.class);
+
+    // periods that still hold a string (or missing) amount in any holder
+    private static final String LEGACY_PERIOD_FILTER = """
+            { $expr: { $anyElementTrue: [ { $map: {
+                input: { $objectToArray: { $ifNull: ["$amountHolders", {}] } }, as: "h",
+                in: { $or: [
+                    { $ne: [ { $type: "$$h.v.totalDebit" }, "decimal" ] },
+                    { $ne: [ { $type: "$$h.v.totalCredit" }, "decimal" ] },
+                    { $ne: [ { $type: "$$h.v.balance" }, "decimal" ] } ] } } } ] } }
+            """;
+
+    private static final String PERIOD_TO_DECIMAL = """
+            { $set: { amountHolders: { $arrayToObject: { $map: {
+                input: { $objectToArray: "$amountHolders" }, as: "h",
+                in: { k: "$$h.k", v: {
+                    totalDebit: { $toDecimal: { $ifNull: ["$$h.v.totalDebit", 0] } },
+                    totalCredit: { $toDecimal: { $ifNull: ["$$h.v.totalCredit", 0] } },
+                    balance: { $toDecimal: { $ifNull: ["$$h.v.balance", 0] } } } } } } } } }
+            """;
+
+    private static final String LEGACY_TRANSACTION_FILTER = """
+            { $or: [ { debit: { $not: { $type: "decimal" } } }, { credit: { $not: { $type: "decimal" } } } ] }
+            """;
+
+    private static final String TRANSACTION_TO_DECIMAL = """
+            { $set: { debit: { $toDecimal: { $ifNull: ["$debit", 0] } },
+                      credit: { $toDecimal: { $ifNull: ["$credit", 0] } } } }
+            """;
+
+    // transaction count and first/last posting date of every account
+    private static final String TRANSACTION_USAGES = """
+            [ { $group: { _id: "$accountId", accountSetId: { $first: "$accountSetId" },
+                          transactionCount: { $sum: 1 },
+                          firstPostingDate: { $min: "$modifiedDate" }, lastPostingDate: { $max: "$modifiedDate" } } },
+              { $merge: { into: "account_usages", whenMatched: "merge", whenNotMatched: "insert" } } ]
+            """;
+
+    // child count of every parent account
+    private static final String CHILD_USAGES = """
+            [ { $match: { parentId: { $ne: null } } },
+              { $group: { _id: "$parentId", accountSetId: { $first: "$accountSetId" }, childCount: { $sum: 1 } } },
+              { $merge: { into: "account_usages", whenMatched: "merge", whenNotMatched: "insert" } } ]
+            """;
+
+    private static final int TOKEN_BATCH_SIZE = 1000;
+    // one document per finished one-off migration
+    private static final String MIGRATIONS = "data_migrations";
+    private static final String ACCOUNT_USAGES_MIGRATION = "account-usages";
+    private static final String UNIQUE_CHECKPOINTS_MIGRATION = "unique-balance-checkpoints";
+    private static final String DECIMAL128_AMOUNTS_MIGRATION = "decimal128-amounts";
+    private static final String DESCRIPTION_TOKENS_MIGRATION = "description-tokens";
+    private static final String PERIOD_VERSIONS_MIGRATION = "period-versions";
+    private static final String TRANSACTION_ACCOUNT_INDEX_MIGRATION = "transaction-account-date-index";
+    private static final String JOURNAL_ENTRY_DATE_INDEX_MIGRATION = "journal-entry-date-index";
+
+    private final MongoTemplate mongoTemplate;
+
+    public MongoDataMigration(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @PostConstruct
+    public void migrate() {
+        migrateAmountsToDecimal128();
+        migratePeriodVersions();
+        buildAccountUsages();
+        buildDescriptionTokens();
+        makeCheckpointsUnique();
+        dropAccountDateIndex();
+        dropJournalEntryDateIndex();
+    }
+
+    // (accountId, modifiedDate)上的索引是(accountId, modifiedDate, _id)索引的前缀，按账户和日期的查询都能用后者，
+    // 删掉前者少维护一个索引
+    private void dropAccountDateIndex() {
+        if (isDone(TRANSACTION_ACCOUNT_INDEX_MIGRATION)) {
+            return;
+        }
+        dropIndexIfExists("transactions", "account_date_idx");
+        markDone(TRANSACTION_ACCOUNT_INDEX_MIGRATION);
+    }
+
+    // 凭证导出按(modifiedDate, _id)排序，索引换成带_id的(accountSetId, modifiedDate, _id)，原索引是它的前缀
+    private void dropJournalEntryDateIndex() {
+        if (isDone(JOURNAL_ENTRY_DATE_INDEX_MIGRATION)) {
+            return;
+        }
+        dropIndexIfExists("journalEntries", "accountSet_date_idx");
+        markDone(JOURNAL_ENTRY_DATE_INDEX_MIGRATION);
+    }
+
+    private void dropIndexIfExists(String collectionName, String indexName) {
+        MongoCollection<Document> collection = mongoTemplate.getCollection(collectionName);
+        for (Document index : collection.listIndexes()) {
+            if (indexName.equals(index.getString("name"))) {
+                collection.dropIndex(indexName);
+                logger.info("Dropped the index {} of {}", indexName, collectionName);
+                break;
+            }
+        }
+    }
+
+    // 检查点曾在读取时写入，可能与删除检查点的操作交错而过时或重复。全部丢弃（之后结账时重新写入），
+    // 再把(accountSetId, endDate)上的索引换成唯一索引
+    private void makeCheckpointsUnique() {
+        if (isDone(UNIQUE_CHECKPOINTS_MIGRATION)) {
+            return;
+        }
+        MongoCollection<Document> checkpoints = mongoTemplate.getCollection("balance_checkpoints");
+        for (Document index : checkpoints.listIndexes()) {
+            if ("accountSetId_endDate".equals(index.getString("name"))) {
+                checkpoints.dropIndex("accountSetId_endDate");
+                break;
+            }
+        }
+        long removed = checkpoints.deleteMany(new Document()).getDeletedCount();
+        checkpoints.createIndex(new Document("accountSetId", 1).append("endDate", -1),
+                new IndexOptions().name("accountSetId_endDate_unique").unique(true));
+        markDone(UNIQUE_CHECKPOINTS_MIGRATION);
+        logger.info("Removed {} balance checkpoints and made them unique per account set and end date", removed);
+    }
+
+    // 金额改为Decimal128存储之前写入的是字符串，$inc和$sum不能作用于字符串。
+    // 两个过滤条件都用不上索引，只在第一次启动时扫描一次
+    private void migrateAmountsToDecimal128() {
+        if (isDone(DECIMAL128_AMOUNTS_MIGRATION)) {
+            return;
+        }
+        UpdateResult periods = mongoTemplate.getCollection("accounting_periods").updateMany(
+                Document.parse(LEGACY_PERIOD_FILTER), List.of(Document.parse(PERIOD_TO_DECIMAL)));
+        UpdateResult transactions = mongoTemplate.getCollection("transactions").updateMany(
+                Document.parse(LEGACY_TRANSACTION_FILTER), List.of(Document.parse(TRANSACTION_TO_DECIMAL)));
+        markDone(DECIMAL128_AMOUNTS_MIGRATION);
+        logger.info("Converted amounts to Decimal128: {} accounting periods, {} transactions",
+                periods.getModifiedCount(), transactions.getModifiedCount());
+    }
+
+    // 账户使用记录由记账和账户的写入维护，第一次启动时从已有的交易和账户建立。
+    // 集合在启动时就因索引而被创建，是否已建立由data_migrations中的记录判断
+    private void buildAccountUsages() {
+        if (isDone(ACCOUNT_USAGES_MIGRATION)) {
+            return;
+        }
+        mongoTemplate.getCollection("transactions").aggregate(parsePipeline(TRANSACTION_USAGES))
+                .allowDiskUse(true).toCollection();
+        mongoTemplate.getCollection("accounts").aggregate(parsePipeline(CHILD_USAGES)).toCollection();
+        markDone(ACCOUNT_USAGES_MIGRATION);
+        logger.info("Built account usages: {} accounts", mongoTemplate.getCollection("account_usages").countDocuments());
+    }
+
+    private boolean isDone(String migration) {
+        return mongoTemplate.getCollection(MIGRATIONS).countDocuments(new Document("_id", migration)) > 0;
+    }
+
+    private void markDone(String migration) {
+        mongoTemplate.getCollection(MIGRATIONS).replaceOne(new Document("_id", migration),
+                new Document("_id", migration).append("doneAt", new Date()), new ReplaceOptions().upsert(true));
+    }
+
+    // 交易摘要的搜索用文本索引，索引字段是切好的词，不使用按语言的词干和停用词处理。
+    // 之后写入的交易在setDescription时就切好词，回填只做一次；建索引是幂等的，每次启动都确认一下
+    private void buildDescriptionTokens() {
+        MongoCollection<Document> transactions = mongoTemplate.getCollection("transactions");
+        if (!isDone(DESCRIPTION_TOKENS_MIGRATION)) {
+            backfillDescriptionTokens(transactions);
+            markDone(DESCRIPTION_TOKENS_MIGRATION);
+        }
+        transactions.createIndex(new Document("accountSetId", 1).append("descriptionTokens", "text"),
+                new IndexOptions().name("accountSet_description_text_idx").defaultLanguage("none"));
+    }
+
+    private void backfillDescriptionTokens(MongoCollection<Document> transactions) {
+        long tokenized = 0;
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        try (MongoCursor<Document> cursor = transactions.find(Filters.and(
+                        Filters.type("description", "string"), Filters.exists("descriptionTokens", false)))
+                .projection(Projections.include("description")).batchSize(TOKEN_BATCH_SIZE).iterator()) {
+            while (cursor.hasNext()) {
+                Document transaction = cursor.next();
+                updates.add(new UpdateOneModel<>(Filters.eq("_id", transaction.get("_id")),
+                        Updates.set("descriptionTokens", BigramTokenizer.indexTokens(transaction.getString("description")))));
+                if (updates.size() >= TOKEN_BATCH_SIZE) {
+                    tokenized += transactions.bulkWrite(updates).getModifiedCount();
+                    updates.clear();
+                }
+            }
+        }
+        if (!updates.isEmpty()) {
+            tokenized += transactions.bulkWrite(updates).getModifiedCount();
+        }
+        logger.info("Tokenized descriptions of {} transactions", tokenized);
+    }
+
+    private static List<Document> parsePipeline(String json) {
+        return Document.parse("{ pipeline: " + json + " }").getList("pipeline", Document.class);
+    }
+
+    // 没有版本号的会计期间在save时会被当作新文档插入，先补上版本号。之后新建的期间都带版本号，只需扫描一次
+    private void migratePeriodVersions() {
+        if (isDone(PERIOD_VERSIONS_MIGRATION)) {
+            return;
+        }
+        UpdateResult periods = mongoTemplate.getCollection("accounting_periods").updateMany(
+                new Document("version", new Document("$exists", false)),
+                new Document("$set", new Document("version", 0L)));
+        if (periods.getModifiedCount() > 0) {
+            logger.info("Added version to {} accounting periods", periods.getModifiedCount());
+        }
+        markDone(PERIOD_VERSIONS_MIGRATION);
+    }
+}
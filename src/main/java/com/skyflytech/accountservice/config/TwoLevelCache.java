@@ -0,0 +1,118 @@
+package com.skyflytech.accountservice.config;
+
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.SimpleValueWrapper;
+
+import java.util.concurrent.Callable;
+
+/**
+ * 进程内缓存（L1）在前、Redis缓存（L2）在后的两级缓存。
+ * 读取先查L1，未命中再查L2并放入L1；写入和失效同时作用于两级，并通知其他实例丢弃各自的L1。
+ * L1中的对象被所有调用方共享，调用方不应修改取得的值。缓存键应为字符串。
+ */
+public class TwoLevelCache implements Cache {
+
+    private final String name;
+    private final Cache local;
+    private final Cache remote;
+    private final CacheEvictionBus evictionBus;
+
+    public TwoLevelCache(String name, Cache local, Cache remote, CacheEvictionBus evictionBus) {
+        this.name = name;
+        this.local = local;
+        this.remote = remote;
+        this.evictionBus = evictionBus;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return this;
+    }
+
+    @Override
+    public ValueWrapper get(Object key) {
+        ValueWrapper value = local.get(key);
+        if (value != null) {
+            return value;
+        }
+        value = remote.get(key);
+        if (value != null && value.get() != null) {
+            local.put(key, value.get());
+        }
+        return value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Class<T> type) {
+        ValueWrapper value = get(key);
+        if (value == null || value.get() == null) {
+            return null;
+        }
+        if (type != null && !type.isInstance(value.get())) {
+            throw new IllegalStateException("Cached value is not of required type [" + type.getName() + "]: "
+                    + value.get());
+        }
+        return (T) value.get();
+    }
+
+    @Override
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        return local.get(key, () -> remote.get(key, valueLoader));
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        remote.put(key, value);
+        local.put(key, value);
+        evictionBus.publish(name, key);
+    }
+
+    @Override
+    public ValueWrapper putIfAbsent(Object key, Object value) {
+        ValueWrapper existing = remote.putIfAbsent(key, value);
+        Object current = existing == null ? value : existing.get();
+        if (current != null) {
+            local.put(key, current);
+        }
+        return existing == null ? null : new SimpleValueWrapper(existing.get());
+    }
+
+    @Override
+    public void evict(Object key) {
+        remote.evict(key);
+        local.evict(key);
+        evictionBus.publish(name, key);
+    }
+
+    @Override
+    public boolean evictIfPresent(Object key) {
+        boolean present = remote.evictIfPresent(key);
+        local.evict(key);
+        evictionBus.publish(name, key);
+        return present;
+    }
+
+    @Override
+    public void clear() {
+        remote.clear();
+        local.clear();
+        evictionBus.publish(name, null);
+    }
+
+    /**
+     * 只丢弃本实例L1中的键，key为null时清空L1。收到其他实例的失效通知时调用
+     */
+    public void evictLocal(String key) {
+        if (key == null) {
+            local.clear();
+        } else {
+            local.evict(key);
+        }
+    }
+}
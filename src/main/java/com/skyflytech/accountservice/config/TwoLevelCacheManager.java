@@ -0,0 +1,62 @@
+package com.skyflytech.accountservice.config;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.cache.transaction.TransactionAwareCacheDecorator;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 为指定的缓存在Redis缓存前加一层进程内缓存，其他缓存直接使用Redis。
+ * 两级缓存的写入和失效在事务提交后进行，避免其他请求在提交前把旧值读回缓存。
+ */
+public class TwoLevelCacheManager implements CacheManager {
+
+    private final CacheManager remoteCacheManager;
+    private final Set<String> localCacheNames;
+    private final long maximumSize;
+    private final Duration expireAfterWrite;
+    private final CacheEvictionBus evictionBus;
+    private final Map<String, Cache> caches = new ConcurrentHashMap<>();
+
+    public TwoLevelCacheManager(CacheManager remoteCacheManager, Set<String> localCacheNames, long maximumSize,
+                                Duration expireAfterWrite, CacheEvictionBus evictionBus) {
+        this.remoteCacheManager = remoteCacheManager;
+        this.localCacheNames = localCacheNames;
+        this.maximumSize = maximumSize;
+        this.expireAfterWrite = expireAfterWrite;
+        this.evictionBus = evictionBus;
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        Cache cache = caches.get(name);
+        if (cache != null) {
+            return cache;
+        }
+        Cache remote = remoteCacheManager.getCache(name);
+        if (remote == null || !localCacheNames.contains(name)) {
+            return remote;
+        }
+        return caches.computeIfAbsent(name, n -> {
+            Cache local = new CaffeineCache(n, Caffeine.newBuilder()
+                    .maximumSize(maximumSize)
+                    .expireAfterWrite(expireAfterWrite)
+                    .build(), false);
+            TwoLevelCache twoLevelCache = new TwoLevelCache(n, local, remote, evictionBus);
+            evictionBus.subscribe(n, twoLevelCache::evictLocal);
+            return new TransactionAwareCacheDecorator(twoLevelCache);
+        });
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return remoteCacheManager.getCacheNames();
+    }
+}
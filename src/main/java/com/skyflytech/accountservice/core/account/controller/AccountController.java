@@ -2,6 +2,9 @@ package com.skyflytech.accountservice.core.account.controller;
 
 import com.mongodb.client.result.DeleteResult;
 import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountTreeNode;
+import com.skyflytech.accountservice.core.account.model.AccountUsage;
+import com.skyflytech.accountservice.core.account.service.AccountBalanceTreeService;
 import com.skyflytech.accountservice.core.account.service.AccountService;
 import com.skyflytech.accountservice.core.account.service.ExcelImportService;
 import com.skyflytech.accountservice.security.model.CurrentAccountSetIdHolder;
@@ -19,6 +22,7 @@ import org.springframework.web.multipart.MultipartFile;
 import java.io.IOException;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Tag(name = "account")
@@ -30,14 +34,17 @@ public class AccountController {
     private final MongoOperations mongoOperations;
     private final CurrentAccountSetIdHolder currentAccountSetIdHolder;
     private final ExcelImportService excelImportService;
+    private final AccountBalanceTreeService accountBalanceTreeService;
 
 
     
     @Value("${spring.profiles.active}")
     private String activeProfile;
 
-    public AccountController(MongoOperations mongoOperations,AccountService accountService, CurrentAccountSetIdHolder currentAccountSetIdHolder, ExcelImportService excelImportService) {
+    public AccountController(MongoOperations mongoOperations,AccountService accountService, CurrentAccountSetIdHolder currentAccountSetIdHolder, ExcelImportService excelImportService,
+                             AccountBalanceTreeService accountBalanceTreeService) {
         this.excelImportService = excelImportService;
+        this.accountBalanceTreeService = accountBalanceTreeService;
         this.mongoOperations = mongoOperations;
         this.accountService = accountService;
         this.currentAccountSetIdHolder = currentAccountSetIdHolder;
@@ -73,6 +80,15 @@ public class AccountController {
         return ResponseEntity.ok(limitedAccounts);
     }
 
+    @GetMapping("/tree")
+    public ResponseEntity<List<AccountTreeNode>> getAccountTree(
+            @RequestParam(value = "periodId", required = false) String periodId,
+            @RequestParam(value = "depth", defaultValue = "0") int depth,
+            @RequestParam(value = "collapsed", required = false) Set<String> collapsed) {
+        return ResponseEntity.ok(accountBalanceTreeService.getTree(currentAccountSetIdHolder.getCurrentAccountSetId(),
+                periodId, depth, collapsed == null ? Set.of() : collapsed));
+    }
+
     @GetMapping("/{id}")
     public ResponseEntity<?> getAccountById(@PathVariable String id) {
         Account account = accountService.getAccountById(id);
@@ -94,6 +110,23 @@ public class AccountController {
         return ResponseEntity.status(HttpStatus.CREATED).body(new APIResponse<>("save successfully!",create));
     }
 
+    @PostMapping("/bulk")
+    public ResponseEntity<APIResponse<List<Account>>> saveAccounts(@RequestBody List<Account> accounts) {
+        List<Account> saved = accountService.saveAccounts(accounts);
+        return ResponseEntity.status(HttpStatus.CREATED).body(new APIResponse<>("save successfully!", saved));
+    }
+
+    @PostMapping("/{id}/reparent/{newParentId}")
+    public ResponseEntity<List<Account>> reparentAccount(@PathVariable String id, @PathVariable String newParentId,
+                                                         @RequestParam(value = "newCode", required = false) String newCode) {
+        return ResponseEntity.ok(accountService.reparentAccount(id, newParentId, newCode));
+    }
+
+    @PostMapping("/{sourceId}/merge-into/{targetId}")
+    public ResponseEntity<Account> mergeAccount(@PathVariable String sourceId, @PathVariable String targetId) {
+        return ResponseEntity.ok(accountService.mergeAccount(sourceId, targetId));
+    }
+
     @PutMapping("/update")
     public ResponseEntity<?> updateAccount( @RequestBody Account account) {
         try {
@@ -112,9 +145,15 @@ public class AccountController {
     
     }
 
+    @GetMapping("/{id}/usage")
+    public ResponseEntity<AccountUsage> getAccountUsage(@PathVariable String id) {
+        return ResponseEntity.ok(accountService.getAccountUsage(id));
+    }
+
     @GetMapping("/search")
-    public ResponseEntity<List<Account>> searchAccounts(@RequestParam("query") String query) {
-        List<Account> accounts = accountService.searchAccounts(query,currentAccountSetIdHolder.getCurrentAccountSetId());
+    public ResponseEntity<List<Account>> searchAccounts(@RequestParam("query") String query,
+                                                        @RequestParam(value = "limit", defaultValue = "0") int limit) {
+        List<Account> accounts = accountService.searchAccounts(query,currentAccountSetIdHolder.getCurrentAccountSetId(), limit);
         return ResponseEntity.ok(accounts);
     }
 
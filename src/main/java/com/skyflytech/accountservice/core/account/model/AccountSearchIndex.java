@@ -0,0 +1,201 @@
+package com.skyflytech.accountservice.core.account.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 一个账套的科目搜索索引：编码前缀树，加上名称和编码的单字、双字索引（适合中文名称）。
+ * 科目增删改时逐个更新。查询时编码以关键词开头的科目排在最前，其余按名称或编码包含关键词匹配，各自按编码排序。
+ */
+public class AccountSearchIndex {
+
+    private static final Comparator<Account> BY_CODE = Comparator.comparing(Account::getCode,
+            Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private static final class CodeNode {
+        private final TreeMap<Character, CodeNode> next = new TreeMap<>();
+        private Account account;
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Account> byId = new HashMap<>();
+    private final CodeNode codeRoot = new CodeNode();
+    // one and two character grams of the lower-cased name and code -> account ids
+    private final Map<String, Set<String>> grams = new HashMap<>();
+
+    public AccountSearchIndex(Collection<Account> accounts) {
+        accounts.forEach(this::insert);
+    }
+
+    /**
+     * 加入或更新一个科目
+     */
+    public void put(Account account) {
+        lock.writeLock().lock();
+        try {
+            delete(account.getId());
+            insert(account);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 移除一个科目
+     */
+    public void remove(String accountId) {
+        lock.writeLock().lock();
+        try {
+            delete(accountId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 搜索编码或名称包含关键词的科目，编码前缀匹配的在前
+     * @param limit 最多返回的数量，小于等于0表示不限
+     */
+    public List<Account> search(String keyword, int limit) {
+        int max = limit <= 0 ? Integer.MAX_VALUE : limit;
+        String key = keyword == null ? "" : keyword.trim().toLowerCase(Locale.ROOT);
+        lock.readLock().lock();
+        try {
+            Map<String, Account> result = new LinkedHashMap<>();
+            CodeNode node = codeNode(key);
+            if (node != null) {
+                collect(node, result, max);
+            }
+            if (result.size() < max && !key.isEmpty()) {
+                List<Account> matches = new ArrayList<>();
+                for (String id : candidates(key)) {
+                    Account account = byId.get(id);
+                    if (!result.containsKey(id) && (contains(account.getName(), key) || contains(account.getCode(), key))) {
+                        matches.add(account);
+                    }
+                }
+                matches.sort(BY_CODE);
+                for (Account account : matches) {
+                    if (result.size() >= max) {
+                        break;
+                    }
+                    result.put(account.getId(), account);
+                }
+            }
+            return new ArrayList<>(result.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void insert(Account account) {
+        byId.put(account.getId(), account);
+        if (account.getCode() != null) {
+            String code = account.getCode().toLowerCase(Locale.ROOT);
+            CodeNode node = codeRoot;
+            for (int i = 0; i < code.length(); i++) {
+                node = node.next.computeIfAbsent(code.charAt(i), c -> new CodeNode());
+            }
+            node.account = account;
+        }
+        for (String gram : gramsOf(account)) {
+            grams.computeIfAbsent(gram, g -> new HashSet<>()).add(account.getId());
+        }
+    }
+
+    private void delete(String accountId) {
+        Account old = byId.remove(accountId);
+        if (old == null) {
+            return;
+        }
+        CodeNode node = codeNode(old.getCode() == null ? null : old.getCode().toLowerCase(Locale.ROOT));
+        if (node != null && node.account != null && node.account.getId().equals(accountId)) {
+            node.account = null;
+        }
+        for (String gram : gramsOf(old)) {
+            Set<String> ids = grams.get(gram);
+            if (ids != null) {
+                ids.remove(accountId);
+                if (ids.isEmpty()) {
+                    grams.remove(gram);
+                }
+            }
+        }
+    }
+
+    // accounts holding every gram of the keyword, starting from the rarest gram
+    private Set<String> candidates(String key) {
+        List<Set<String>> sets = new ArrayList<>();
+        if (key.length() == 1) {
+            sets.add(grams.getOrDefault(key, Set.of()));
+        } else {
+            for (int i = 0; i + 1 < key.length(); i++) {
+                sets.add(grams.getOrDefault(key.substring(i, i + 2), Set.of()));
+            }
+        }
+        sets.sort(Comparator.comparingInt(Set::size));
+        Set<String> result = new HashSet<>(sets.get(0));
+        for (int i = 1; i < sets.size() && !result.isEmpty(); i++) {
+            result.retainAll(sets.get(i));
+        }
+        return result;
+    }
+
+    private static Set<String> gramsOf(Account account) {
+        Set<String> result = new HashSet<>();
+        for (String text : new String[]{account.getName(), account.getCode()}) {
+            if (text == null) {
+                continue;
+            }
+            String lower = text.toLowerCase(Locale.ROOT);
+            for (int i = 0; i < lower.length(); i++) {
+                result.add(lower.substring(i, i + 1));
+                if (i + 1 < lower.length()) {
+                    result.add(lower.substring(i, i + 2));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean contains(String text, String key) {
+        return text != null && text.toLowerCase(Locale.ROOT).contains(key);
+    }
+
+    private CodeNode codeNode(String code) {
+        if (code == null) {
+            return null;
+        }
+        CodeNode node = codeRoot;
+        for (int i = 0; i < code.length() && node != null; i++) {
+            node = node.next.get(code.charAt(i));
+        }
+        return node;
+    }
+
+    private static void collect(CodeNode node, Map<String, Account> result, int max) {
+        if (result.size() >= max) {
+            return;
+        }
+        if (node.account != null) {
+            result.put(node.account.getId(), node.account);
+        }
+        for (CodeNode next : node.next.values()) {
+            collect(next, result, max);
+            if (result.size() >= max) {
+                return;
+            }
+        }
+    }
+}
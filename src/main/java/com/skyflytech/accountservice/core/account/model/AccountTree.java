@@ -0,0 +1,260 @@
+package com.skyflytech.accountservice.core.account.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 一个账套的科目树，建立后不再修改，科目变化时整体重建后替换。
+ * 按ID、按编码（前缀树和排序数组）、按上级科目建立索引，祖先、下级和是否末级都是常数时间查询，编码区间用二分查找。
+ * 树中的Account对象被所有查询共享，调用方不应修改它们，需要修改时请从数据库重新读取。
+ */
+public final class AccountTree {
+
+    private static final Comparator<Account> BY_CODE = Comparator.comparing(Account::getCode,
+            Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private static final class CodeNode {
+        private final TreeMap<Character, CodeNode> next = new TreeMap<>();
+        private Account account;
+    }
+
+    private final String accountSetId;
+    private final Map<String, Account> byId = new HashMap<>();
+    private final CodeNode codeRoot = new CodeNode();
+    private final Map<String, List<Account>> byName = new HashMap<>();
+    private final Map<String, List<Account>> children = new HashMap<>();
+    // the account itself first, then its parent, up to the root
+    private final Map<String, List<Account>> ancestors = new HashMap<>();
+    // accounts in depth-first order, the descendants of an account are the range right after it
+    private final List<Account> depthFirst = new ArrayList<>();
+    private final Map<String, int[]> descendantRanges = new HashMap<>();
+    private final List<Account> roots = new ArrayList<>();
+    private final List<Account> sortedByCode;
+    // codes of sortedByCode, a missing code as ""
+    private final String[] sortedCodes;
+
+    private AccountTree(String accountSetId, Collection<Account> accounts) {
+        this.accountSetId = accountSetId;
+        for (Account account : accounts) {
+            byId.put(account.getId(), account);
+            if (account.getCode() != null) {
+                insertCode(account);
+            }
+            byName.computeIfAbsent(account.getName(), name -> new ArrayList<>()).add(account);
+        }
+        for (Account account : accounts) {
+            // a missing parent makes the account a root, as if its parentId was not set
+            if (account.getParentId() != null && byId.containsKey(account.getParentId())) {
+                children.computeIfAbsent(account.getParentId(), id -> new ArrayList<>()).add(account);
+            } else {
+                roots.add(account);
+            }
+        }
+        children.values().forEach(list -> list.sort(BY_CODE));
+        roots.sort(BY_CODE);
+
+        Set<String> visited = new HashSet<>();
+        for (Account root : roots) {
+            visit(root, visited);
+        }
+        for (Account account : accounts) {
+            ancestors.put(account.getId(), Collections.unmodifiableList(ancestorChain(account)));
+        }
+        List<Account> sorted = new ArrayList<>(accounts);
+        sorted.sort(BY_CODE);
+        this.sortedByCode = Collections.unmodifiableList(sorted);
+        this.sortedCodes = sorted.stream().map(a -> a.getCode() == null ? "" : a.getCode()).toArray(String[]::new);
+    }
+
+    /**
+     * 由账套的全部科目建立科目树
+     */
+    public static AccountTree of(String accountSetId, Collection<Account> accounts) {
+        return new AccountTree(accountSetId, accounts);
+    }
+
+    public String getAccountSetId() {
+        return accountSetId;
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    public boolean contains(String accountId) {
+        return byId.containsKey(accountId);
+    }
+
+    /**
+     * 按ID查找科目，不存在时返回null
+     */
+    public Account get(String accountId) {
+        return byId.get(accountId);
+    }
+
+    /**
+     * 按编码查找科目，不存在时返回null
+     */
+    public Account findByCode(String code) {
+        CodeNode node = codeNode(code);
+        return node == null ? null : node.account;
+    }
+
+    /**
+     * 编码以prefix开头的所有科目，按编码排序
+     */
+    public List<Account> findByCodePrefix(String prefix) {
+        List<Account> result = new ArrayList<>();
+        CodeNode node = codeNode(prefix);
+        if (node != null) {
+            collect(node, result);
+        }
+        return result;
+    }
+
+    /**
+     * 编码在from到to之间的科目中最上层的那些（上级不在区间内），按编码排序。
+     * to按前缀处理，to的下级也在区间内；from等于to时就是编码以它开头的科目。
+     * 上级的金额包含下级，把这些科目的金额相加就是区间的合计
+     */
+    public List<Account> findTopByCodeRange(String from, String to) {
+        int start = lowerBound(from);
+        int end = lowerBound(to + Character.MAX_VALUE);
+        List<Account> result = new ArrayList<>();
+        Set<String> inRange = new HashSet<>();
+        // a parent's code is a prefix of its children's, so it comes first
+        for (int i = start; i < end; i++) {
+            Account account = sortedByCode.get(i);
+            inRange.add(account.getId());
+            if (account.getParentId() == null || !inRange.contains(account.getParentId())) {
+                result.add(account);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 名称为name的所有科目
+     */
+    public List<Account> findByName(String name) {
+        return byName.getOrDefault(name, List.of());
+    }
+
+    /**
+     * 全部科目，按编码排序
+     */
+    public List<Account> getAccounts() {
+        return sortedByCode;
+    }
+
+    /**
+     * 一级科目（以及上级不存在的科目），按编码排序
+     */
+    public List<Account> getRoots() {
+        return Collections.unmodifiableList(roots);
+    }
+
+    /**
+     * 直接下级科目，按编码排序
+     */
+    public List<Account> getChildren(String accountId) {
+        List<Account> list = children.get(accountId);
+        return list == null ? List.of() : Collections.unmodifiableList(list);
+    }
+
+    /**
+     * 科目本身及其所有祖先，自身在前，科目不存在时返回空列表
+     */
+    public List<Account> getAncestors(String accountId) {
+        return ancestors.getOrDefault(accountId, List.of());
+    }
+
+    /**
+     * 所有下级科目（不含自身），按深度优先的顺序
+     */
+    public List<Account> getDescendants(String accountId) {
+        int[] range = descendantRanges.get(accountId);
+        return range == null ? List.of() : Collections.unmodifiableList(depthFirst.subList(range[0], range[1]));
+    }
+
+    /**
+     * 没有下级科目即为末级科目
+     */
+    public boolean isLeaf(String accountId) {
+        return !children.containsKey(accountId);
+    }
+
+    private void insertCode(Account account) {
+        CodeNode node = codeRoot;
+        for (int i = 0; i < account.getCode().length(); i++) {
+            node = node.next.computeIfAbsent(account.getCode().charAt(i), c -> new CodeNode());
+        }
+        node.account = account;
+    }
+
+    // index of the first code not less than the given one
+    private int lowerBound(String code) {
+        int low = 0;
+        int high = sortedCodes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedCodes[mid].compareTo(code) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private CodeNode codeNode(String code) {
+        if (code == null) {
+            return null;
+        }
+        CodeNode node = codeRoot;
+        for (int i = 0; i < code.length() && node != null; i++) {
+            node = node.next.get(code.charAt(i));
+        }
+        return node;
+    }
+
+    private static void collect(CodeNode node, List<Account> result) {
+        if (node.account != null) {
+            result.add(node.account);
+        }
+        for (CodeNode next : node.next.values()) {
+            collect(next, result);
+        }
+    }
+
+    private void visit(Account account, Set<String> visited) {
+        if (!visited.add(account.getId())) {
+            return;
+        }
+        depthFirst.add(account);
+        int start = depthFirst.size();
+        for (Account child : getChildren(account.getId())) {
+            visit(child, visited);
+        }
+        descendantRanges.put(account.getId(), new int[]{start, depthFirst.size()});
+    }
+
+    // walks up the parent ids, stopping at a missing parent or a cycle in old data
+    private List<Account> ancestorChain(Account account) {
+        List<Account> chain = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Account current = account; current != null && seen.add(current.getId());
+                current = current.getParentId() == null ? null : byId.get(current.getParentId())) {
+            chain.add(current);
+        }
+        return chain;
+    }
+}
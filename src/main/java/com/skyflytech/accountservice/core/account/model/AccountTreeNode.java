@@ -0,0 +1,40 @@
+package com.skyflytech.accountservice.core.account.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 科目树的一个节点及其在某个会计期间的金额，上级账户的金额包含所有下级
+ */
+@Data
+@NoArgsConstructor
+public class AccountTreeNode {
+    private String id;
+    private String code;
+    private String name;
+    private Integer level;
+    private AccountType type;
+    private AccountingDirection balanceDirection;
+    private boolean leaf;
+    // 有下级但因深度限制或被折叠而没有返回
+    private boolean collapsed;
+
+    private BigDecimal totalDebit = BigDecimal.ZERO;
+    private BigDecimal totalCredit = BigDecimal.ZERO;
+    private BigDecimal balance = BigDecimal.ZERO;
+
+    private List<AccountTreeNode> children = new ArrayList<>();
+
+    public AccountTreeNode(Account account) {
+        this.id = account.getId();
+        this.code = account.getCode();
+        this.name = account.getName();
+        this.level = account.getLevel();
+        this.type = account.getType();
+        this.balanceDirection = account.getBalanceDirection();
+    }
+}
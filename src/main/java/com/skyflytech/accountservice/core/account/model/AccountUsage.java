@@ -0,0 +1,41 @@
+package com.skyflytech.accountservice.core.account.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+import org.springframework.data.mongodb.core.mapping.MongoId;
+
+import java.time.LocalDate;
+
+/**
+ * 账户的使用情况：交易数、首末记账日期和下级数，由记账和账户的写入随时维护，
+ * 判断账户是否有交易、是否有下级不再需要查询交易或账户集合。
+ * 删除交易后首末记账日期不收缩，交易数降为0时清空。
+ */
+@Data
+@NoArgsConstructor
+@Document(collection = "account_usages")
+public class AccountUsage {
+
+    // the account id, kept as a string like Transaction.accountId and Account.parentId
+    @MongoId(FieldType.STRING)
+    private String id;
+
+    @Indexed
+    private String accountSetId;
+
+    private long transactionCount;
+
+    private LocalDate firstPostingDate;
+
+    private LocalDate lastPostingDate;
+
+    private int childCount;
+
+    public AccountUsage(String id, String accountSetId) {
+        this.id = id;
+        this.accountSetId = accountSetId;
+    }
+}
@@ -0,0 +1,135 @@
+package com.skyflytech.accountservice.core.account.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountTree;
+import com.skyflytech.accountservice.core.account.model.AccountTreeNode;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
+import com.skyflytech.accountservice.core.accountingPeriod.service.AccountingPeriodService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 带会计期间金额的嵌套科目树。节点来自缓存的科目树，金额来自会计期间的amountHolders，一次遍历生成。
+ * 已结账期间的金额不再变化，按期间ID和版本号缓存在进程内，期间被修改后版本号变化自然不再命中；
+ * 只保存本期发生额的模式下，补记以前期间的凭证会改变之后各期的累计金额而不改变它们的版本号，键中再加上检查点代数。
+ * 上级的金额可能按科目树汇总，科目树重建后缓存也不再使用
+ */
+@Service
+public class AccountBalanceTreeService {
+
+    private final MongoTemplate mongoTemplate;
+    private final AccountTreeCache accountTreeCache;
+    private final AccountingPeriodService accountingPeriodService;
+    // "periodId:version[:generation]" -> resolved holders of a closed period and the tree they were resolved with
+    private final Cache<String, ResolvedHolders> closedPeriodHolders;
+    private final boolean movementOnly;
+
+    @Autowired
+    public AccountBalanceTreeService(MongoTemplate mongoTemplate, AccountTreeCache accountTreeCache,
+                                     AccountingPeriodService accountingPeriodService,
+                                     @Value("${accounting.account-tree.closed-period-cache-size:256}") long cacheSize,
+                                     @Value("${accounting.period.movement-only:false}") boolean movementOnly) {
+        this.mongoTemplate = mongoTemplate;
+        this.accountTreeCache = accountTreeCache;
+        this.accountingPeriodService = accountingPeriodService;
+        this.closedPeriodHolders = Caffeine.newBuilder().maximumSize(cacheSize).build();
+        this.movementOnly = movementOnly;
+    }
+
+    /**
+     * 账套的科目树及各节点在会计期间的金额
+     * @param periodId 会计期间ID，为null时使用当前会计期间
+     * @param maxDepth 最多返回几级，小于等于0表示不限
+     * @param collapsedIds 不返回下级的账户ID
+     */
+    public List<AccountTreeNode> getTree(String accountSetId, String periodId, int maxDepth, Set<String> collapsedIds) {
+        AccountTree tree = accountTreeCache.get(accountSetId);
+        Map<String, AccountAmountHolder> holders = resolveHolders(accountSetId, periodId, tree);
+        List<AccountTreeNode> roots = new ArrayList<>();
+        for (Account root : tree.getRoots()) {
+            roots.add(toNode(tree, root, holders, 1, maxDepth, collapsedIds));
+        }
+        return roots;
+    }
+
+    private AccountTreeNode toNode(AccountTree tree, Account account, Map<String, AccountAmountHolder> holders,
+                                   int depth, int maxDepth, Set<String> collapsedIds) {
+        AccountTreeNode node = new AccountTreeNode(account);
+        AccountAmountHolder holder = holders.get(account.getId());
+        if (holder != null) {
+            node.setTotalDebit(holder.getTotalDebit());
+            node.setTotalCredit(holder.getTotalCredit());
+            node.setBalance(holder.getBalance());
+        }
+        List<Account> children = tree.getChildren(account.getId());
+        node.setLeaf(children.isEmpty());
+        if (children.isEmpty()) {
+            return node;
+        }
+        if ((maxDepth > 0 && depth >= maxDepth) || collapsedIds.contains(account.getId())) {
+            node.setCollapsed(true);
+            return node;
+        }
+        for (Account child : children) {
+            node.getChildren().add(toNode(tree, child, holders, depth + 1, maxDepth, collapsedIds));
+        }
+        return node;
+    }
+
+    private Map<String, AccountAmountHolder> resolveHolders(String accountSetId, String periodId, AccountTree tree) {
+        if (periodId == null) {
+            AccountingPeriod current = accountingPeriodService.findCurrentAccountingPeriod(accountSetId);
+            if (current == null) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Accounting period not found");
+            }
+            return accountingPeriodService.resolveAmountHolders(current);
+        }
+        // the version and the closed flag first, the holders are read only when not cached
+        Query query = new Query(Criteria.where("_id").is(periodId).and("accountSetId").is(accountSetId));
+        query.fields().include("version").include("isClosed");
+        AccountingPeriod stamp = mongoTemplate.findOne(query, AccountingPeriod.class);
+        if (stamp == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Accounting period not found");
+        }
+        if (!stamp.isClosed()) {
+            return accountingPeriodService.resolveAmountHolders(loadPeriod(periodId));
+        }
+        String key = periodId + ":" + stamp.getVersion();
+        if (movementOnly) {
+            // cumulative amounts of a closed period change with postings to any earlier period
+            key += ":" + accountingPeriodService.findCheckpointGeneration(accountSetId);
+        }
+        ResolvedHolders cached = closedPeriodHolders.getIfPresent(key);
+        if (cached != null && cached.tree() == tree) {
+            return cached.holders();
+        }
+        Map<String, AccountAmountHolder> holders = accountingPeriodService.resolveAmountHolders(loadPeriod(periodId));
+        closedPeriodHolders.put(key, new ResolvedHolders(tree, holders));
+        return holders;
+    }
+
+    private AccountingPeriod loadPeriod(String periodId) {
+        AccountingPeriod period = mongoTemplate.findById(periodId, AccountingPeriod.class);
+        if (period == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Accounting period not found");
+        }
+        return period;
+    }
+
+    private record ResolvedHolders(AccountTree tree, Map<String, AccountAmountHolder> holders) {
+    }
+}
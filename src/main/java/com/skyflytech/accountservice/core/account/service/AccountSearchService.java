@@ -0,0 +1,120 @@
+package com.skyflytech.accountservice.core.account.service;
+
+import com.skyflytech.accountservice.config.CacheEvictionBus;
+import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountSearchIndex;
+import com.skyflytech.accountservice.utils.Utils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 科目搜索：每个账套一个内存中的搜索索引，第一次搜索时从数据库建立，之后由科目的写入在事务提交后逐个更新。
+ * 其他实例改了科目时收到通知丢弃本实例的索引，下次搜索时重建。
+ */
+@Service
+public class AccountSearchService {
+
+    private static final String CACHE_NAME = "accountSearch";
+
+    private final MongoTemplate mongoTemplate;
+    private final CacheEvictionBus cacheEvictionBus;
+    private final Map<String, AccountSearchIndex> indexes = new ConcurrentHashMap<>();
+    // bumped on every change of an account set, an index built from older data is not kept
+    private final Map<String, Long> generations = new HashMap<>();
+
+    @Autowired
+    public AccountSearchService(MongoTemplate mongoTemplate, CacheEvictionBus cacheEvictionBus) {
+        this.mongoTemplate = mongoTemplate;
+        this.cacheEvictionBus = cacheEvictionBus;
+        cacheEvictionBus.subscribe(CACHE_NAME, accountSetId -> {
+            if (accountSetId != null) {
+                invalidate(accountSetId);
+            }
+        });
+    }
+
+    /**
+     * 搜索编码或名称包含关键词的科目，编码以关键词开头的在前，各自按编码排序
+     * @param limit 最多返回的数量，小于等于0表示不限
+     */
+    public List<Account> search(String accountSetId, String keyword, int limit) {
+        return getOrBuild(accountSetId).search(keyword, limit);
+    }
+
+    /**
+     * 当前事务提交后把新建或修改的科目写入索引
+     */
+    public void indexAfterCommit(Account account) {
+        Utils.afterCommit(() -> {
+            update(account.getAccountSetId(), index -> index.put(account));
+            cacheEvictionBus.publish(CACHE_NAME, account.getAccountSetId());
+        });
+    }
+
+    /**
+     * 当前事务提交后从索引中移除科目
+     */
+    public void removeAfterCommit(String accountSetId, String accountId) {
+        Utils.afterCommit(() -> {
+            update(accountSetId, index -> index.remove(accountId));
+            cacheEvictionBus.publish(CACHE_NAME, accountSetId);
+        });
+    }
+
+    /**
+     * 当前事务提交后丢弃账套的索引，用于批量的写入
+     */
+    public void invalidateAfterCommit(String accountSetId) {
+        Utils.afterCommit(() -> {
+            invalidate(accountSetId);
+            cacheEvictionBus.publish(CACHE_NAME, accountSetId);
+        });
+    }
+
+    private void update(String accountSetId, Consumer<AccountSearchIndex> change) {
+        AccountSearchIndex index;
+        synchronized (generations) {
+            generations.merge(accountSetId, 1L, Long::sum);
+            index = indexes.get(accountSetId);
+        }
+        if (index != null) {
+            change.accept(index);
+        }
+    }
+
+    private void invalidate(String accountSetId) {
+        synchronized (generations) {
+            generations.merge(accountSetId, 1L, Long::sum);
+            indexes.remove(accountSetId);
+        }
+    }
+
+    private AccountSearchIndex getOrBuild(String accountSetId) {
+        AccountSearchIndex index = indexes.get(accountSetId);
+        if (index != null) {
+            return index;
+        }
+        long generation;
+        synchronized (generations) {
+            generation = generations.getOrDefault(accountSetId, 0L);
+        }
+        AccountSearchIndex built = new AccountSearchIndex(mongoTemplate.find(
+                Query.query(Criteria.where("accountSetId").is(accountSetId)), Account.class));
+        synchronized (generations) {
+            // changed while building, answer this search but build again next time
+            if (generations.getOrDefault(accountSetId, 0L) != generation) {
+                return built;
+            }
+            return indexes.computeIfAbsent(accountSetId, id -> built);
+        }
+    }
+}
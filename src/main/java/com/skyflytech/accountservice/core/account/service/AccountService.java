@@ -1,8 +1,11 @@
 package com.skyflytech.accountservice.core.account.service;
 
 import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountUsage;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @Author pzr
@@ -39,6 +42,30 @@ public interface AccountService {
      */
     Account updateAccount(Account account);
 
+    /**
+     * 批量新建或修改账户，整批校验通过后一次写入
+     * @param accounts 账户列表，没有ID的新建，有ID的修改
+     * @return 保存后的账户列表
+     */
+    List<Account> saveAccounts(List<Account> accounts);
+
+    /**
+     * 把账户连同所有下级移到新的上级之下，并调整各会计期间中原上级和新上级的金额
+     * @param accountId 要移动的账户ID
+     * @param newParentId 新的上级账户ID
+     * @param newCode 账户的新编码，为null时使用新上级的编码加上原来本级的编码
+     * @return 移动后的账户及其所有下级
+     */
+    List<Account> reparentAccount(String accountId, String newParentId, String newCode);
+
+    /**
+     * 把一个末级账户合并到另一个末级账户：交易和各会计期间的金额转到目标账户，然后删除原账户
+     * @param sourceId 被合并的账户ID
+     * @param targetId 合并到的账户ID
+     * @return 合并后的目标账户
+     */
+    Account mergeAccount(String sourceId, String targetId);
+
     /**
      * 删除账户
      * @param id 要删除的账户ID
@@ -53,6 +80,22 @@ public interface AccountService {
      */
     List<Account> searchAccounts(String search, String accountSetId);
 
+    /**
+     * 模糊搜索账户，编码以关键词开头的账户排在最前
+     * @param search 搜索关键词
+     * @param accountSetId 账套ID
+     * @param limit 最多返回的数量，小于等于0表示不限
+     * @return 匹配的账户列表
+     */
+    List<Account> searchAccounts(String search, String accountSetId, int limit);
+
+    /**
+     * 账户的使用情况：交易数、首末记账日期和下级数
+     * @param id 账户ID
+     * @return 使用记录，没有使用过时各项为0
+     */
+    AccountUsage getAccountUsage(String id);
+
 
     /**
      * 查找账户及其所有祖先
@@ -61,6 +104,14 @@ public interface AccountService {
      **/
     List<Account> findAccountAndAllAncestors(String accountId);
 
+    /**
+     * 批量查找多个账户及其所有祖先
+     * @param accountSetId 账套ID
+     * @param accountIds 账户ID集合
+     * @return 账户ID -> 包含账户本身及其所有祖先的列表（自身在前）
+     **/
+    Map<String, List<Account>> findAccountsAndAncestors(String accountSetId, Collection<String> accountIds);
+
     /**
      * 根据账套ID删除所有账户
      * @param accountSetId 账套ID
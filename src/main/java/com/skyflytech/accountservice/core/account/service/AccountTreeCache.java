@@ -0,0 +1,126 @@
+package com.skyflytech.accountservice.core.account.service;
+
+import com.skyflytech.accountservice.config.CacheEvictionBus;
+import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountTree;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 每个账套一棵科目树，第一次使用时从数据库建立。
+ * 科目变化的事务提交后丢弃旧树，下次使用时整体重建再替换，读取方不会看到建了一半的树。
+ * 事务内改过科目的账套，在该事务中使用按事务内数据重建的树。
+ * 丢弃旧树时通过CacheEvictionBus通知其他实例也丢弃各自的树。
+ */
+@Service
+public class AccountTreeCache {
+
+    private static final String CACHE_NAME = "accountTrees";
+
+    private final MongoTemplate mongoTemplate;
+    private final CacheEvictionBus cacheEvictionBus;
+    private final Map<String, AccountTree> trees = new ConcurrentHashMap<>();
+    // bumped on every change of an account set, a tree built from older data is not kept
+    private final Map<String, Long> generations = new HashMap<>();
+    // key of the per-transaction map accountSetId -> tree built inside the transaction (null until needed)
+    private final Object transactionKey = new Object();
+
+    @Autowired
+    public AccountTreeCache(MongoTemplate mongoTemplate, CacheEvictionBus cacheEvictionBus) {
+        this.mongoTemplate = mongoTemplate;
+        this.cacheEvictionBus = cacheEvictionBus;
+        cacheEvictionBus.subscribe(CACHE_NAME, accountSetId -> {
+            if (accountSetId != null) {
+                invalidate(accountSetId);
+            }
+        });
+    }
+
+    /**
+     * 账套的科目树
+     */
+    public AccountTree get(String accountSetId) {
+        Map<String, AccountTree> changedInTransaction = changedInTransaction();
+        if (changedInTransaction != null && changedInTransaction.containsKey(accountSetId)) {
+            return changedInTransaction.computeIfAbsent(accountSetId, this::build);
+        }
+        AccountTree tree = trees.get(accountSetId);
+        if (tree != null) {
+            return tree;
+        }
+        long generation;
+        synchronized (generations) {
+            generation = generations.getOrDefault(accountSetId, 0L);
+        }
+        AccountTree built = build(accountSetId);
+        synchronized (generations) {
+            // changed while building, answer this call but build again next time
+            if (generations.getOrDefault(accountSetId, 0L) != generation) {
+                return built;
+            }
+            return trees.computeIfAbsent(accountSetId, id -> built);
+        }
+    }
+
+    /**
+     * 账套的科目有变化：当前事务之后的查询使用事务内的数据，事务提交后丢弃旧树
+     */
+    public void markChanged(String accountSetId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            invalidateEverywhere(accountSetId);
+            return;
+        }
+        Map<String, AccountTree> changed = changedInTransaction();
+        if (changed == null) {
+            Map<String, AccountTree> newChanged = new HashMap<>();
+            changed = newChanged;
+            TransactionSynchronizationManager.bindResource(transactionKey, newChanged);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    newChanged.keySet().forEach(AccountTreeCache.this::invalidateEverywhere);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(transactionKey);
+                }
+            });
+        }
+        // drop a tree built earlier in this transaction, it is rebuilt when used again
+        changed.put(accountSetId, null);
+    }
+
+    private void invalidateEverywhere(String accountSetId) {
+        invalidate(accountSetId);
+        cacheEvictionBus.publish(CACHE_NAME, accountSetId);
+    }
+
+    private void invalidate(String accountSetId) {
+        synchronized (generations) {
+            generations.merge(accountSetId, 1L, Long::sum);
+            trees.remove(accountSetId);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, AccountTree> changedInTransaction() {
+        return (Map<String, AccountTree>) TransactionSynchronizationManager.getResource(transactionKey);
+    }
+
+    private AccountTree build(String accountSetId) {
+        List<Account> accounts = mongoTemplate.find(Query.query(Criteria.where("accountSetId").is(accountSetId)),
+                Account.class);
+        return AccountTree.of(accountSetId, accounts);
+    }
+}
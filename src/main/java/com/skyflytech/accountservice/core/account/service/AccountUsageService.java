@@ -0,0 +1,182 @@
+package com.skyflytech.accountservice.core.account.service;
+
+import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountTree;
+import com.skyflytech.accountservice.core.account.model.AccountUsage;
+import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 维护每个账户的使用记录（account_usages）。
+ * 记账和账户的写入在同一事务中用$inc/$min/$max原子地更新计数，查询是按ID的一次读取
+ */
+@Service
+public class AccountUsageService {
+
+    private final MongoTemplate mongoTemplate;
+    // false until every instance maintains the counters and they have been backfilled
+    private final boolean countersComplete;
+
+    @Autowired
+    public AccountUsageService(MongoTemplate mongoTemplate,
+                               @Value("${accounting.account-usage.counters-complete:false}") boolean countersComplete) {
+        this.mongoTemplate = mongoTemplate;
+        this.countersComplete = countersComplete;
+    }
+
+    /**
+     * 账户的使用记录，没有记录时返回交易数和下级数都为0的记录
+     */
+    public AccountUsage getUsage(String accountSetId, String accountId) {
+        AccountUsage usage = mongoTemplate.findById(accountId, AccountUsage.class);
+        return usage != null ? usage : new AccountUsage(accountId, accountSetId);
+    }
+
+    /**
+     * 账户是否有交易。计数未确认完整时（如滚动部署中旧版本的实例仍在记账）同时查交易集合
+     */
+    public boolean hasTransactions(String accountId) {
+        if (mongoTemplate.exists(Query.query(Criteria.where("_id").is(accountId)
+                .and("transactionCount").gt(0)), AccountUsage.class)) {
+            return true;
+        }
+        return !countersComplete
+                && mongoTemplate.exists(Query.query(Criteria.where("accountId").is(accountId)), Transaction.class);
+    }
+
+    /**
+     * 记录一批交易的写入：added是新写入的交易（含修改后的），removed是被删除或被修改前的交易
+     */
+    public void recordPostings(Collection<Transaction> added, Collection<Transaction> removed) {
+        Map<String, Usage> changes = new HashMap<>();
+        for (Transaction transaction : added) {
+            Usage usage = changes.computeIfAbsent(transaction.getAccountId(),
+                    id -> new Usage(transaction.getAccountSetId()));
+            usage.count++;
+            LocalDate date = transaction.getModifiedDate();
+            if (date != null) {
+                usage.first = usage.first == null || date.isBefore(usage.first) ? date : usage.first;
+                usage.last = usage.last == null || date.isAfter(usage.last) ? date : usage.last;
+            }
+        }
+        Set<String> decreased = new HashSet<>();
+        for (Transaction transaction : removed) {
+            changes.computeIfAbsent(transaction.getAccountId(), id -> new Usage(transaction.getAccountSetId())).count--;
+            decreased.add(transaction.getAccountId());
+        }
+        changes.values().removeIf(usage -> usage.count == 0 && usage.first == null);
+        if (changes.isEmpty()) {
+            return;
+        }
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, AccountUsage.class);
+        changes.forEach((accountId, usage) -> {
+            Update update = new Update().inc("transactionCount", usage.count)
+                    .setOnInsert("accountSetId", usage.accountSetId);
+            if (usage.first != null) {
+                update.min("firstPostingDate", usage.first).max("lastPostingDate", usage.last);
+            }
+            bulkOperations.upsert(Query.query(Criteria.where("_id").is(accountId)), update);
+        });
+        bulkOperations.execute();
+        decreased.retainAll(changes.keySet());
+        if (!decreased.isEmpty()) {
+            clearUnused(decreased);
+        }
+    }
+
+    /**
+     * 一个账户的交易全部转给了另一个账户
+     */
+    public void moveTransactions(String accountSetId, String fromAccountId, String toAccountId) {
+        AccountUsage from = mongoTemplate.findById(fromAccountId, AccountUsage.class);
+        if (from == null || from.getTransactionCount() == 0) {
+            return;
+        }
+        Update update = new Update().inc("transactionCount", from.getTransactionCount())
+                .setOnInsert("accountSetId", accountSetId);
+        if (from.getFirstPostingDate() != null) {
+            update.min("firstPostingDate", from.getFirstPostingDate());
+        }
+        if (from.getLastPostingDate() != null) {
+            update.max("lastPostingDate", from.getLastPostingDate());
+        }
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(toAccountId)), update, AccountUsage.class);
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(fromAccountId)),
+                new Update().set("transactionCount", 0).unset("firstPostingDate").unset("lastPostingDate"),
+                AccountUsage.class);
+    }
+
+    /**
+     * 上级账户的下级数加上delta
+     */
+    public void changeChildCount(String accountSetId, String parentId, int delta) {
+        if (parentId == null || delta == 0) {
+            return;
+        }
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(parentId)),
+                new Update().inc("childCount", delta).setOnInsert("accountSetId", accountSetId), AccountUsage.class);
+    }
+
+    /**
+     * 按科目树重写账套所有账户的下级数，用于批量的账户写入
+     */
+    public void recountChildren(AccountTree tree) {
+        if (tree.size() == 0) {
+            return;
+        }
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, AccountUsage.class);
+        for (Account account : tree.getAccounts()) {
+            bulkOperations.upsert(Query.query(Criteria.where("_id").is(account.getId())),
+                    new Update().set("childCount", tree.getChildren(account.getId()).size())
+                            .setOnInsert("accountSetId", tree.getAccountSetId()));
+        }
+        bulkOperations.execute();
+    }
+
+    /**
+     * 删除账户的使用记录
+     */
+    public void removeUsage(String accountId) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(accountId)), AccountUsage.class);
+    }
+
+    /**
+     * 删除账套所有账户的使用记录
+     */
+    public void removeByAccountSetId(String accountSetId) {
+        mongoTemplate.remove(Query.query(Criteria.where("accountSetId").is(accountSetId)), AccountUsage.class);
+    }
+
+    // accounts left without transactions lose their posting dates
+    private void clearUnused(Collection<String> accountIds) {
+        mongoTemplate.updateMulti(Query.query(Criteria.where("_id").in(accountIds).and("transactionCount").lte(0)),
+                new Update().set("transactionCount", 0).unset("firstPostingDate").unset("lastPostingDate"),
+                AccountUsage.class);
+    }
+
+    // the change of one account's usage within a batch
+    private static class Usage {
+        private final String accountSetId;
+        private long count;
+        private LocalDate first;
+        private LocalDate last;
+
+        private Usage(String accountSetId) {
+            this.accountSetId = accountSetId;
+        }
+    }
+}
@@ -24,13 +24,22 @@ public class ExcelImportService {
 
     private final AccountMongoRepository accountMongoRepository;
     private final AccountServiceImp accountServiceImp;
+    private final AccountTreeCache accountTreeCache;
+    private final AccountSearchService accountSearchService;
+    private final AccountUsageService accountUsageService;
 
     @Autowired
     public ExcelImportService(AccountMongoRepository accountMongoRepository,
             CurrentAccountSetIdHolder currentAccountSetIdHolder,
-            AccountServiceImp accountServiceImp) {
+            AccountServiceImp accountServiceImp,
+            AccountTreeCache accountTreeCache,
+            AccountSearchService accountSearchService,
+            AccountUsageService accountUsageService) {
         this.accountMongoRepository = accountMongoRepository;
         this.accountServiceImp = accountServiceImp;
+        this.accountTreeCache = accountTreeCache;
+        this.accountSearchService = accountSearchService;
+        this.accountUsageService = accountUsageService;
     }
 
     @Transactional
@@ -142,6 +151,9 @@ public class ExcelImportService {
             }
         }
         accountMongoRepository.saveAll(accountsToBeCreated);
+        accountTreeCache.markChanged(accountSetId);
+        accountSearchService.invalidateAfterCommit(accountSetId);
+        accountUsageService.recountChildren(accountTreeCache.get(accountSetId));
     }
 
     private String getCellValueAsString(Cell cell) {
@@ -1,28 +1,40 @@
 package com.skyflytech.accountservice.core.account.service.imp;
 
 import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountTree;
+import com.skyflytech.accountservice.core.account.model.AccountUsage;
 import com.skyflytech.accountservice.core.account.repository.AccountMongoRepository;
+import com.skyflytech.accountservice.core.account.service.AccountSearchService;
 import com.skyflytech.accountservice.core.account.service.AccountService;
-import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import com.skyflytech.accountservice.core.account.service.AccountTreeCache;
+import com.skyflytech.accountservice.core.account.service.AccountUsageService;
+import com.skyflytech.accountservice.core.accountSet.model.AccountSet;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
+import com.skyflytech.accountservice.core.accountingPeriod.service.AccountingPeriodService;
 import com.skyflytech.accountservice.core.transaction.service.TransactionService;
 import com.skyflytech.accountservice.global.GlobalConst;
 import com.skyflytech.accountservice.security.model.CurrentAccountSetIdHolder;
 import com.skyflytech.accountservice.utils.Utils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.CachePut;
 import org.springframework.cache.annotation.Cacheable;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.server.NotAcceptableStatusException;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.math.BigDecimal;
 import java.util.*;
-import java.util.regex.Pattern;
 
 import static com.mongodb.internal.authentication.AwsCredentialHelper.LOGGER;
 
@@ -33,17 +45,32 @@ public class AccountServiceImp implements AccountService {
     private final MongoTemplate mongoTemplate;
     private final CurrentAccountSetIdHolder currentAccountSetIdHolder;
     private final TransactionService transactionService;
+    private final AccountTreeCache accountTreeCache;
+    private final CacheManager cacheManager;
+    private final AccountSearchService accountSearchService;
+    private final AccountingPeriodService accountingPeriodService;
+    private final AccountUsageService accountUsageService;
 
     @Autowired
     public AccountServiceImp(AccountMongoRepository accountMongoRepository,
                              MongoTemplate mongoTemplate,
                              CurrentAccountSetIdHolder currentAccountSetIdHolder,
-                             TransactionService transactionService) {
+                             TransactionService transactionService,
+                             AccountTreeCache accountTreeCache,
+                             CacheManager cacheManager,
+                             AccountSearchService accountSearchService,
+                             AccountingPeriodService accountingPeriodService,
+                             AccountUsageService accountUsageService) {
 
         this.accountMongoRepository = accountMongoRepository;
         this.mongoTemplate = mongoTemplate;
         this.currentAccountSetIdHolder = currentAccountSetIdHolder;
         this.transactionService = transactionService;
+        this.accountTreeCache = accountTreeCache;
+        this.cacheManager = cacheManager;
+        this.accountSearchService = accountSearchService;
+        this.accountingPeriodService = accountingPeriodService;
+        this.accountUsageService = accountUsageService;
     }
 
     public List<Account> getAllAccounts(String accountSetId) {
@@ -59,45 +86,55 @@ public class AccountServiceImp implements AccountService {
         return accounts;
     }
 
-    @Cacheable(value="accounts",key = "#result.id")
+    @Cacheable(value="accounts",key = "#id")
     public Account getAccountById(String id) {
         return accountMongoRepository.findById(id)
                 .orElseThrow(() -> new NoSuchElementException("no such account: " + id));
     }
 
     @Transactional
-    @CachePut(value = "accounts",key = "account.id")
+    @CachePut(value = "accounts",key = "#result.id")
     public Account createAccount(Account account) {
         // check accountSetId
         checkAccountSetId(account);
+        AccountTree tree = accountTreeCache.get(account.getAccountSetId());
 
         // 检查名称、类型和代码是否重复
-        checkDuplicateAccount(account);
+        checkDuplicateAccount(tree, account);
         validateAndSetAccountLevel(account);
         // 检查父账户
         if (account.getLevel() <= 1) {
-            return accountMongoRepository.save(account);
+            Account saved = accountMongoRepository.save(account);
+            accountTreeCache.markChanged(saved.getAccountSetId());
+            accountSearchService.indexAfterCommit(saved);
+            return saved;
         }
-        Account parentAccount = getParentAndCheckParentId(account);
+        Account parentAccount = getParentAndCheckParentId(tree, account);
         //checkParentCode(account, parentAccount);
        // account.setParentId(parentAccount.getId());
-        if (parentAccount.isLeaf()) {
-            // transfer transactions belong to parentAccount to its child account
-            List<Transaction> transactions = mongoTemplate
-                    .find(Query.query(Criteria.where("accountId").is(parentAccount.getId())), Transaction.class);
-            for (Transaction transaction : transactions) {
-                transaction.setAccountId(account.getId());
+        account.setLeaf(true);
+        Account saved = accountMongoRepository.save(account);
+        accountTreeCache.markChanged(saved.getAccountSetId());
+        accountSearchService.indexAfterCommit(saved);
+        accountUsageService.changeChildCount(saved.getAccountSetId(), parentAccount.getId(), 1);
+        if (tree.isLeaf(parentAccount.getId())) {
+            // transfer transactions and period amounts of parentAccount to its child account on the server,
+            // the child has an id only after saving
+            moveLeafToChild(saved.getAccountSetId(), parentAccount.getId(), saved.getId());
+            // the tree's accounts are shared, save a fresh copy of the parent
+            Account parentToSave = mongoTemplate.findById(parentAccount.getId(), Account.class);
+            if (parentToSave != null) {
+                parentToSave.setLeaf(false);
+                mongoTemplate.save(parentToSave);
+                evictCachedAccount(parentToSave.getId());
+                accountSearchService.indexAfterCommit(parentToSave);
             }
-            transactionService.saveAll(transactions);
-            parentAccount.setLeaf(false);
-            account.setLeaf(true);
         }
-        mongoTemplate.save(parentAccount);
-        return accountMongoRepository.save(account);
+        return saved;
     }
 
     @Transactional
-    @CachePut(value = "accounts",key = "updatedAccount.id")
+    @CachePut(value = "accounts",key = "#result.id")
     public Account updateAccount(Account updatedAccount) {
         validateAndSetAccountLevel(updatedAccount);
         // 检查 accountSetId
@@ -107,78 +144,365 @@ public class AccountServiceImp implements AccountService {
         }
 
         // 获取原始账户
-        Account originalAccount = accountMongoRepository.findById(updatedAccount.getId())
-                .orElseThrow(() -> new NoSuchElementException("未找到ID为 " + updatedAccount.getId() + " 的账户"));
+        AccountTree tree = accountTreeCache.get(updatedAccount.getAccountSetId());
+        Account originalAccount = tree.get(updatedAccount.getId());
+        if (originalAccount == null) {
+            throw new NoSuchElementException("未找到ID为 " + updatedAccount.getId() + " 的账户");
+        }
 
         // 检查名称、类型和代码是否重复（排除当前账户）
-        checkDuplicateAccount(updatedAccount, originalAccount.getId());
+        checkDuplicateAccount(tree, updatedAccount, originalAccount.getId());
 
         // 检查代码是否发生变化
         if (!originalAccount.getCode().equals(updatedAccount.getCode())) {
             // 只有在代码发生变化时才检查子账户
-            List<Account> childAccounts = accountMongoRepository.findByParentId(updatedAccount.getId());
-            if (!childAccounts.isEmpty()) {
+            if (!tree.isLeaf(updatedAccount.getId())) {
                 throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "该账户有子账户，不允许更改代码。");
             }
         }
 
         // 检查父账户
-        if (updatedAccount.getLevel() <= 1) {
-            return accountMongoRepository.save(updatedAccount);
+        String parentId = null;
+        if (updatedAccount.getLevel() > 1) {
+            Account parentAccount = getParentAndCheckParentId(tree, updatedAccount);
+            checkParentCode(updatedAccount, parentAccount);
+            parentId = parentAccount.getId();
+        }
+        // the ancestors' period amounts are only moved by reparentAccount
+        if (!Objects.equals(originalAccount.getParentId(), parentId)) {
+            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "修改代码或上级会改变上级科目，请使用移动账户功能。");
         }
-        Account parentAccount = getParentAndCheckParentId(updatedAccount);
-        checkParentCode(updatedAccount, parentAccount);
-        return accountMongoRepository.save(updatedAccount);
+        Account saved = accountMongoRepository.save(updatedAccount);
+        accountTreeCache.markChanged(saved.getAccountSetId());
+        accountSearchService.indexAfterCommit(saved);
+        return saved;
     }
 
     @Transactional
-    @CacheEvict(value = "accounts",key = "id")
+    @CacheEvict(value = "accounts",key = "#id")
     public void deleteAccount(String id) {
         Account account = accountMongoRepository.findById(id)
                 .orElseThrow(() -> new NoSuchElementException("Account not found with id: " + id));
-        if (Utils.isNotNullOrEmpty(accountMongoRepository.findByParentId(id))) {
+        // check accountSetId
+        checkAccountSetId(account);
+        AccountTree tree = accountTreeCache.get(account.getAccountSetId());
+        if (!tree.isLeaf(id)) {
             throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE,
                     "The account has children, not allowed to delete.");
         }
-        // check accountSetId
-        checkAccountSetId(account);
-        if (Utils.isNotNullOrEmpty(
-                mongoTemplate.find(Query.query(Criteria.where("accountId").is(id)), Transaction.class))) {
+        if (accountUsageService.hasTransactions(id)) {
             throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE,
                     "The account has transactions, not allowed to delete.");
         }
         accountMongoRepository.delete(account);
+        accountTreeCache.markChanged(account.getAccountSetId());
+        accountSearchService.removeAfterCommit(account.getAccountSetId(), id);
+        accountUsageService.removeUsage(id);
+        accountUsageService.changeChildCount(account.getAccountSetId(), account.getParentId(), -1);
         // if it's parentAccount has no other children,set it's parentAccount to leaf
-        if (account.getParentId() != null) {
+        if (account.getParentId() != null && tree.getChildren(account.getParentId()).stream()
+                .allMatch(child -> child.getId().equals(id))) {
             Account parentAccount = mongoTemplate.findById(account.getParentId(), Account.class);
-            if (parentAccount != null && isLeaf(parentAccount)) {
+            if (parentAccount != null) {
                 parentAccount.setLeaf(true);
                 mongoTemplate.save(parentAccount);
+                evictCachedAccount(parentAccount.getId());
+                accountSearchService.indexAfterCommit(parentAccount);
             }
         }
     }
 
-/* fuzzy search by name or code */
-public List<Account> searchAccounts(String search, String accountSetId) {
-    // MongoDB fuzzy search pattern
-    Pattern pattern = Pattern.compile(Pattern.quote(search), Pattern.CASE_INSENSITIVE); // Case-insensitive match
+    /**
+     * 批量新建（无ID）或修改（有ID）账户：先在内存中按批次完成后的科目表一次校验完所有行，
+     * 再用一个bulkWrite写入，最后统一修正isLeaf
+     */
+    @Transactional
+    public List<Account> saveAccounts(List<Account> accounts) {
+        if (accounts.isEmpty()) {
+            return accounts;
+        }
+        String accountSetId = currentAccountSetIdHolder.getCurrentAccountSetId();
+        AccountTree tree = accountTreeCache.get(accountSetId);
+        List<String> errors = new ArrayList<>();
+        List<Account> created = new ArrayList<>();
+        Set<String> createdIds = new HashSet<>();
+        Set<String> batchIds = new HashSet<>();
+        for (int i = 0; i < accounts.size(); i++) {
+            Account account = accounts.get(i);
+            String row = "第" + (i + 1) + "行：";
+            account.setAccountSetId(accountSetId);
+            try {
+                validateAndSetAccountLevel(account);
+            } catch (ResponseStatusException e) {
+                errors.add(row + e.getReason());
+                continue;
+            }
+            if (account.getId() == null) {
+                // ids are assigned up front so that children in the same batch can refer to their parents
+                account.setId(new ObjectId().toHexString());
+                created.add(account);
+                createdIds.add(account.getId());
+            } else {
+                Account original = tree.get(account.getId());
+                if (original == null) {
+                    errors.add(row + "未找到ID为 " + account.getId() + " 的账户");
+                    continue;
+                }
+                if (!original.getCode().equals(account.getCode()) && !tree.isLeaf(account.getId())) {
+                    errors.add(row + "该账户有子账户，不允许更改代码。");
+                }
+            }
+            if (!batchIds.add(account.getId())) {
+                errors.add(row + "同一账户在批次中出现多次。");
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, String.join("\n", errors));
+        }
 
-    // Create query for either `name` or `code`
-    Query query = Query.query(Criteria.where("accountSetId").is(accountSetId)
-        .orOperator(
-            Criteria.where("name").regex(pattern),
-            Criteria.where("code").regex(pattern)
-        )
-    );
+        // the chart as it will be after the batch
+        Map<String, Account> chart = new LinkedHashMap<>();
+        tree.getAccounts().forEach(a -> chart.put(a.getId(), a));
+        accounts.forEach(a -> chart.put(a.getId(), a));
+        Map<String, Account> byCode = new HashMap<>();
+        Map<String, Account> byNameAndType = new HashMap<>();
+        for (Account account : chart.values()) {
+            Account sameCode = byCode.putIfAbsent(account.getCode(), account);
+            if (sameCode != null && (batchIds.contains(account.getId()) || batchIds.contains(sameCode.getId()))) {
+                errors.add(account.getCode() + "：已存在相同代码的账户。");
+            }
+            Account sameName = byNameAndType.putIfAbsent(account.getName() + "|" + account.getType(), account);
+            if (sameName != null && (batchIds.contains(account.getId()) || batchIds.contains(sameName.getId()))) {
+                errors.add(account.getCode() + "：已存在相同名称和类型的账户。");
+            }
+        }
+        for (Account account : accounts) {
+            String parentId = null;
+            if (account.getLevel() > 1) {
+                Account parent = byCode.get(
+                        account.getCode().substring(0, GlobalConst.ACCOUNT_Code_LENGTH[account.getLevel() - 2]));
+                if (parent == null) {
+                    errors.add(account.getCode() + "：父级科目不存在。");
+                    continue;
+                }
+                parentId = parent.getId();
+            }
+            // the ancestors' period amounts are only moved by reparentAccount
+            if (!createdIds.contains(account.getId())
+                    && !Objects.equals(tree.get(account.getId()).getParentId(), parentId)) {
+                errors.add(account.getCode() + "：修改代码会改变上级科目，请使用移动账户功能。");
+                continue;
+            }
+            account.setParentId(parentId);
+        }
+        if (!errors.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, String.join("\n", errors));
+        }
 
-    // Find matching accounts
-    List<Account> accounts = mongoTemplate.find(query, Account.class);
+        // isLeaf of every account once, from the final parent ids
+        Map<String, List<Account>> children = new HashMap<>();
+        for (Account account : chart.values()) {
+            if (account.getParentId() != null) {
+                children.computeIfAbsent(account.getParentId(), id -> new ArrayList<>()).add(account);
+            }
+        }
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, Account.class);
+        if (!created.isEmpty()) {
+            bulkOperations.insert(created);
+        }
+        List<String> changedIds = new ArrayList<>();
+        for (Account account : chart.values()) {
+            boolean leaf = !children.containsKey(account.getId());
+            if (batchIds.contains(account.getId())) {
+                account.setLeaf(leaf);
+                if (!createdIds.contains(account.getId())) {
+                    bulkOperations.replaceOne(new Query(Criteria.where("_id").is(account.getId())), account);
+                    changedIds.add(account.getId());
+                }
+            } else if (account.isLeaf() != leaf) {
+                bulkOperations.updateOne(new Query(Criteria.where("_id").is(account.getId())),
+                        new Update().set("isLeaf", leaf));
+                changedIds.add(account.getId());
+            }
+        }
+        bulkOperations.execute();
+
+        // transactions of an existing leaf that got children go to its first new child, as in createAccount
+        for (Account account : tree.getAccounts()) {
+            List<Account> newChildren = children.get(account.getId());
+            if (tree.isLeaf(account.getId()) && newChildren != null) {
+                Account target = newChildren.stream().min(Comparator.comparing(Account::getCode)).get();
+                moveLeafToChild(accountSetId, account.getId(), target.getId());
+            }
+        }
 
-    // Sort by `code` in dictionary order
-    accounts.sort(Comparator.comparing(Account::getCode));
+        accountTreeCache.markChanged(accountSetId);
+        accountSearchService.invalidateAfterCommit(accountSetId);
+        accountUsageService.recountChildren(accountTreeCache.get(accountSetId));
+        changedIds.forEach(this::evictCachedAccount);
+        return accounts;
+    }
 
-    return accounts;
-}
+    /**
+     * 把账户连同所有下级移到新的上级之下。下级的编码随之改为新编码加上原来的后缀，
+     * 各会计期间中原祖先和新祖先的金额用一次按期间汇总的bulkWrite调整，不重放交易
+     */
+    @Transactional
+    public List<Account> reparentAccount(String accountId, String newParentId, String newCode) {
+        String accountSetId = currentAccountSetIdHolder.getCurrentAccountSetId();
+        AccountTree tree = accountTreeCache.get(accountSetId);
+        Account account = tree.get(accountId);
+        Account newParent = tree.get(newParentId);
+        if (account == null || newParent == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Account not found");
+        }
+        if (newParentId.equals(account.getParentId())) {
+            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "该账户已经是目标账户的下级。");
+        }
+        if (tree.getAncestors(newParentId).stream().anyMatch(a -> a.getId().equals(accountId))) {
+            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "不能移到自身或自己的下级之下。");
+        }
+        int newLevel = newParent.getLevel() + 1;
+        if (newLevel > GlobalConst.ACCOUNT_Code_LENGTH.length) {
+            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "账户级别无效。");
+        }
+        if (newCode == null) {
+            // keep the account's own segment of the code
+            int parentCodeLength = account.getLevel() > 1 ? GlobalConst.ACCOUNT_Code_LENGTH[account.getLevel() - 2] : 0;
+            newCode = newParent.getCode() + account.getCode().substring(parentCodeLength);
+        }
+        if (!newCode.startsWith(newParent.getCode())
+                || newCode.length() != GlobalConst.ACCOUNT_Code_LENGTH[newLevel - 1]) {
+            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "账户编码长度与设定的级别不匹配。");
+        }
+        boolean newParentIsLeaf = tree.isLeaf(newParentId);
+        // the history of a leaf parent goes to its new child, which has to be a leaf to take postings
+        if (newParentIsLeaf && !tree.isLeaf(accountId) && hasHistory(accountSetId, newParentId)) {
+            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE,
+                    "目标账户已有交易或金额，只能把末级账户移到它之下。");
+        }
+
+        // the subtree keeps its shape, every code gets the new prefix
+        List<Account> moved = new ArrayList<>();
+        moved.add(account);
+        moved.addAll(tree.getDescendants(accountId));
+        Set<String> movedIds = new HashSet<>();
+        moved.forEach(a -> movedIds.add(a.getId()));
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, Account.class);
+        for (Account subAccount : moved) {
+            String code = newCode + subAccount.getCode().substring(account.getCode().length());
+            Integer level = GlobalConst.ACCOUNT_CODE_LEVEL_MAP.get(code.length());
+            if (level == null) {
+                throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, code + "：账户编码长度不符合要求。");
+            }
+            Account sameCode = tree.findByCode(code);
+            if (sameCode != null && !movedIds.contains(sameCode.getId())) {
+                throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, code + "：已存在相同代码的账户。");
+            }
+            Update update = new Update().set("code", code).set("level", level);
+            if (subAccount == account) {
+                update.set("parentId", newParentId);
+            }
+            bulkOperations.updateOne(new Query(Criteria.where("_id").is(subAccount.getId())), update);
+        }
+        bulkOperations.updateOne(new Query(Criteria.where("_id").is(newParentId)), new Update().set("isLeaf", false));
+        String oldParentId = account.getParentId();
+        if (oldParentId != null && tree.getChildren(oldParentId).size() == 1) {
+            bulkOperations.updateOne(new Query(Criteria.where("_id").is(oldParentId)), new Update().set("isLeaf", true));
+        }
+        bulkOperations.execute();
+
+        // amounts leave the ancestors the account no longer has and join the new ones, common ones are untouched
+        Set<String> oldAncestorIds = new HashSet<>();
+        tree.getAncestors(accountId).stream().skip(1).forEach(a -> oldAncestorIds.add(a.getId()));
+        Set<String> newAncestorIds = new HashSet<>();
+        tree.getAncestors(newParentId).forEach(a -> newAncestorIds.add(a.getId()));
+        Set<String> removedAncestorIds = new HashSet<>(oldAncestorIds);
+        removedAncestorIds.removeAll(newAncestorIds);
+        newAncestorIds.removeAll(oldAncestorIds);
+        // the amounts to move are the account's own, read before the leaf parent's history is folded into it
+        Map<String, AccountAmountHolder> amounts = accountingPeriodService.findHoldersByPeriod(accountSetId, accountId);
+        if (newParentIsLeaf) {
+            // as when a leaf gets its first child in createAccount
+            moveLeafToChild(accountSetId, newParentId, accountId);
+        }
+        accountingPeriodService.moveHoldersBetweenAncestors(accountSetId, amounts, removedAncestorIds,
+                newAncestorIds);
+
+        accountTreeCache.markChanged(accountSetId);
+        accountSearchService.invalidateAfterCommit(accountSetId);
+        accountUsageService.changeChildCount(accountSetId, oldParentId, -1);
+        accountUsageService.changeChildCount(accountSetId, newParentId, 1);
+        movedIds.forEach(this::evictCachedAccount);
+        evictCachedAccount(newParentId);
+        if (oldParentId != null) {
+            evictCachedAccount(oldParentId);
+        }
+        return mongoTemplate.find(Query.query(Criteria.where("_id").in(movedIds)), Account.class);
+    }
+
+    /**
+     * 把重复的末级账户合并到另一个末级账户：交易和各会计期间的金额都在数据库端批量转移，不读入内存，
+     * 两者上级不同时再调整上级的金额，最后删除原账户
+     */
+    @Transactional
+    public Account mergeAccount(String sourceId, String targetId) {
+        String accountSetId = currentAccountSetIdHolder.getCurrentAccountSetId();
+        AccountTree tree = accountTreeCache.get(accountSetId);
+        Account source = tree.get(sourceId);
+        Account target = tree.get(targetId);
+        if (source == null || target == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Account not found");
+        }
+        if (sourceId.equals(targetId)) {
+            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "不能把账户合并到自身。");
+        }
+        if (!tree.isLeaf(sourceId) || !tree.isLeaf(targetId)) {
+            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "只能合并没有下级的账户。");
+        }
+        if (source.getType() != target.getType()) {
+            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "账户类型不同，不能合并。");
+        }
+
+        transactionService.reassignTransactions(accountSetId, sourceId, targetId);
+        // the source's amount leaves the ancestors the target does not share and joins the target's own
+        Set<String> sourceAncestorIds = new HashSet<>();
+        tree.getAncestors(sourceId).stream().skip(1).forEach(a -> sourceAncestorIds.add(a.getId()));
+        Set<String> targetAncestorIds = new HashSet<>();
+        tree.getAncestors(targetId).stream().skip(1).forEach(a -> targetAncestorIds.add(a.getId()));
+        Set<String> removedAncestorIds = new HashSet<>(sourceAncestorIds);
+        removedAncestorIds.removeAll(targetAncestorIds);
+        targetAncestorIds.removeAll(sourceAncestorIds);
+        accountingPeriodService.moveHoldersBetweenAncestors(accountSetId, sourceId, removedAncestorIds,
+                targetAncestorIds);
+        accountingPeriodService.mergeHolders(accountSetId, sourceId, targetId);
+        mergeInitialBalance(accountSetId, sourceId, targetId);
+
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(sourceId)), Account.class);
+        accountUsageService.removeUsage(sourceId);
+        String parentId = source.getParentId();
+        accountUsageService.changeChildCount(accountSetId, parentId, -1);
+        if (parentId != null && tree.getChildren(parentId).size() == 1) {
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(parentId)),
+                    new Update().set("isLeaf", true), Account.class);
+            evictCachedAccount(parentId);
+        }
+        evictCachedAccount(sourceId);
+        evictCachedAccount(targetId);
+        accountTreeCache.markChanged(accountSetId);
+        accountSearchService.invalidateAfterCommit(accountSetId);
+        return mongoTemplate.findById(targetId, Account.class);
+    }
+
+    /* fuzzy search by name or code */
+    public List<Account> searchAccounts(String search, String accountSetId) {
+        return searchAccounts(search, accountSetId, 0);
+    }
+
+    // served from the in-memory search index, code-prefix matches first
+    public List<Account> searchAccounts(String search, String accountSetId, int limit) {
+        return accountSearchService.search(accountSetId, search, limit);
+    }
 
 
     /**
@@ -188,30 +512,44 @@ public List<Account> searchAccounts(String search, String accountSetId) {
      * @return 包含所有祖先账户（包括自身）的列表
      */
     public List<Account> findAccountAndAllAncestors(String accountId) {
-        List<Account> ancestors = new ArrayList<>();
-        Account currentAccount = getAccountById(accountId);
+        Account account = getAccountById(accountId);
+        List<Account> ancestors = accountTreeCache.get(account.getAccountSetId()).getAncestors(accountId);
+        if (ancestors.isEmpty()) {
+            throw new NoSuchElementException("no such account: " + accountId);
+        }
+        return ancestors;
+    }
 
-        while (currentAccount != null) {
-            ancestors.add(currentAccount);
-            if (currentAccount.getParentId() == null) {
-                break;
+    /**
+     * 批量查找账户及其祖先，都从账套的科目树中取得
+     */
+    public Map<String, List<Account>> findAccountsAndAncestors(String accountSetId, Collection<String> accountIds) {
+        Map<String, List<Account>> result = new HashMap<>();
+        if (accountIds.isEmpty()) {
+            return result;
+        }
+        AccountTree tree = accountTreeCache.get(accountSetId);
+        for (String accountId : accountIds) {
+            List<Account> chain = tree.getAncestors(accountId);
+            if (chain.isEmpty()) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Account not found");
             }
-            currentAccount = getAccountById(currentAccount.getParentId());
+            result.put(accountId, chain);
         }
-
-        return ancestors;
+        return result;
     }
 
     // check an account if is a leaf
-    public boolean isLeaf(Account account) {
-        if (account.getLevel() >= GlobalConst.ACCOUNT_CODE_LEVEL_MAP.get(account.getCode().length())) {
-            return true;
-        } else {
-            List<Account> childAccounts = mongoTemplate
-                    .find(Query.query(Criteria.where("parentId").is(account.getId())), Account.class);
-            return childAccounts.isEmpty();
+    public AccountUsage getAccountUsage(String id) {
+        String accountSetId = currentAccountSetIdHolder.getCurrentAccountSetId();
+        if (!accountTreeCache.get(accountSetId).contains(id)) {
+            throw new NoSuchElementException("no such account: " + id);
         }
+        return accountUsageService.getUsage(accountSetId, id);
+    }
 
+    public boolean isLeaf(Account account) {
+        return accountTreeCache.get(account.getAccountSetId()).isLeaf(account.getId());
     }
 
     // private methods
@@ -225,35 +563,21 @@ public List<Account> searchAccounts(String search, String accountSetId) {
         }
     }
 
-    private void checkDuplicateAccount(Account account) {
-        checkDuplicateAccount(account, null);
+    private void checkDuplicateAccount(AccountTree tree, Account account) {
+        checkDuplicateAccount(tree, account, null);
     }
 
-    private void checkDuplicateAccount(Account account, String excludeId) {
+    private void checkDuplicateAccount(AccountTree tree, Account account, String excludeId) {
         // 检查名称和类型是否重复
-        Criteria nameTypeCriteria = Criteria.where("accountSetId").is(account.getAccountSetId())
-                .and("name").is(account.getName())
-                .and("type").is(account.getType());
-
-        if (excludeId != null) {
-            nameTypeCriteria.and("id").ne(excludeId);
-        }
-
-        Query nameTypeQuery = new Query(nameTypeCriteria);
-        if (mongoTemplate.exists(nameTypeQuery, Account.class)) {
-            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "已存在相同名称和类型的账户。");
+        for (Account sameName : tree.findByName(account.getName())) {
+            if (sameName.getType() == account.getType() && !sameName.getId().equals(excludeId)) {
+                throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "已存在相同名称和类型的账户。");
+            }
         }
 
         // 检查代码是否重复
-        Criteria codeCriteria = Criteria.where("accountSetId").is(account.getAccountSetId())
-                .and("code").is(account.getCode());
-
-        if (excludeId != null) {
-            codeCriteria.and("id").ne(excludeId);
-        }
-
-        Query codeQuery = new Query(codeCriteria);
-        if (mongoTemplate.exists(codeQuery, Account.class)) {
+        Account sameCode = tree.findByCode(account.getCode());
+        if (sameCode != null && !sameCode.getId().equals(excludeId)) {
             throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "已存在相同代码的账户。");
         }
     }
@@ -291,16 +615,17 @@ public List<Account> searchAccounts(String search, String accountSetId) {
     }
 
     // if account's level>1,get parentAccount and set
-    private Account getParentAndCheckParentId(Account account) {
+    private Account getParentAndCheckParentId(AccountTree tree, Account account) {
         Account parentAccount = null;
         if (account.getParentId() != null) {
-            parentAccount = getAccountById(account.getParentId());
+            parentAccount = tree.get(account.getParentId());
             if (parentAccount == null) {
                 throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Parent account not found");
             }
         } else {
-            parentAccount = mongoTemplate.findOne(Query.query(Criteria.where("code").is(account.getCode().substring(0, account.getLevel() - 1))),
-                    Account.class);
+            // the parent code is the prefix of the code at the length of the level above
+            parentAccount = tree.findByCode(
+                    account.getCode().substring(0, GlobalConst.ACCOUNT_Code_LENGTH[account.getLevel() - 2]));
             if (parentAccount == null) {
                 throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Parent account not found");
             } else {
@@ -321,13 +646,53 @@ public List<Account> searchAccounts(String search, String accountSetId) {
     @Transactional
     public void deleteAccountsByAccountSetId(String accountSetId) {
         List<Account> accounts = accountMongoRepository.findByAccountSetId(accountSetId);
-        accounts.forEach(this::deleteAccountFromCache);
+        accounts.forEach(account -> evictCachedAccount(account.getId()));
         accountMongoRepository.deleteByAccountSetId(accountSetId);
+        accountUsageService.removeByAccountSetId(accountSetId);
+        accountTreeCache.markChanged(accountSetId);
+        accountSearchService.invalidateAfterCommit(accountSetId);
+    }
+
+    // 账套的期初余额中原账户的金额加到目标账户上并去掉原账户，新建会计期间时由此重建期初。
+    // 旧账套的期初余额以字符串保存，不能在数据库端相加，读出后在内存中相加
+    private void mergeInitialBalance(String accountSetId, String sourceId, String targetId) {
+        AccountSet accountSet = mongoTemplate.findById(accountSetId, AccountSet.class);
+        if (accountSet == null || !accountSet.getInitialAccountBalance().containsKey(sourceId)) {
+            return;
+        }
+        Map<String, BigDecimal> initialBalances = accountSet.getInitialAccountBalance();
+        BigDecimal merged = Objects.requireNonNullElse(initialBalances.get(targetId), BigDecimal.ZERO)
+                .add(Objects.requireNonNullElse(initialBalances.get(sourceId), BigDecimal.ZERO));
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(accountSetId)),
+                new Update().set("initialAccountBalance." + targetId, merged)
+                        .unset("initialAccountBalance." + sourceId),
+                AccountSet.class);
+        Cache cache = cacheManager.getCache("accountSets");
+        if (cache != null) {
+            cache.evict(accountSetId);
+        }
+    }
+
+    // 末级账户有交易，或在会计期间中有不为0的金额（如期初余额）
+    private boolean hasHistory(String accountSetId, String accountId) {
+        return accountUsageService.hasTransactions(accountId)
+                || accountingPeriodService.findHoldersByPeriod(accountSetId, accountId).values().stream()
+                .anyMatch(holder -> holder.getTotalDebit().signum() != 0 || holder.getTotalCredit().signum() != 0
+                        || holder.getBalance().signum() != 0);
     }
 
-    @CacheEvict(value = "accounts", key = "#account.id")
-    public void deleteAccountFromCache(Account account) {
-        // 这里的实现是为了触发 CacheEvict
+    // 末级账户有了下级：交易和各会计期间的金额都转给下级
+    private void moveLeafToChild(String accountSetId, String leafId, String childId) {
+        transactionService.reassignTransactions(accountSetId, leafId, childId);
+        accountingPeriodService.moveLeafHolders(accountSetId, leafId, childId);
+    }
+
+    // 在方法内部修改的其他账户不经过缓存注解，直接从缓存中移除
+    private void evictCachedAccount(String id) {
+        Cache cache = cacheManager.getCache("accounts");
+        if (cache != null) {
+            cache.evict(id);
+        }
     }
 
 
@@ -6,11 +6,11 @@ import com.skyflytech.accountservice.core.account.service.ExcelImportService;
 import com.skyflytech.accountservice.core.accountSet.model.AccountSet;
 import com.skyflytech.accountservice.core.accountSet.repository.AccountSetRepository;
 import com.skyflytech.accountservice.core.accountSet.service.AccountSetService;
-import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
-import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
 import com.skyflytech.accountservice.core.accountingPeriod.service.AccountingPeriodService;
+import com.skyflytech.accountservice.core.accountingPeriod.service.PeriodUpdateRetrier;
 import com.skyflytech.accountservice.core.journalEntry.model.JournalEntry;
 import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import com.skyflytech.accountservice.core.transaction.service.BalanceIndexService;
 import com.skyflytech.accountservice.security.model.CurrentAccountSetIdHolder;
 import com.skyflytech.accountservice.security.model.User;
 import com.skyflytech.accountservice.security.service.UserService;
@@ -44,6 +44,8 @@ public class AccountSetServiceImp implements AccountSetService {
     private final AccountingPeriodService accountingPeriodService;
     private final UserService userService;
     private final MongoTemplate mongoTemplate;
+    private final BalanceIndexService balanceIndexService;
+    private final PeriodUpdateRetrier periodUpdateRetrier;
 
     private final CurrentAccountSetIdHolder currentAccountSetIdHolder;
 
@@ -54,7 +56,9 @@ public class AccountSetServiceImp implements AccountSetService {
                                 CurrentAccountSetIdHolder currentAccountSetIdHolder,
                                 MongoTemplate mongoTemplate,
                                 UserService userService,
-                                AccountingPeriodService accountingPeriodService) {
+                                AccountingPeriodService accountingPeriodService,
+                                BalanceIndexService balanceIndexService,
+                                PeriodUpdateRetrier periodUpdateRetrier) {
         this.accountSetRepository = accountSetRepository;
         this.excelImportService = excelImportService;
         this.accountService = accountService;
@@ -62,6 +66,8 @@ public class AccountSetServiceImp implements AccountSetService {
         this.userService = userService;
         this.currentAccountSetIdHolder=currentAccountSetIdHolder;
         this.accountingPeriodService=accountingPeriodService;
+        this.balanceIndexService=balanceIndexService;
+        this.periodUpdateRetrier=periodUpdateRetrier;
     }
 
     @Transactional
@@ -180,11 +186,16 @@ public class AccountSetServiceImp implements AccountSetService {
                 .orElseThrow(() -> new IllegalArgumentException("Account set not found with id: " + id));
     }
 
-    @Transactional
     public void initializeOpeningBalances(String accountSetId, Map<String, BigDecimal> openingBalances) {
         if (accountSetId == null || !accountSetId.equals(currentAccountSetIdHolder.getCurrentAccountSetId())) {
             throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "The accountSetId is not match.");
         }
+        // 会计期间带版本号，与记账并发冲突时重新读取后重试
+        periodUpdateRetrier.inTransaction(accountSetId, "initializeOpeningBalances",
+                () -> applyOpeningBalances(accountSetId, openingBalances));
+    }
+
+    private void applyOpeningBalances(String accountSetId, Map<String, BigDecimal> openingBalances) {
         // find accountSet
         AccountSet accountSet = mongoTemplate.findById(accountSetId, AccountSet.class);
         if (accountSet == null) {
@@ -204,23 +215,8 @@ public class AccountSetServiceImp implements AccountSetService {
                 changes.put(accountId, change);
             }
         }
-        // update all following accountingPeriods
-        List<AccountingPeriod> accountingPeriods = accountingPeriodService.findByAccountSetId(accountSetId);
-        for (AccountingPeriod accountingPeriod : accountingPeriods) {
-            for (Map.Entry<String, BigDecimal> entry : changes.entrySet()) {
-                AccountAmountHolder accountAmountHolder = accountingPeriod.getAmountHolders().get(entry.getKey());
-                if (accountAmountHolder != null) {
-                    accountAmountHolder.setBalance(accountAmountHolder.getBalance().add(entry.getValue()));
-                } else {
-                    // add new item
-                    accountAmountHolder = new AccountAmountHolder();
-                    accountAmountHolder.setBalance(entry.getValue());
-                    accountingPeriod.getAmountHolders().put(entry.getKey(), accountAmountHolder);
-                }
-            }
-        }
         // 保存accountingPeriods改变
-        accountingPeriodService.saveAll(accountingPeriods);
+        accountingPeriodService.applyOpeningBalanceChanges(accountSetId, changes);
         // 保存accountSet
         for (Map.Entry<String, BigDecimal> entry : openingBalances.entrySet()) {
             accountSet.getInitialAccountBalance().put(entry.getKey(), entry.getValue());
@@ -232,6 +228,7 @@ public class AccountSetServiceImp implements AccountSetService {
     void deleteTransactionsByAccountSetId(String accountSetId) {
         Query query=Query.query(Criteria.where("accountSetId").is(accountSetId));
         mongoTemplate.remove(query, Transaction.class);
+        balanceIndexService.invalidateAfterCommit(accountSetId);
     }
 
     @Transactional
@@ -6,6 +6,7 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
@@ -45,5 +46,9 @@ public class AccountingPeriod {
 
     private LocalDateTime updatedAt;
 
+    // 乐观锁版本号，save时校验，$inc更新时同时加一
+    @Version
+    private Long version;
+
 
 }
\ No newline at end of file
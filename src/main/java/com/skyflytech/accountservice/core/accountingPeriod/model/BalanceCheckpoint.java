@@ -0,0 +1,42 @@
+package com.skyflytech.accountservice.core.accountingPeriod.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 累计余额检查点：某个会计期间期末的累计金额（从账套启用起）。
+ * 只保存本期发生额的模式下，期末余额 = 最近的检查点 + 之后各期发生额之和。
+ * 任何早于等于endDate的记账都会使该检查点失效（被删除）。只在结账时写入。
+ * (accountSetId, endDate)上的唯一索引由MongoDataMigration建立。
+ */
+@Data
+@NoArgsConstructor
+@Document(collection = "balance_checkpoints")
+public class BalanceCheckpoint {
+    @Id
+    private String id;
+
+    private String accountSetId;
+
+    // 检查点对应会计期间的结束日期
+    private LocalDate endDate;
+
+    // 账户ID -> 截至endDate的累计金额，账户范围与会计期间的amountHolders相同
+    private Map<String, AccountAmountHolder> amountHolders = new HashMap<>();
+
+    private LocalDateTime createdAt;
+
+    public BalanceCheckpoint(String accountSetId, LocalDate endDate, Map<String, AccountAmountHolder> amountHolders) {
+        this.accountSetId = accountSetId;
+        this.endDate = endDate;
+        this.amountHolders = amountHolders;
+        this.createdAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,72 @@
+package com.skyflytech.accountservice.core.accountingPeriod.model;
+
+import com.skyflytech.accountservice.core.transaction.model.Transaction;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 一次记账引起的借贷发生额变化，按 日期 -> 账户ID 汇总。
+ * 只记录直接记账的账户，余额和上级账户的变化在更新会计期间时再展开。
+ */
+public class PeriodAmountDelta {
+
+    // date -> accountId -> (totalDebit, totalCredit) change, balance is unused here
+    private final TreeMap<LocalDate, Map<String, AccountAmountHolder>> changes = new TreeMap<>();
+
+    public void add(Transaction transaction) {
+        add(transaction.getModifiedDate(), transaction.getAccountId(), transaction.getDebit(), transaction.getCredit());
+    }
+
+    public void subtract(Transaction transaction) {
+        add(transaction.getModifiedDate(), transaction.getAccountId(), transaction.getDebit().negate(),
+                transaction.getCredit().negate());
+    }
+
+    public void add(LocalDate date, String accountId, BigDecimal debitChange, BigDecimal creditChange) {
+        AccountAmountHolder holder = changes.computeIfAbsent(date, d -> new HashMap<>())
+                .computeIfAbsent(accountId, id -> new AccountAmountHolder(BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO));
+        holder.setTotalDebit(holder.getTotalDebit().add(debitChange));
+        holder.setTotalCredit(holder.getTotalCredit().add(creditChange));
+    }
+
+    public void addAll(PeriodAmountDelta other) {
+        for (Map.Entry<LocalDate, Map<String, AccountAmountHolder>> dateEntry : other.changes.entrySet()) {
+            for (Map.Entry<String, AccountAmountHolder> entry : dateEntry.getValue().entrySet()) {
+                add(dateEntry.getKey(), entry.getKey(), entry.getValue().getTotalDebit(), entry.getValue().getTotalCredit());
+            }
+        }
+    }
+
+    /**
+     * 去掉相互抵消后为零的变化，返回是否已无任何变化
+     */
+    public boolean isEmpty() {
+        changes.values().forEach(holders -> holders.values().removeIf(PeriodAmountDelta::isZero));
+        changes.values().removeIf(Map::isEmpty);
+        return changes.isEmpty();
+    }
+
+    public Set<String> getAccountIds() {
+        Set<String> accountIds = new HashSet<>();
+        changes.values().forEach(holders -> accountIds.addAll(holders.keySet()));
+        return accountIds;
+    }
+
+    public LocalDate getEarliestDate() {
+        return changes.firstKey();
+    }
+
+    public TreeMap<LocalDate, Map<String, AccountAmountHolder>> getChanges() {
+        return changes;
+    }
+
+    private static boolean isZero(AccountAmountHolder holder) {
+        return holder.getTotalDebit().signum() == 0 && holder.getTotalCredit().signum() == 0;
+    }
+}
@@ -1,12 +1,16 @@
 package com.skyflytech.accountservice.core.accountingPeriod.service;
 
 import com.skyflytech.accountservice.core.accountSet.model.AccountSet;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
 import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
+import com.skyflytech.accountservice.core.accountingPeriod.model.PeriodAmountDelta;
 import com.skyflytech.accountservice.core.transaction.model.Transaction;
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.time.YearMonth;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @Author pzr
@@ -31,6 +35,86 @@ public interface AccountingPeriodService {
      */
     void updateAccountingPeriodsWhenTransactionAmountChange(Transaction transaction, BigDecimal debitChange, BigDecimal creditChange);
 
+    /**
+     * 一次性把多笔交易的金额变化应用到会计期间
+     * @param accountSetId 账套ID
+     * @param delta 按日期和账户汇总的借贷变化
+     */
+    void updateAccountingPeriodsWhenTransactionsChange(String accountSetId, PeriodAmountDelta delta);
+
+    /**
+     * 期初余额变化时调整会计期间的余额
+     * @param accountSetId 账套ID
+     * @param changes 账户ID -> 期初余额的变化
+     */
+    void applyOpeningBalanceChanges(String accountSetId, Map<String, BigDecimal> changes);
+
+    /**
+     * 末级账户有了第一个下级并把交易转给它时，把金额转给这个下级
+     * @param accountSetId 账套ID
+     * @param fromAccountId 原末级账户ID
+     * @param toAccountId 新的下级账户ID
+     */
+    void moveLeafHolders(String accountSetId, String fromAccountId, String toAccountId);
+
+    /**
+     * 把一个账户在各会计期间的金额并入另一个账户，并去掉原账户的金额
+     * @param accountSetId 账套ID
+     * @param sourceAccountId 被合并的账户ID
+     * @param targetAccountId 合并到的账户ID
+     */
+    void mergeHolders(String accountSetId, String sourceAccountId, String targetAccountId);
+
+    /**
+     * 账户连同下级换了上级时，把它在各会计期间的金额从原来的祖先转到新的祖先
+     * @param accountSetId 账套ID
+     * @param accountId 换了上级的账户ID
+     * @param removedAncestorIds 不再是它祖先的账户ID
+     * @param addedAncestorIds 新成为它祖先的账户ID
+     */
+    void moveHoldersBetweenAncestors(String accountSetId, String accountId, Collection<String> removedAncestorIds,
+            Collection<String> addedAncestorIds);
+
+    /**
+     * 同上，使用事先读出的金额，用于读出之后账户本身的金额又有变化的情况
+     * @param accountSetId 账套ID
+     * @param amountsByPeriod 会计期间ID到该账户金额，由findHoldersByPeriod读出
+     * @param removedAncestorIds 不再是它祖先的账户ID
+     * @param addedAncestorIds 新成为它祖先的账户ID
+     */
+    void moveHoldersBetweenAncestors(String accountSetId, Map<String, AccountAmountHolder> amountsByPeriod,
+            Collection<String> removedAncestorIds, Collection<String> addedAncestorIds);
+
+    /**
+     * 一个账户在各会计期间中保存的金额（按存储模式，不汇总）
+     * @param accountSetId 账套ID
+     * @param accountId 账户ID
+     * @return 会计期间ID到金额，没有金额的期间不在其中
+     */
+    Map<String, AccountAmountHolder> findHoldersByPeriod(String accountSetId, String accountId);
+
+    /**
+     * 账套检查点的代数。只保存本期发生额的模式下，记账、期初余额变化和账户金额转移都会增加它，
+     * 任何一个期间的累计金额变化时它都会变化
+     * @param accountSetId 账套ID
+     */
+    long findCheckpointGeneration(String accountSetId);
+
+    /**
+     * 结账时按需为期间写入累计余额检查点（只保存本期发生额的模式）
+     * @param period 结账的会计期间
+     */
+    void writeCheckpointIfDue(AccountingPeriod period);
+
+    /**
+     * 期末在date之前的最后一个会计期间，只带一个账户截至期末的累计金额（上级包含下级）
+     * @param accountSetId 账套ID
+     * @param accountId 账户ID
+     * @param date 日期
+     * @return 只读取了部分字段的会计期间，amountHolders中只有该账户，不能用于保存；没有这样的期间时为null
+     */
+    AccountingPeriod findClosingBefore(String accountSetId, String accountId, LocalDate date);
+
     /**
      * 根据账套ID删除会计期间
      * @param accountSetId 账套ID
@@ -74,6 +158,19 @@ public interface AccountingPeriodService {
     AccountingPeriod createInitialAccountingPeriod(AccountSet accountSet);
 
 
+    /**
+     * 获取会计期间中所有账户（含上级账户）的金额，报表等读取金额时应使用此方法而不是直接读取amountHolders
+     * @param period 会计期间
+     * @return 账户ID -> 金额
+     */
+    Map<String, AccountAmountHolder> resolveAmountHolders(AccountingPeriod period);
+
+    /**
+     * 根据账套ID查找所有会计期间
+     * @param accountSetId 账套ID
+     * @return 会计期间列表
+     */
+    List<AccountingPeriod> findByAccountSetId(String accountSetId);
 
     void saveAll(List<AccountingPeriod> accountingPeriods);
 }
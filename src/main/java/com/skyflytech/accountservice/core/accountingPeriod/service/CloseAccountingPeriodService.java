@@ -5,6 +5,8 @@ import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPerio
 import com.skyflytech.accountservice.core.accountingPeriod.service.imp.AccountingPeriodServiceImp;
 import com.skyflytech.accountservice.core.transaction.model.Transaction;
 import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountTree;
+import com.skyflytech.accountservice.core.account.service.AccountTreeCache;
 import com.skyflytech.accountservice.core.account.model.AccountType;
 import com.skyflytech.accountservice.core.account.model.TransferAccountType;
 import com.skyflytech.accountservice.core.journalEntry.model.JournalEntry;
@@ -14,19 +16,17 @@ import com.skyflytech.accountservice.core.accountingPeriod.repository.Accounting
 
 import com.skyflytech.accountservice.core.journalEntry.service.imp.JournalEntryServiceImp;
 import com.skyflytech.accountservice.core.journalEntry.service.ProcessJournalEntry;
+import com.skyflytech.accountservice.core.report.service.ReportService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -40,25 +40,32 @@ public class CloseAccountingPeriodService {
     private final MongoTemplate mongoTemplate;
     private final AccountingPeriodServiceImp accountingPeriodServiceImp;
     private final JournalEntryServiceImp journalEntryServiceImp;
+    private final AccountTreeCache accountTreeCache;
+    private final ReportService reportService;
 
     @Autowired
     public CloseAccountingPeriodService(AccountingPeriodRepository accountingPeriodRepository,
             ProcessJournalEntry processJournalEntryService,
             AccountingPeriodServiceImp accountingPeriodServiceImp,
             MongoTemplate mongoTemplate,
-            JournalEntryServiceImp journalEntryServiceImp
+            JournalEntryServiceImp journalEntryServiceImp,
+            AccountTreeCache accountTreeCache,
+            ReportService reportService
             ) {
         this.accountingPeriodRepository = accountingPeriodRepository;
         this.processJournalEntryService = processJournalEntryService;
         this.journalEntryServiceImp = journalEntryServiceImp;
         this.mongoTemplate = mongoTemplate;
         this.accountingPeriodServiceImp = accountingPeriodServiceImp;
+        this.accountTreeCache = accountTreeCache;
+        this.reportService = reportService;
     }
 
     @Transactional
     public AccountingPeriod closeAccountingPeriod(String accountingPeriodId) {
         AccountingPeriod currentPeriod = accountingPeriodRepository.findById(accountingPeriodId)
                 .orElseThrow(() -> new RuntimeException("会计期间不存在"));
+        accountingPeriodServiceImp.writeCheckpointIfDue(currentPeriod);
 
             // 检查是否存在下一个会计期间,如果不存在则创建一个新的会计期间 
         AccountingPeriod newPeriod = accountingPeriodServiceImp.findNextPeriod(currentPeriod);
@@ -76,15 +83,16 @@ public class CloseAccountingPeriodService {
         String accountSetId = period.getAccountSetId();
         List<Account> allAccounts = findAllLeafAccountsForClosingPeriod(accountSetId);
         Account profitAccount = findProfitAccounts(allAccounts);
+        Map<String, AccountAmountHolder> amountHolders = accountingPeriodServiceImp.resolveAmountHolders(period);
         List<JournalEntryView> journalEntryViews = new ArrayList<>();
         // 结转收入
-        journalEntryViews.add(transferIncomeAccounts(findIncomeAccounts(allAccounts), period, profitAccount));
+        journalEntryViews.add(transferIncomeAccounts(findIncomeAccounts(allAccounts), period, amountHolders, profitAccount));
         // 结转费用和损失
         journalEntryViews
-                .add(transferExpenseAndLossAccounts(findExpenseAndLossAccounts(allAccounts), period, profitAccount));
+                .add(transferExpenseAndLossAccounts(findExpenseAndLossAccounts(allAccounts), period, amountHolders, profitAccount));
         // 结转以前年度损益调整
         journalEntryViews.add(transferPriorYearAdjustmentAccounts(findPriorYearAdjustmentAccounts(allAccounts), period,
-                profitAccount));
+                amountHolders, profitAccount));
 
        // 创建journalEntry
         for (JournalEntryView journalEntryView : journalEntryViews) {
@@ -100,32 +108,13 @@ public class CloseAccountingPeriodService {
         
         AccountingPeriod period = accountingPeriodRepository.findById(periodId)
                 .orElseThrow(() -> new RuntimeException("会计期间不存在"));
-        String accountSetId = period.getAccountSetId();
-        //map<accountId,balance>
-        Map<String, BigDecimal> balances = new HashMap<>();
-        for(Map.Entry<String, AccountAmountHolder> entry:period.getAmountHolders().entrySet()){
-            balances.put(entry.getKey(), entry.getValue().getBalance());
-        }
-        //find all accounts by accountSetId
-        List<Account> accounts = mongoTemplate.find(Query.query(Criteria.where("accountSetId").is(accountSetId)), Account.class);
-      
-        
-        BigDecimal assets = BigDecimal.ZERO;
-        BigDecimal liabilitiesAndEquity = BigDecimal.ZERO;
-        BigDecimal equity = BigDecimal.ZERO;
-        BigDecimal cost = BigDecimal.ZERO;
-
-      for(Account account:accounts){
-         if(account.getCode().startsWith("1")&&account.getLevel()==1){
-            assets = assets.add(balances.get(account.getId()));
-         }else if(account.getCode().startsWith("2")&&account.getLevel()==1){
-            liabilitiesAndEquity = liabilitiesAndEquity.add(balances.get(account.getId()));
-         }else if(account.getCode().startsWith("3")&&account.getLevel()==1){
-            equity = equity.add(balances.get(account.getId()));
-         }else if(account.getCode().startsWith("4")&&account.getLevel()==1){
-            cost = cost.add(balances.get(account.getId()));
-         }
-        }
+        AccountTree tree = accountTreeCache.get(period.getAccountSetId());
+        Map<String, AccountAmountHolder> holders = accountingPeriodServiceImp.resolveAmountHolders(period);
+        // 各类一级科目的余额，按编码前缀在科目树上汇总
+        BigDecimal assets = reportService.sumByCodeRange(tree, holders, "1").getBalance();
+        BigDecimal liabilitiesAndEquity = reportService.sumByCodeRange(tree, holders, "2").getBalance();
+        BigDecimal equity = reportService.sumByCodeRange(tree, holders, "3").getBalance();
+        BigDecimal cost = reportService.sumByCodeRange(tree, holders, "4").getBalance();
 
         BigDecimal difference = assets.add(cost).subtract(liabilitiesAndEquity.add(equity));
          return difference;
@@ -138,8 +127,9 @@ public class CloseAccountingPeriodService {
         List<Account> accounts = findAllLeafAccountsForClosingPeriod(period.getAccountSetId());
         //list<id>
         List<String> accountIds = accounts.stream().map(Account::getId).toList();
+        Map<String, AccountAmountHolder> amountHolders = accountingPeriodServiceImp.resolveAmountHolders(period);
         for(String id:accountIds){
-            BigDecimal balance = period.getAmountHolders().get(id).getBalance();
+            BigDecimal balance = amountHolders.get(id).getBalance();
             if(balance.compareTo(BigDecimal.ZERO)!=0){
                 return false;
             }
@@ -189,11 +179,10 @@ public class CloseAccountingPeriodService {
      List<Account> findAllLeafAccountsForClosingPeriod(String accountSetId) {
         List<AccountType> accountTypes = GlobalConst.AUTO_TRANSFER_ACCOUNTS.values().stream()
                 .flatMap(List::stream).toList();
-        List<String> accountTypeValues = accountTypes.stream().map(AccountType::name).collect(Collectors.toList());
-        List<Account> accounts = mongoTemplate.find(Query.query(Criteria.where("accountSetId").is(accountSetId)
-                .and("type").in(accountTypeValues)), Account.class);
-        List<String> parentIds = accounts.stream().map(Account::getParentId).toList();
-        return accounts.stream().filter(account -> !parentIds.contains(account.getId())).collect(Collectors.toList());
+        AccountTree tree = accountTreeCache.get(accountSetId);
+        return tree.getAccounts().stream()
+                .filter(account -> accountTypes.contains(account.getType()) && tree.isLeaf(account.getId()))
+                .collect(Collectors.toList());
     }
 
     // 找到期间收入账户
@@ -223,13 +212,13 @@ public class CloseAccountingPeriodService {
 
     // 结转收入账户
     private JournalEntryView transferIncomeAccounts(List<Account> incomeAccounts, AccountingPeriod period,
-            Account profitAccount) {
+            Map<String, AccountAmountHolder> amountHolders, Account profitAccount) {
         BigDecimal totalAmount = BigDecimal.ZERO;
         if (incomeAccounts.isEmpty())
             return null;
         List<Transaction> transactions = new ArrayList<>();
         for (Account account : incomeAccounts) {
-            BigDecimal balance = period.getAmountHolders().get(account.getId()).getBalance();
+            BigDecimal balance = amountHolders.get(account.getId()).getBalance();
             totalAmount = totalAmount.add(balance);
             transactions.add(createTransaction(account, balance, false, "结转收入"));
         }
@@ -240,13 +229,13 @@ public class CloseAccountingPeriodService {
 
     // 结转费用和损失账户
     private JournalEntryView transferExpenseAndLossAccounts(List<Account> expenseAndLossAccounts,
-            AccountingPeriod period, Account profitAccount) {
+            AccountingPeriod period, Map<String, AccountAmountHolder> amountHolders, Account profitAccount) {
         if (expenseAndLossAccounts.isEmpty())
             return null;
         BigDecimal totalAmount = BigDecimal.ZERO;
         List<Transaction> transactions = new ArrayList<>();
         for (Account account : expenseAndLossAccounts) {
-            BigDecimal balance = period.getAmountHolders().get(account.getId()).getBalance();
+            BigDecimal balance = amountHolders.get(account.getId()).getBalance();
             totalAmount = totalAmount.add(balance);
             transactions.add(createTransaction(account, balance, false, "结转费用和损失"));
         }
@@ -256,13 +245,13 @@ public class CloseAccountingPeriodService {
 
     // 结转以前年度损益调整账户
     private JournalEntryView transferPriorYearAdjustmentAccounts(List<Account> priorYearAdjustmentAccounts,
-            AccountingPeriod period, Account profitAccount) {
+            AccountingPeriod period, Map<String, AccountAmountHolder> amountHolders, Account profitAccount) {
         if (priorYearAdjustmentAccounts.isEmpty())
             return null;
         BigDecimal totalAmount = BigDecimal.ZERO;
         List<Transaction> transactions = new ArrayList<>();
         for (Account account : priorYearAdjustmentAccounts) {
-            BigDecimal balance = period.getAmountHolders().get(account.getId()).getBalance();
+            BigDecimal balance = amountHolders.get(account.getId()).getBalance();
             totalAmount = totalAmount.add(balance);
             transactions.add(createTransaction(account, balance, false, "结转以前年度损益调整"));
         }
@@ -0,0 +1,108 @@
+package com.skyflytech.accountservice.core.accountingPeriod.service;
+
+import com.mongodb.MongoException;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * 会计期间的乐观并发更新：每次尝试在一个新的事务中重新读取并写入，
+ * 版本号冲突（@Version）或Mongo事务写冲突时按带随机抖动的指数退避重试，次数有上限。
+ * 冲突和重试次数按账套和操作记录为指标：accounting.period.update.conflicts / retries / exhausted
+ */
+@Service
+public class PeriodUpdateRetrier {
+
+    private final TransactionTemplate transactionTemplate;
+    private final MeterRegistry meterRegistry;
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+
+    @Autowired
+    public PeriodUpdateRetrier(PlatformTransactionManager transactionManager,
+                               MeterRegistry meterRegistry,
+                               @Value("${accounting.period.update.max-attempts:5}") int maxAttempts,
+                               @Value("${accounting.period.update.base-backoff-millis:5}") long baseBackoffMillis,
+                               @Value("${accounting.period.update.max-backoff-millis:200}") long maxBackoffMillis) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.meterRegistry = meterRegistry;
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * 在事务中执行action，冲突时重试。action每次都必须重新读取它要修改的数据。
+     * 已经处于外层事务中时只执行一次，由外层事务的发起者负责重试
+     * @param accountSetId 账套ID，用于指标
+     * @param operation 操作名称，用于指标
+     */
+    public <T> T inTransaction(String accountSetId, String operation, Supplier<T> action) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return action.get();
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return transactionTemplate.execute(status -> action.get());
+            } catch (RuntimeException e) {
+                if (!isConflict(e)) {
+                    throw e;
+                }
+                count("accounting.period.update.conflicts", accountSetId, operation);
+                if (attempt >= maxAttempts) {
+                    count("accounting.period.update.exhausted", accountSetId, operation);
+                    throw new ResponseStatusException(HttpStatus.CONFLICT,
+                            "The accounting periods were changed concurrently, please try again.", e);
+                }
+                count("accounting.period.update.retries", accountSetId, operation);
+                backOff(attempt);
+            }
+        }
+    }
+
+    public void inTransaction(String accountSetId, String operation, Runnable action) {
+        inTransaction(accountSetId, operation, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    // full jitter: a random wait up to base * 2^(attempt-1), capped
+    private void backOff(int attempt) {
+        long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 20));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while retrying.");
+        }
+    }
+
+    private void count(String name, String accountSetId, String operation) {
+        meterRegistry.counter(name, "accountSetId", String.valueOf(accountSetId), "operation", operation).increment();
+    }
+
+    private static boolean isConflict(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OptimisticLockingFailureException) {
+                return true;
+            }
+            if (cause instanceof MongoException mongoException
+                    && mongoException.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,53 +1,85 @@
 package com.skyflytech.accountservice.core.accountingPeriod.service.imp;
 
 import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountTree;
 import com.skyflytech.accountservice.core.account.model.AccountingDirection;
-import com.skyflytech.accountservice.core.account.service.AccountService;
+import com.skyflytech.accountservice.core.account.service.AccountTreeCache;
 import com.skyflytech.accountservice.core.accountSet.model.AccountSet;
 import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
 import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
+import com.skyflytech.accountservice.core.accountingPeriod.model.BalanceCheckpoint;
+import com.skyflytech.accountservice.core.accountingPeriod.model.PeriodAmountDelta;
 import com.skyflytech.accountservice.core.accountingPeriod.repository.AccountingPeriodRepository;
 import com.skyflytech.accountservice.core.accountingPeriod.service.AccountingPeriodService;
+import com.skyflytech.accountservice.core.accountingPeriod.service.PeriodUpdateRetrier;
 import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.CachePut;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.cache.annotation.Caching;
 import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpStatus;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.http.HttpStatus;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.YearMonth;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.NoSuchElementException;
-import java.util.stream.Collectors;
+import java.util.TreeMap;
 
 @Service
 public class AccountingPeriodServiceImp implements AccountingPeriodService {
 
+    // accountSetId -> generation of its checkpoints
+    private static final String CHECKPOINT_GENERATIONS = "balance_checkpoint_generations";
+
     private final AccountingPeriodRepository accountingPeriodRepository;
     private final MongoTemplate mongoTemplate;
-    private final AccountService accountService;
+    private final PeriodUpdateRetrier periodUpdateRetrier;
+    private final AccountTreeCache accountTreeCache;
+    // 只为叶子账户保存金额，上级账户的金额在读取时汇总
+    private final boolean leafOnlyHolders;
+    // 会计期间只保存本期发生额（第一个期间含期初余额），累计金额由检查点加之后各期发生额得到
+    private final boolean movementOnly;
+    // 结账时，距离上一个检查点达到这么多个期间就写入新的检查点
+    private final int checkpointInterval;
 
     @Autowired
     public AccountingPeriodServiceImp(AccountingPeriodRepository accountingPeriodRepository,
                                       MongoTemplate mongoTemplate,
-                                      AccountService accountService) {
+                                      PeriodUpdateRetrier periodUpdateRetrier,
+                                      AccountTreeCache accountTreeCache,
+                                      @Value("${accounting.period.leaf-only-holders:false}") boolean leafOnlyHolders,
+                                      @Value("${accounting.period.movement-only:false}") boolean movementOnly,
+                                      @Value("${accounting.period.checkpoint-interval:12}") int checkpointInterval) {
         this.accountingPeriodRepository = accountingPeriodRepository;
         this.mongoTemplate = mongoTemplate;
-        this.accountService = accountService;
+        this.periodUpdateRetrier = periodUpdateRetrier;
+        this.accountTreeCache = accountTreeCache;
+        this.leafOnlyHolders = leafOnlyHolders;
+        this.movementOnly = movementOnly;
+        this.checkpointInterval = checkpointInterval;
     }
 
     public AccountingPeriod createInitialPeriod(AccountSet accountSet, YearMonth startMonth) {
@@ -76,21 +108,316 @@ public class AccountingPeriodServiceImp implements AccountingPeriodService {
     })
     public void updateAccountingPeriodsWhenTransactionAmountChange(Transaction transaction, BigDecimal debitChange,
             BigDecimal creditChange) {
-        Account account = mongoTemplate.findById(transaction.getAccountId(), Account.class);
-        if (account == null) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Account not found");
-        }
+        PeriodAmountDelta delta = new PeriodAmountDelta();
+        delta.add(transaction.getModifiedDate(), transaction.getAccountId(), debitChange, creditChange);
+        updateAccountingPeriodsWhenTransactionsChange(transaction.getAccountSetId(), delta);
+    }
 
-        List<AccountingPeriod> accountingPeriods = findRelevantAccountingPeriods(transaction.getAccountSetId(),
-                transaction.getModifiedDate());
-        List<String> relatedAccountIds = getRelatedAccountIds(transaction.getAccountId());
+    // send the changes as $inc updates, one updateMulti per posting date, all in one bulk request.
+    // the periods are never loaded, so concurrent postings to the same account set don't overwrite each other.
+    // in movement-only mode only the period containing each date is updated, whatever the number of later periods
+    @Transactional
+    @Caching(evict = {
+            @CacheEvict(value = "accountingPeriods", key = "#accountSetId + '_current'"),
+            @CacheEvict(value = "accountingPeriods", key = "#accountSetId + '_last'")
+    })
+    public void updateAccountingPeriodsWhenTransactionsChange(String accountSetId, PeriodAmountDelta delta) {
+        if (delta.isEmpty()) {
+            return;
+        }
+        Map<String, List<Account>> relatedAccounts = findAccountsAndAncestors(accountSetId, delta.getAccountIds());
+        TreeMap<LocalDate, Map<String, AccountAmountHolder>> holderChanges = expandToRelatedAccounts(delta,
+                relatedAccounts);
+
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, AccountingPeriod.class);
+        if (movementOnly) {
+            Map<String, Map<String, AccountAmountHolder>> changesByPeriod = groupByPeriod(holderChanges,
+                    findPeriodBoundaries(accountSetId, holderChanges.firstKey()));
+            for (Entry<String, Map<String, AccountAmountHolder>> entry : changesByPeriod.entrySet()) {
+                bulkOperations.updateOne(new Query(Criteria.where("_id").is(entry.getKey())),
+                        amountHoldersIncrement(entry.getValue()));
+            }
+            bulkOperations.execute();
+            removeCheckpointsFrom(accountSetId, holderChanges.firstKey());
+            return;
+        }
+        for (Entry<LocalDate, Map<String, AccountAmountHolder>> entry : holderChanges.entrySet()) {
+            Query query = new Query(Criteria.where("accountSetId").is(accountSetId)
+                    .and("endDate").gte(entry.getKey()));
+            bulkOperations.updateMulti(query, amountHoldersIncrement(entry.getValue()));
+        }
+        bulkOperations.execute();
+    }
 
-        for (AccountingPeriod period : accountingPeriods) {
-            updatePeriodAmountHolders(period, relatedAccountIds, account.getBalanceDirection(), debitChange,
-                    creditChange);
-            updateAccountingPeriodCache(period);
+    /**
+     * 期初余额变化。累计模式下所有会计期间的余额都要调整，只保存发生额的模式下只调整第一个会计期间
+     */
+    @Transactional
+    @Caching(evict = {
+            @CacheEvict(value = "accountingPeriods", key = "#accountSetId + '_current'"),
+            @CacheEvict(value = "accountingPeriods", key = "#accountSetId + '_last'")
+    })
+    public void applyOpeningBalanceChanges(String accountSetId, Map<String, BigDecimal> changes) {
+        List<AccountingPeriod> accountingPeriods = findByAccountSetId(accountSetId);
+        if (movementOnly) {
+            accountingPeriods = accountingPeriods.stream()
+                    .min(Comparator.comparing(AccountingPeriod::getStartDate))
+                    .map(List::of)
+                    .orElse(List.of());
+        }
+        for (AccountingPeriod accountingPeriod : accountingPeriods) {
+            for (Entry<String, BigDecimal> entry : changes.entrySet()) {
+                AccountAmountHolder accountAmountHolder = accountingPeriod.getAmountHolders().get(entry.getKey());
+                if (accountAmountHolder != null) {
+                    accountAmountHolder.setBalance(accountAmountHolder.getBalance().add(entry.getValue()));
+                } else {
+                    // add new item
+                    accountAmountHolder = new AccountAmountHolder(BigDecimal.ZERO, BigDecimal.ZERO, entry.getValue());
+                    accountingPeriod.getAmountHolders().put(entry.getKey(), accountAmountHolder);
+                }
+            }
         }
         accountingPeriodRepository.saveAll(accountingPeriods);
+        if (movementOnly && !accountingPeriods.isEmpty()) {
+            removeCheckpointsFrom(accountSetId, accountingPeriods.get(0).getStartDate());
+        }
+    }
+
+    /**
+     * 末级账户有了第一个下级、交易都转给了下级：下级在各会计期间和检查点中接过它的金额。
+     * 只为叶子账户保存金额时去掉原账户的金额，否则原账户作为上级金额不变
+     */
+    @Override
+    @Transactional
+    @Caching(evict = {
+            @CacheEvict(value = "accountingPeriods", key = "#accountSetId + '_current'"),
+            @CacheEvict(value = "accountingPeriods", key = "#accountSetId + '_last'")
+    })
+    public void moveLeafHolders(String accountSetId, String fromAccountId, String toAccountId) {
+        foldHolders(accountSetId, fromAccountId, toAccountId, leafOnlyHolders);
+    }
+
+    /**
+     * 合并账户：原账户在各会计期间和检查点中的金额加到目标账户上，再去掉原账户的金额
+     */
+    @Override
+    @Transactional
+    @Caching(evict = {
+            @CacheEvict(value = "accountingPeriods", key = "#accountSetId + '_current'"),
+            @CacheEvict(value = "accountingPeriods", key = "#accountSetId + '_last'")
+    })
+    public void mergeHolders(String accountSetId, String sourceAccountId, String targetAccountId) {
+        foldHolders(accountSetId, sourceAccountId, targetAccountId, true);
+    }
+
+    /**
+     * 账户连同下级换了上级：按会计期间读出它的金额，一个bulkWrite把它从不再是祖先的账户中减去、加到新的祖先上。
+     * 只为叶子账户保存金额时上级的金额在读取时按科目树汇总，不需要调整
+     */
+    @Override
+    @Transactional
+    @Caching(evict = {
+            @CacheEvict(value = "accountingPeriods", key = "#accountSetId + '_current'"),
+            @CacheEvict(value = "accountingPeriods", key = "#accountSetId + '_last'")
+    })
+    public void moveHoldersBetweenAncestors(String accountSetId, String accountId,
+            Collection<String> removedAncestorIds, Collection<String> addedAncestorIds) {
+        if (leafOnlyHolders || (removedAncestorIds.isEmpty() && addedAncestorIds.isEmpty())) {
+            return;
+        }
+        moveHoldersBetweenAncestors(accountSetId, findHoldersByPeriod(accountSetId, accountId), removedAncestorIds,
+                addedAncestorIds);
+    }
+
+    @Override
+    @Transactional
+    @Caching(evict = {
+            @CacheEvict(value = "accountingPeriods", key = "#accountSetId + '_current'"),
+            @CacheEvict(value = "accountingPeriods", key = "#accountSetId + '_last'")
+    })
+    public void moveHoldersBetweenAncestors(String accountSetId, Map<String, AccountAmountHolder> amountsByPeriod,
+            Collection<String> removedAncestorIds, Collection<String> addedAncestorIds) {
+        if (leafOnlyHolders || amountsByPeriod.isEmpty()
+                || (removedAncestorIds.isEmpty() && addedAncestorIds.isEmpty())) {
+            return;
+        }
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, AccountingPeriod.class);
+        for (Entry<String, AccountAmountHolder> periodAmount : amountsByPeriod.entrySet()) {
+            AccountAmountHolder amount = periodAmount.getValue();
+            AccountAmountHolder negated = new AccountAmountHolder(amount.getTotalDebit().negate(),
+                    amount.getTotalCredit().negate(), amount.getBalance().negate());
+            Map<String, AccountAmountHolder> changes = new HashMap<>();
+            removedAncestorIds.forEach(id -> changes.put(id, negated));
+            addedAncestorIds.forEach(id -> changes.put(id, amount));
+            bulkOperations.updateOne(new Query(Criteria.where("_id").is(periodAmount.getKey())),
+                    amountHoldersIncrement(changes));
+        }
+        bulkOperations.execute();
+        // checkpoints are written again when later periods are closed
+        mongoTemplate.remove(new Query(Criteria.where("accountSetId").is(accountSetId)), BalanceCheckpoint.class);
+        bumpCheckpointGeneration(accountSetId);
+    }
+
+    @Override
+    public Map<String, AccountAmountHolder> findHoldersByPeriod(String accountSetId, String accountId) {
+        Query query = new Query(Criteria.where("accountSetId").is(accountSetId)
+                .and("amountHolders." + accountId).exists(true));
+        query.fields().include("amountHolders." + accountId);
+        Map<String, AccountAmountHolder> amounts = new HashMap<>();
+        for (AccountingPeriod period : mongoTemplate.find(query, AccountingPeriod.class)) {
+            amounts.put(period.getId(), period.getAmountHolders().get(accountId));
+        }
+        return amounts;
+    }
+
+    /**
+     * 累计金额直接保存在期间里时只投影出这一个账户；其他模式需要汇总或加上检查点，按整个期间解析后取出该账户
+     */
+    @Override
+    public AccountingPeriod findClosingBefore(String accountSetId, String accountId, LocalDate date) {
+        Query query = new Query(Criteria.where("accountSetId").is(accountSetId).and("endDate").lt(date))
+                .with(Sort.by(Sort.Direction.DESC, "endDate"));
+        boolean stored = !movementOnly && !leafOnlyHolders;
+        if (stored) {
+            query.fields().include("accountSetId").include("startDate").include("endDate")
+                    .include("amountHolders." + accountId);
+        }
+        AccountingPeriod period = mongoTemplate.findOne(query, AccountingPeriod.class);
+        if (period == null || stored) {
+            return period;
+        }
+        AccountAmountHolder holder = resolveAmountHolders(period).get(accountId);
+        Map<String, AccountAmountHolder> holders = new HashMap<>();
+        if (holder != null) {
+            holders.put(accountId, holder);
+        }
+        period.setAmountHolders(holders);
+        return period;
+    }
+
+    // target += source for the periods and checkpoints holding the source, one pipelined updateMulti each
+    // so no period is loaded
+    private void foldHolders(String accountSetId, String sourceId, String targetId, boolean removeSource) {
+        Query query = new Query(Criteria.where("accountSetId").is(accountSetId)
+                .and("amountHolders." + sourceId).exists(true));
+        mongoTemplate.updateMulti(query, foldHoldersUpdate(sourceId, targetId, removeSource)
+                .set("version").toValueOf(ArithmeticOperators.valueOf("version").add(1))
+                .set("updatedAt").toValue(LocalDateTime.now()), AccountingPeriod.class);
+        mongoTemplate.updateMulti(query, foldHoldersUpdate(sourceId, targetId, removeSource), BalanceCheckpoint.class);
+        bumpCheckpointGeneration(accountSetId);
+    }
+
+    private static AggregationUpdate foldHoldersUpdate(String sourceId, String targetId, boolean removeSource) {
+        AggregationUpdate update = AggregationUpdate.update();
+        for (String field : List.of("totalDebit", "totalCredit", "balance")) {
+            String target = "amountHolders." + targetId + "." + field;
+            update.set(target).toValueOf(ArithmeticOperators.valueOf(ConditionalOperators.ifNull(target).then(0))
+                    .add("amountHolders." + sourceId + "." + field));
+        }
+        return removeSource ? update.unset("amountHolders." + sourceId) : update;
+    }
+
+    // the posted accounts with their ancestors (itself first), from the account set's tree
+    private Map<String, List<Account>> findAccountsAndAncestors(String accountSetId, Collection<String> accountIds) {
+        AccountTree tree = accountTreeCache.get(accountSetId);
+        Map<String, List<Account>> result = new HashMap<>();
+        for (String accountId : accountIds) {
+            List<Account> chain = tree.getAncestors(accountId);
+            if (chain.isEmpty()) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Account not found");
+            }
+            result.put(accountId, chain);
+        }
+        return result;
+    }
+
+    // id, startDate and endDate of the periods ending on or after the date, in ascending order
+    private List<AccountingPeriod> findPeriodBoundaries(String accountSetId, LocalDate from) {
+        Query query = new Query(Criteria.where("accountSetId").is(accountSetId).and("endDate").gte(from))
+                .with(Sort.by(Sort.Direction.ASC, "endDate"));
+        query.fields().include("startDate").include("endDate");
+        return mongoTemplate.find(query, AccountingPeriod.class);
+    }
+
+    // the period holding a date is the first one ending on or after it, dates before the first period
+    // belong to the first period like opening balances do
+    private Map<String, Map<String, AccountAmountHolder>> groupByPeriod(
+            TreeMap<LocalDate, Map<String, AccountAmountHolder>> holderChanges, List<AccountingPeriod> periods) {
+        Map<String, Map<String, AccountAmountHolder>> changesByPeriod = new HashMap<>();
+        int index = 0;
+        for (Entry<LocalDate, Map<String, AccountAmountHolder>> entry : holderChanges.entrySet()) {
+            while (index < periods.size() && periods.get(index).getEndDate().isBefore(entry.getKey())) {
+                index++;
+            }
+            if (index == periods.size()) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND,
+                        "Accounting period not found for date " + entry.getKey());
+            }
+            addHolders(changesByPeriod.computeIfAbsent(periods.get(index).getId(), id -> new HashMap<>()),
+                    entry.getValue());
+        }
+        return changesByPeriod;
+    }
+
+    // checkpoints at or after the date include amounts that have just changed
+    private void removeCheckpointsFrom(String accountSetId, LocalDate date) {
+        mongoTemplate.remove(new Query(Criteria.where("accountSetId").is(accountSetId).and("endDate").gte(date)),
+                BalanceCheckpoint.class);
+        bumpCheckpointGeneration(accountSetId);
+    }
+
+    // every change to the checkpoints of an account set bumps its generation; a checkpoint computed under an
+    // older generation is not written, and a change racing a checkpoint write conflicts on this document
+    private void bumpCheckpointGeneration(String accountSetId) {
+        mongoTemplate.upsert(new Query(Criteria.where("_id").is(accountSetId)), new Update().inc("generation", 1L),
+                CHECKPOINT_GENERATIONS);
+    }
+
+    @Override
+    public long findCheckpointGeneration(String accountSetId) {
+        Document generation = mongoTemplate.findById(accountSetId, Document.class, CHECKPOINT_GENERATIONS);
+        return generation == null ? 0L : ((Number) generation.get("generation")).longValue();
+    }
+
+    /**
+     * 结账时，如果只保存本期发生额且距上一个检查点已有checkpointInterval个期间，为结账的期间写入检查点。
+     * 在结账的事务中进行；计算期间检查点被删除或改写过（代数变了）就不写
+     */
+    @Override
+    @Transactional
+    public void writeCheckpointIfDue(AccountingPeriod period) {
+        if (!movementOnly) {
+            return;
+        }
+        String accountSetId = period.getAccountSetId();
+        mongoTemplate.upsert(new Query(Criteria.where("_id").is(accountSetId)),
+                new Update().setOnInsert("generation", 0L), CHECKPOINT_GENERATIONS);
+        long generation = findCheckpointGeneration(accountSetId);
+        Cumulative cumulative = cumulativeAmountHolders(accountSetId, period.getEndDate());
+        if (cumulative.periods() < checkpointInterval) {
+            return;
+        }
+        // writing the generation document makes a concurrent change of the checkpoints conflict with this
+        // transaction instead of being missed by it
+        if (mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(accountSetId).and("generation").is(generation)),
+                new Update().currentDate("checkpointedAt"), CHECKPOINT_GENERATIONS).getMatchedCount() == 0) {
+            return;
+        }
+        mongoTemplate.upsert(new Query(Criteria.where("accountSetId").is(accountSetId)
+                        .and("endDate").is(period.getEndDate())),
+                new Update().set("amountHolders", cumulative.holders()).set("createdAt", LocalDateTime.now()),
+                BalanceCheckpoint.class);
+    }
+
+    // add every holder of source into target
+    private static void addHolders(Map<String, AccountAmountHolder> target, Map<String, AccountAmountHolder> source) {
+        for (Entry<String, AccountAmountHolder> entry : source.entrySet()) {
+            AccountAmountHolder holder = target.computeIfAbsent(entry.getKey(),
+                    id -> new AccountAmountHolder(BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO));
+            holder.setTotalDebit(holder.getTotalDebit().add(entry.getValue().getTotalDebit()));
+            holder.setTotalCredit(holder.getTotalCredit().add(entry.getValue().getTotalCredit()));
+            holder.setBalance(holder.getBalance().add(entry.getValue().getBalance()));
+        }
     }
 
     @Caching(evict = {
@@ -104,28 +431,47 @@ public class AccountingPeriodServiceImp implements AccountingPeriodService {
             evictAccountingPeriodCache(period);
         }
         mongoTemplate.remove(query, AccountingPeriod.class);
+        mongoTemplate.remove(query, BalanceCheckpoint.class);
+        bumpCheckpointGeneration(accountSetId);
     }
 
-    // update balances of related accounts in accountingPeriod
-    private void updatePeriodAmountHolders(AccountingPeriod period, List<String> relatedAccountIds,
-            AccountingDirection direction, BigDecimal debitChange, BigDecimal creditChange) {
-        Map<String, AccountAmountHolder> amountHolders = period.getAmountHolders();
-        for (String accountId : relatedAccountIds) {
-            AccountAmountHolder accountAmountHolder = amountHolders.get(accountId);
-            if (accountAmountHolder == null) {
-                throw new NoSuchElementException(
-                        "can find account id:" + accountId + " when update period amount holder");
-            }
-            accountAmountHolder.setTotalCredit(accountAmountHolder.getTotalCredit().add(creditChange));
-            accountAmountHolder.setTotalDebit(accountAmountHolder.getTotalDebit().add(debitChange));
-            if (direction == AccountingDirection.DEBIT) {
-                accountAmountHolder
-                        .setBalance(accountAmountHolder.getBalance().add(debitChange).subtract(creditChange));
-            } else {
-                accountAmountHolder
-                        .setBalance(accountAmountHolder.getBalance().add(creditChange).subtract(debitChange));
+    // $inc update of amountHolders.<accountId>.totalDebit/totalCredit/balance
+    private Update amountHoldersIncrement(Map<String, AccountAmountHolder> changes) {
+        Update update = new Update();
+        for (Entry<String, AccountAmountHolder> change : changes.entrySet()) {
+            String path = "amountHolders." + change.getKey() + ".";
+            update.inc(path + "totalDebit", change.getValue().getTotalDebit())
+                    .inc(path + "totalCredit", change.getValue().getTotalCredit())
+                    .inc(path + "balance", change.getValue().getBalance());
+        }
+        return update.inc("version", 1).currentDate("updatedAt");
+    }
+
+    // spread each posted account's change to the account and all its ancestors (only the account itself in
+    // leaf-only mode), the balance change follows the balance direction of the posted account
+    private TreeMap<LocalDate, Map<String, AccountAmountHolder>> expandToRelatedAccounts(PeriodAmountDelta delta,
+            Map<String, List<Account>> relatedAccounts) {
+        TreeMap<LocalDate, Map<String, AccountAmountHolder>> holderChanges = new TreeMap<>();
+        for (Entry<LocalDate, Map<String, AccountAmountHolder>> dateEntry : delta.getChanges().entrySet()) {
+            Map<String, AccountAmountHolder> changes = holderChanges.computeIfAbsent(dateEntry.getKey(),
+                    d -> new HashMap<>());
+            for (Entry<String, AccountAmountHolder> entry : dateEntry.getValue().entrySet()) {
+                List<Account> accounts = relatedAccounts.get(entry.getKey());
+                BigDecimal debitChange = entry.getValue().getTotalDebit();
+                BigDecimal creditChange = entry.getValue().getTotalCredit();
+                BigDecimal balanceChange = accounts.get(0).getBalanceDirection() == AccountingDirection.DEBIT
+                        ? debitChange.subtract(creditChange)
+                        : creditChange.subtract(debitChange);
+                for (Account account : leafOnlyHolders ? accounts.subList(0, 1) : accounts) {
+                    AccountAmountHolder change = changes.computeIfAbsent(account.getId(),
+                            id -> new AccountAmountHolder(BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO));
+                    change.setTotalDebit(change.getTotalDebit().add(debitChange));
+                    change.setTotalCredit(change.getTotalCredit().add(creditChange));
+                    change.setBalance(change.getBalance().add(balanceChange));
+                }
             }
         }
+        return holderChanges;
     }
 
     // create accounting periods from a start accounting period to an end date
@@ -162,12 +508,14 @@ public class AccountingPeriodServiceImp implements AccountingPeriodService {
     public void antiCloseAccountingPeriod(AccountingPeriod accountingPeriod, LocalDate startDate) {
         Query query = new Query(Criteria.where("accountSetId").is(accountingPeriod.getAccountSetId())
                 .and("startDate").gte(startDate).and("endDate").lte(accountingPeriod.getEndDate()));
-        List<AccountingPeriod> accountingPeriods = mongoTemplate.find(query, AccountingPeriod.class);
-        for (AccountingPeriod period : accountingPeriods) {
-            period.setClosed(false);
-            updateAccountingPeriodCache(period);
-        }
-        accountingPeriodRepository.saveAll(accountingPeriods);
+        // re-read on every attempt, a posting may have changed the periods in between
+        periodUpdateRetrier.inTransaction(accountingPeriod.getAccountSetId(), "antiClose", () -> {
+            List<AccountingPeriod> accountingPeriods = mongoTemplate.find(query, AccountingPeriod.class);
+            for (AccountingPeriod period : accountingPeriods) {
+                period.setClosed(false);
+            }
+            accountingPeriodRepository.saveAll(accountingPeriods).forEach(this::updateAccountingPeriodCache);
+        });
     }
 
     // find current accounting period(mean the last open accounting period)
@@ -202,19 +550,6 @@ public class AccountingPeriodServiceImp implements AccountingPeriodService {
         return accountingPeriodRepository.save(accountingPeriod);
     }
 
-    private List<AccountingPeriod> findRelevantAccountingPeriods(String accountSetId, LocalDate modifiedDate) {
-
-        Query query = new Query(Criteria.where("accountSetId").is(accountSetId)
-                .and("endDate").gte(modifiedDate));
-        return mongoTemplate.find(query, AccountingPeriod.class);
-    }
-
-    private List<String> getRelatedAccountIds(String accountId) {
-        return accountService.findAccountAndAllAncestors(accountId).stream()
-                .map(Account::getId)
-                .collect(Collectors.toList());
-    }
-
     private String generatePeriodName(YearMonth yearMonth) {
         return yearMonth.format(DateTimeFormatter.ofPattern("yyyy年MM月"));
     }
@@ -227,7 +562,8 @@ public class AccountingPeriodServiceImp implements AccountingPeriodService {
         newPeriod.setName(generatePeriodName(nextMonth));
         newPeriod.setStartDate(nextMonth.atDay(1));
         newPeriod.setEndDate(nextMonth.atEndOfMonth());
-        newPeriod.setAmountHolders(currentPeriod.getAmountHolders());
+        // 只保存发生额时新期间从零开始，否则延续上期的累计金额
+        newPeriod.setAmountHolders(movementOnly ? new HashMap<>() : currentPeriod.getAmountHolders());
         // find all transactions in current period
 
         return newPeriod;
@@ -258,6 +594,70 @@ public class AccountingPeriodServiceImp implements AccountingPeriodService {
         // the cache eviction.
     }
 
+    /**
+     * 会计期间中所有账户的金额。叶子模式下上级账户的金额由其下所有叶子账户一次汇总得到，
+     * 与逐级写入祖先账户的结果一致；只保存发生额的模式下先由检查点和之后各期发生额得到累计金额
+     */
+    public Map<String, AccountAmountHolder> resolveAmountHolders(AccountingPeriod period) {
+        Map<String, AccountAmountHolder> holders = movementOnly
+                ? cumulativeAmountHolders(period.getAccountSetId(), period.getEndDate()).holders()
+                : period.getAmountHolders();
+        if (!leafOnlyHolders) {
+            return holders;
+        }
+        return rollUpToAncestors(holders, accountTreeCache.get(period.getAccountSetId()));
+    }
+
+    // cumulative amounts and the number of periods summed on top of the checkpoint
+    private record Cumulative(Map<String, AccountAmountHolder> holders, int periods) {
+    }
+
+    // latest checkpoint at or before the end date plus the movements of the periods after it, in two queries.
+    // reads never write checkpoints, they are written by writeCheckpointIfDue when a period is closed
+    private Cumulative cumulativeAmountHolders(String accountSetId, LocalDate periodEndDate) {
+        Query checkpointQuery = new Query(Criteria.where("accountSetId").is(accountSetId)
+                .and("endDate").lte(periodEndDate))
+                .with(Sort.by(Sort.Direction.DESC, "endDate"));
+        BalanceCheckpoint checkpoint = mongoTemplate.findOne(checkpointQuery, BalanceCheckpoint.class);
+
+        Criteria endDate = Criteria.where("endDate").lte(periodEndDate);
+        if (checkpoint != null) {
+            endDate.gt(checkpoint.getEndDate());
+        }
+        Query movementQuery = new Query(Criteria.where("accountSetId").is(accountSetId)).addCriteria(endDate)
+                .with(Sort.by(Sort.Direction.ASC, "endDate"));
+        movementQuery.fields().include("amountHolders");
+        List<AccountingPeriod> movements = mongoTemplate.find(movementQuery, AccountingPeriod.class);
+
+        Map<String, AccountAmountHolder> holders = checkpoint == null ? new HashMap<>() : checkpoint.getAmountHolders();
+        for (AccountingPeriod movement : movements) {
+            addHolders(holders, movement.getAmountHolders());
+        }
+        return new Cumulative(holders, movements.size());
+    }
+
+    // sum the holders of leaf accounts into themselves and every ancestor
+    private Map<String, AccountAmountHolder> rollUpToAncestors(Map<String, AccountAmountHolder> leafHolders,
+            AccountTree tree) {
+        Map<String, AccountAmountHolder> result = new HashMap<>();
+        for (Account account : tree.getAccounts()) {
+            result.put(account.getId(), new AccountAmountHolder(BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO));
+        }
+        for (Entry<String, AccountAmountHolder> entry : leafHolders.entrySet()) {
+            AccountAmountHolder leafHolder = entry.getValue();
+            if (!tree.isLeaf(entry.getKey())) {
+                continue;
+            }
+            for (Account current : tree.getAncestors(entry.getKey())) {
+                AccountAmountHolder holder = result.get(current.getId());
+                holder.setTotalDebit(holder.getTotalDebit().add(leafHolder.getTotalDebit()));
+                holder.setTotalCredit(holder.getTotalCredit().add(leafHolder.getTotalCredit()));
+                holder.setBalance(holder.getBalance().add(leafHolder.getBalance()));
+            }
+        }
+        return result;
+    }
+
     @Override
     public List<AccountingPeriod> findByAccountSetId(String accountSetId) {
         return mongoTemplate.find(Query.query(Criteria.where("accountSetId").is(accountSetId)),AccountingPeriod.class);
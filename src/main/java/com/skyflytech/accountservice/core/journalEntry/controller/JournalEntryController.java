@@ -2,15 +2,20 @@ package com.skyflytech.accountservice.core.journalEntry.controller;
 
 import com.skyflytech.accountservice.core.journalEntry.model.JournalEntry;
 import com.skyflytech.accountservice.core.journalEntry.model.JournalEntryView;
+import com.skyflytech.accountservice.core.journalEntry.service.AsyncPostingService;
+import com.skyflytech.accountservice.core.journalEntry.service.GroupCommitPoster;
 import com.skyflytech.accountservice.core.journalEntry.service.JournalEntryService;
-import com.skyflytech.accountservice.core.journalEntry.service.ProcessJournalEntry;
 import com.skyflytech.accountservice.security.model.CurrentAccountSetIdHolder;
+import com.skyflytech.accountservice.utils.StreamingExporter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.time.LocalDate;
 import java.util.List;
@@ -26,21 +31,66 @@ public class JournalEntryController {
 
     private final JournalEntryService journalEntryService;
     private final CurrentAccountSetIdHolder currentAccountSetIdHolder;
-    private final ProcessJournalEntry processJournalEntryView;
+    private final AsyncPostingService asyncPostingService;
+    private final GroupCommitPoster groupCommitPoster;
     @Value("${spring.profiles.active}")
     private String activeProfile;
 
     @Autowired
-    public JournalEntryController(JournalEntryService journalEntryService, CurrentAccountSetIdHolder currentAccountSetIdHolder, ProcessJournalEntry processJournalEntryView) {
+    public JournalEntryController(JournalEntryService journalEntryService, CurrentAccountSetIdHolder currentAccountSetIdHolder,
+                                  AsyncPostingService asyncPostingService,
+                                  GroupCommitPoster groupCommitPoster) {
         this.journalEntryService = journalEntryService;
         this.currentAccountSetIdHolder = currentAccountSetIdHolder;
-        this.processJournalEntryView = processJournalEntryView;
+        this.asyncPostingService = asyncPostingService;
+        this.groupCommitPoster = groupCommitPoster;
     }
 
     @PostMapping("/process")
     public ResponseEntity<?> processJournalEntryView(@RequestBody JournalEntryView journalEntryView) {
         try {
-            return ResponseEntity.ok().body(processJournalEntryView.processJournalEntryView(journalEntryView));
+            // 同一账套同时到达的记账请求合并在一个事务中记账
+            return ResponseEntity.ok().body(groupCommitPoster.post(currentAccountSetIdHolder.getCurrentAccountSetId(),
+                    journalEntryView));
+        }catch (Exception e){
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(e.getMessage());
+        }
+    }
+
+    @PostMapping("/batch")
+    public ResponseEntity<?> processJournalEntryViews(@RequestBody List<JournalEntryView> journalEntryViews) {
+        try {
+            return ResponseEntity.ok().body(groupCommitPoster.postBatch(currentAccountSetIdHolder.getCurrentAccountSetId(),
+                    journalEntryViews));
+        }catch (Exception e){
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(e.getMessage());
+        }
+    }
+
+    // 异步记账：写入本地日志后立即返回序号，凭证随后在后台记账
+    @PostMapping("/async")
+    public ResponseEntity<?> submitJournalEntryView(@RequestBody JournalEntryView journalEntryView) {
+        try {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(asyncPostingService.submit(
+                    currentAccountSetIdHolder.getCurrentAccountSetId(), journalEntryView));
+        }catch (ResponseStatusException e){
+            // 未知序号404、未启用503、校验失败400，原样返回
+            return ResponseEntity.status(e.getStatusCode()).body(e.getReason());
+        }catch (Exception e){
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(e.getMessage());
+        }
+    }
+
+    // 查询异步记账的状态，waitMillis大于0时等待记账完成（最多30秒）
+    @GetMapping("/async/{seq}")
+    public ResponseEntity<?> getAsyncPostingStatus(@PathVariable long seq,
+                                                   @RequestParam(defaultValue = "0") long waitMillis) {
+        try {
+            return ResponseEntity.ok().body(asyncPostingService.getStatus(
+                    currentAccountSetIdHolder.getCurrentAccountSetId(), seq, waitMillis));
+        }catch (ResponseStatusException e){
+            // 未知序号404、未启用503、校验失败400，原样返回
+            return ResponseEntity.status(e.getStatusCode()).body(e.getReason());
         }catch (Exception e){
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(e.getMessage());
         }
@@ -52,6 +102,20 @@ public class JournalEntryController {
         return ResponseEntity.ok().body(journalEntryService.getAllJournalEntries(currentAccountSetIdHolder.getCurrentAccountSetId()));
     }
 
+    // 流式导出，format为ndjson或csv，内存占用与导出的数量无关
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportJournalEntries(
+            @RequestParam(defaultValue = StreamingExporter.NDJSON) String format,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate startDate,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate endDate) {
+        StreamingResponseBody body = journalEntryService.exportJournalEntries(
+                currentAccountSetIdHolder.getCurrentAccountSetId(), startDate, endDate, format);
+        return ResponseEntity.ok()
+                .contentType(StreamingExporter.mediaType(format))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"journal-entries." + format + "\"")
+                .body(body);
+    }
+
     //warn : just for developing stage and test
     @PostMapping("/delete/all")
     public ResponseEntity<String> deleteAll() {
@@ -0,0 +1,28 @@
+package com.skyflytech.accountservice.core.journalEntry.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 异步记账的处理状态，客户端用序号查询或等待
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AsyncPostingStatus {
+
+    public enum State {
+        PENDING,  // 已写入日志，等待记账
+        APPLIED,  // 已记账
+        FAILED    // 记账失败，message为原因
+    }
+
+    private long seq;
+    private String journalEntryId;
+    private State state;
+    private String message;
+    @JsonIgnore
+    private String accountSetId;
+}
@@ -14,7 +14,8 @@ import java.util.Set;
 @Data
 @NoArgsConstructor
 @Document(collection = "journalEntries")
-@CompoundIndex(name = "accountSet_date_idx", def = "{'accountSetId': 1, 'modifiedDate': 1}")
+// date ranges of an account set, and exports in (modifiedDate, _id) order straight from the index
+@CompoundIndex(name = "accountSet_date_id_idx", def = "{'accountSetId': 1, 'modifiedDate': 1, '_id': 1}")
 public class JournalEntry  {
 
     @Id
@@ -0,0 +1,37 @@
+package com.skyflytech.accountservice.core.journalEntry.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * 异步记账日志中已处理的记录，与记账写在同一个事务中。
+ * 重启时序号超过PostingLogWatermark的记录据此跳过；序号的状态已不在内存中时也据此回答查询。
+ * 只保留7天，不作为防止重复记账的唯一依据
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "posting_log_markers")
+public class PostingLogMarker {
+    // logId:seq
+    @Id
+    private String id;
+
+    private String accountSetId;
+
+    private String journalEntryId;
+
+    // APPLIED or FAILED
+    private AsyncPostingStatus.State state;
+
+    private String message;
+
+    @Indexed(expireAfter = "7d")
+    private LocalDateTime appliedAt;
+}
@@ -0,0 +1,16 @@
+package com.skyflytech.accountservice.core.journalEntry.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 异步记账日志中的一条记录：要记入的账套和凭证。序号保存在日志记录头中，不在内容里
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PostingLogRecord {
+    private String accountSetId;
+    private JournalEntryView journalEntryView;
+}
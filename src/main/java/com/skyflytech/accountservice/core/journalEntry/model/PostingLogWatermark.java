@@ -0,0 +1,26 @@
+package com.skyflytech.accountservice.core.journalEntry.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * 一个异步记账日志已处理到的序号：不大于appliedSeq的记录都已记账或已失败，重启回放时直接跳过
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "posting_log_watermarks")
+public class PostingLogWatermark {
+    // the log id of PostingWriteAheadLog
+    @Id
+    private String id;
+
+    private long appliedSeq;
+
+    private LocalDateTime updatedAt;
+}
@@ -0,0 +1,392 @@
+package com.skyflytech.accountservice.core.journalEntry.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.skyflytech.accountservice.core.accountingPeriod.service.PeriodUpdateRetrier;
+import com.skyflytech.accountservice.core.journalEntry.model.AsyncPostingStatus;
+import com.skyflytech.accountservice.core.journalEntry.model.JournalEntry;
+import com.skyflytech.accountservice.core.journalEntry.model.JournalEntryView;
+import com.skyflytech.accountservice.core.journalEntry.model.PostingLogMarker;
+import com.skyflytech.accountservice.core.journalEntry.model.PostingLogRecord;
+import com.skyflytech.accountservice.core.journalEntry.model.PostingLogWatermark;
+import com.skyflytech.accountservice.utils.Utils;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 异步记账：校验通过的凭证先追加到本地预写日志并立即返回序号，后台线程按账套分批记账。
+ * 客户端可以用序号查询或等待记账结果。每批处理完后在PostingLogWatermark中记下已处理到的序号，
+ * 重启时只回放序号更大的记录，其中已记账的由与记账同一事务写入的PostingLogMarker识别，不会重复记账。
+ */
+@Service
+public class AsyncPostingService {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncPostingService.class);
+    private static final int MAX_STATUSES = 10000;
+    private static final long MAX_WAIT_MILLIS = 30000;
+
+    private final ProcessJournalEntry processJournalEntry;
+    private final PostingExecutor postingExecutor;
+    private final MongoTemplate mongoTemplate;
+    private final PeriodUpdateRetrier periodUpdateRetrier;
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean fsync;
+    private final int batchSize;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    // seq -> status of the latest records, guarded by itself
+    private final Map<Long, AsyncPostingStatus> statuses = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, AsyncPostingStatus> eldest) {
+            return size() > MAX_STATUSES;
+        }
+    };
+    // every record up to this seq has been applied or has failed, guarded by appliedMonitor
+    private long appliedSeq;
+    private final Object appliedMonitor = new Object();
+    private PostingWriteAheadLog log;
+    private Thread applier;
+
+    // a record waiting to be applied, the views are decoded again for every attempt since posting modifies them
+    private record Pending(long seq, String accountSetId, String journalEntryId, byte[] payload) {
+    }
+
+    @Autowired
+    public AsyncPostingService(ProcessJournalEntry processJournalEntry,
+                               PostingExecutor postingExecutor,
+                               MongoTemplate mongoTemplate,
+                               PeriodUpdateRetrier periodUpdateRetrier,
+                               ObjectMapper objectMapper,
+                               @Value("${accounting.posting.wal.enabled:false}") boolean enabled,
+                               @Value("${accounting.posting.wal.dir:./data/posting-wal}") String directory,
+                               @Value("${accounting.posting.wal.segment-size:67108864}") int segmentSize,
+                               @Value("${accounting.posting.wal.fsync:true}") boolean fsync,
+                               @Value("${accounting.posting.wal.batch-size:256}") int batchSize) {
+        this.processJournalEntry = processJournalEntry;
+        this.postingExecutor = postingExecutor;
+        this.mongoTemplate = mongoTemplate;
+        this.periodUpdateRetrier = periodUpdateRetrier;
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.directory = Path.of(directory);
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        this.batchSize = batchSize;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        log = new PostingWriteAheadLog(directory, segmentSize, fsync);
+        // records up to the watermark are done, the segment being written is never deleted so they may still be
+        // in the log however long ago they were applied
+        PostingLogWatermark watermark = mongoTemplate.findById(log.getLogId(), PostingLogWatermark.class);
+        long watermarkSeq = watermark == null ? 0 : watermark.getAppliedSeq();
+        List<PostingWriteAheadLog.Record> records = log.open().stream()
+                .filter(record -> record.seq() > watermarkSeq)
+                .toList();
+        // 日志中水位之后的记录可能已经记账，由applier根据marker跳过
+        appliedSeq = records.isEmpty() ? log.getLastSeq() : records.get(0).seq() - 1;
+        for (PostingWriteAheadLog.Record record : records) {
+            try {
+                PostingLogRecord logRecord = objectMapper.readValue(record.payload(), PostingLogRecord.class);
+                String journalEntryId = logRecord.getJournalEntryView().getJournalEntry().getId();
+                queue.add(new Pending(record.seq(), logRecord.getAccountSetId(), journalEntryId, record.payload()));
+                putStatus(new AsyncPostingStatus(record.seq(), journalEntryId,
+                        AsyncPostingStatus.State.PENDING, null, logRecord.getAccountSetId()));
+            } catch (IOException e) {
+                logger.error("Unreadable posting log record {}: {}", record.seq(), e.getMessage());
+                queue.add(new Pending(record.seq(), null, null, record.payload()));
+            }
+        }
+        if (!records.isEmpty()) {
+            logger.info("Replaying {} posting log records", records.size());
+        }
+        applier = new Thread(this::applyLoop, "posting-log-applier");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    @PreDestroy
+    public void stop() throws IOException, InterruptedException {
+        if (applier != null) {
+            applier.interrupt();
+            applier.join(MAX_WAIT_MILLIS);
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * 校验凭证并写入日志，返回序号。新凭证在这里就分配ID，客户端可以立即得到凭证ID
+     */
+    public AsyncPostingStatus submit(String accountSetId, JournalEntryView journalEntryView) {
+        if (!enabled) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Asynchronous posting is disabled.");
+        }
+        processJournalEntry.validateJournalEntryViews(accountSetId, List.of(journalEntryView));
+        JournalEntry journalEntry = journalEntryView.getJournalEntry();
+        if (!Utils.isNotEmpty(journalEntry.getId())) {
+            LocalDate now = LocalDate.now();
+            journalEntry.setCreatedDate(now);
+            if (journalEntry.getModifiedDate() == null) {
+                journalEntry.setModifiedDate(now);
+            }
+            journalEntry.setId(UUID.randomUUID().toString());
+        }
+        try {
+            byte[] payload = objectMapper.writeValueAsBytes(new PostingLogRecord(accountSetId, journalEntryView));
+            // append and enqueue together so that the queue is in log order
+            synchronized (queue) {
+                long seq = log.append(payload);
+                AsyncPostingStatus status = new AsyncPostingStatus(seq, journalEntry.getId(),
+                        AsyncPostingStatus.State.PENDING, null, accountSetId);
+                putStatus(status);
+                queue.add(new Pending(seq, accountSetId, journalEntry.getId(), payload));
+                return status;
+            }
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                    "Failed to write the posting log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 查询记录的状态，waitMillis大于0时最多等待这么久直到记录处理完成
+     */
+    public AsyncPostingStatus getStatus(String accountSetId, long seq, long waitMillis) throws InterruptedException {
+        if (!enabled) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Asynchronous posting is disabled.");
+        }
+        if (seq <= 0 || seq > log.getLastSeq()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Posting " + seq + " not found.");
+        }
+        long deadline = System.currentTimeMillis() + Math.min(waitMillis, MAX_WAIT_MILLIS);
+        synchronized (appliedMonitor) {
+            for (long remaining = deadline - System.currentTimeMillis(); appliedSeq < seq && remaining > 0;
+                 remaining = deadline - System.currentTimeMillis()) {
+                appliedMonitor.wait(remaining);
+            }
+        }
+        AsyncPostingStatus status;
+        synchronized (statuses) {
+            AsyncPostingStatus current = statuses.get(seq);
+            status = current == null ? null : new AsyncPostingStatus(current.getSeq(), current.getJournalEntryId(),
+                    current.getState(), current.getMessage(), current.getAccountSetId());
+        }
+        if (status == null) {
+            long applied;
+            synchronized (appliedMonitor) {
+                applied = appliedSeq;
+            }
+            if (seq > applied) {
+                // still queued but too many newer records to keep its details
+                return new AsyncPostingStatus(seq, null, AsyncPostingStatus.State.PENDING, null, accountSetId);
+            }
+            // processed before a restart, or too old to keep the details
+            PostingLogMarker marker = mongoTemplate.findById(markerId(seq), PostingLogMarker.class);
+            if (marker == null || !accountSetId.equals(marker.getAccountSetId())) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Posting " + seq + " not found.");
+            }
+            return new AsyncPostingStatus(seq, marker.getJournalEntryId(), stateOf(marker), marker.getMessage(),
+                    marker.getAccountSetId());
+        }
+        if (!accountSetId.equals(status.getAccountSetId())) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Posting " + seq + " not found.");
+        }
+        return status;
+    }
+
+    private void applyLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            // a batch that failed is retried as it is, without waiting for new records
+            if (batch.isEmpty()) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                queue.drainTo(batch, batchSize - 1);
+            }
+            long lastSeq = batch.get(batch.size() - 1).seq();
+            try {
+                applyBatch(batch);
+                saveWatermark(lastSeq);
+            } catch (RuntimeException e) {
+                // Mongo unavailable and the like, keep the records and try again later.
+                // records of the batch that did get applied are skipped next time by their markers
+                logger.error("Failed to apply posting log records, retrying: {}", e.getMessage());
+                if (!pause()) {
+                    return;
+                }
+                continue;
+            }
+            markApplied(lastSeq);
+            batch.clear();
+        }
+    }
+
+    // apply a batch grouped by account set, one transaction per set in log order
+    private void applyBatch(List<Pending> batch) {
+        Map<String, PostingLogMarker> markers = findMarkers(batch);
+        Map<String, List<Pending>> bySet = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            PostingLogMarker marker = markers.get(markerId(pending.seq()));
+            if (marker != null) {
+                updateStatus(pending.seq(), stateOf(marker), marker.getMessage());
+            } else if (pending.accountSetId() == null) {
+                fail(pending, "Unreadable posting log record.");
+            } else {
+                bySet.computeIfAbsent(pending.accountSetId(), id -> new ArrayList<>()).add(pending);
+            }
+        }
+        for (Map.Entry<String, List<Pending>> entry : bySet.entrySet()) {
+            try {
+                post(entry.getKey(), entry.getValue());
+                entry.getValue().forEach(pending -> updateStatus(pending.seq(), AsyncPostingStatus.State.APPLIED, null));
+            } catch (TransientDataAccessException | DataAccessResourceFailureException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                // one bad entry must not hold back the others, post them one by one
+                for (Pending pending : entry.getValue()) {
+                    try {
+                        post(entry.getKey(), List.of(pending));
+                        updateStatus(pending.seq(), AsyncPostingStatus.State.APPLIED, null);
+                    } catch (TransientDataAccessException | DataAccessResourceFailureException single) {
+                        throw single;
+                    } catch (RuntimeException single) {
+                        fail(pending, single instanceof ResponseStatusException status ? status.getReason()
+                                : single.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private void post(String accountSetId, List<Pending> records) {
+        postingExecutor.execute(accountSetId, () -> periodUpdateRetrier.inTransaction(accountSetId, "asyncPosting", () -> {
+            List<JournalEntryView> journalEntryViews = new ArrayList<>();
+            for (Pending pending : records) {
+                journalEntryViews.add(decode(pending).getJournalEntryView());
+            }
+            processJournalEntry.postJournalEntryViews(accountSetId, journalEntryViews);
+            mongoTemplate.insertAll(records.stream()
+                    .map(pending -> marker(pending, AsyncPostingStatus.State.APPLIED, null))
+                    .toList());
+            return null;
+        }));
+    }
+
+    // a failed record is marked as well, replaying it would fail the same way
+    private void fail(Pending pending, String message) {
+        mongoTemplate.save(marker(pending, AsyncPostingStatus.State.FAILED, message));
+        updateStatus(pending.seq(), AsyncPostingStatus.State.FAILED, message);
+    }
+
+    // markers written before the state was kept are all for applied records
+    private static AsyncPostingStatus.State stateOf(PostingLogMarker marker) {
+        return marker.getState() == null ? AsyncPostingStatus.State.APPLIED : marker.getState();
+    }
+
+    private PostingLogMarker marker(Pending pending, AsyncPostingStatus.State state, String message) {
+        return new PostingLogMarker(markerId(pending.seq()), pending.accountSetId(), pending.journalEntryId(),
+                state, message, LocalDateTime.now());
+    }
+
+    private PostingLogRecord decode(Pending pending) {
+        try {
+            return objectMapper.readValue(pending.payload(), PostingLogRecord.class);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unreadable posting log record.", e);
+        }
+    }
+
+    private Map<String, PostingLogMarker> findMarkers(List<Pending> batch) {
+        List<String> ids = batch.stream().map(pending -> markerId(pending.seq())).toList();
+        Map<String, PostingLogMarker> found = new HashMap<>();
+        mongoTemplate.find(new Query(Criteria.where("_id").in(ids)), PostingLogMarker.class)
+                .forEach(marker -> found.put(marker.getId(), marker));
+        return found;
+    }
+
+    // the batch counts as done only once this is stored, the markers expire and cannot guard a replay alone
+    private void saveWatermark(long seq) {
+        mongoTemplate.upsert(new Query(Criteria.where("_id").is(log.getLogId())),
+                new Update().max("appliedSeq", seq).set("updatedAt", LocalDateTime.now()),
+                PostingLogWatermark.class);
+    }
+
+    private void markApplied(long seq) {
+        synchronized (appliedMonitor) {
+            appliedSeq = seq;
+            appliedMonitor.notifyAll();
+        }
+        try {
+            log.deleteSegmentsUpTo(seq);
+        } catch (IOException e) {
+            logger.warn("Failed to delete applied posting log segments: {}", e.getMessage());
+        }
+    }
+
+    private String markerId(long seq) {
+        return log.getLogId() + ":" + seq;
+    }
+
+    private void putStatus(AsyncPostingStatus status) {
+        synchronized (statuses) {
+            statuses.put(status.getSeq(), status);
+        }
+    }
+
+    private void updateStatus(long seq, AsyncPostingStatus.State state, String message) {
+        synchronized (statuses) {
+            AsyncPostingStatus status = statuses.get(seq);
+            if (status != null) {
+                status.setState(state);
+                status.setMessage(message);
+            }
+        }
+    }
+
+    private boolean pause() {
+        try {
+            Thread.sleep(1000);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
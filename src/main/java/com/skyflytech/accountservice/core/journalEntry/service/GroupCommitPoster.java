@@ -0,0 +1,132 @@
+package com.skyflytech.accountservice.core.journalEntry.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.skyflytech.accountservice.core.accountingPeriod.service.PeriodUpdateRetrier;
+import com.skyflytech.accountservice.core.journalEntry.model.JournalEntryView;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 记账的组提交：同一账套在一个短时间窗口内（默认2ms或64张凭证）到达的记账请求合并成一次批量记账，
+ * 在一个Mongo事务中写入并只更新一次会计期间，然后分别返回给各自的调用者。
+ * 合并记账失败时（例如其中一张凭证不平衡）逐张重新记账，每个调用者得到自己的结果或错误。
+ */
+@Service
+public class GroupCommitPoster {
+
+    private final ProcessJournalEntry processJournalEntry;
+    private final PostingExecutor postingExecutor;
+    private final PeriodUpdateRetrier periodUpdateRetrier;
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final long windowMillis;
+    private final int maxEntries;
+    // accountSetId -> postings waiting for the next flush, guarded by itself
+    private final Map<String, List<PendingPosting>> pending = new HashMap<>();
+
+    private record PendingPosting(JournalEntryView journalEntryView, CompletableFuture<JournalEntryView> result) {
+    }
+
+    @Autowired
+    public GroupCommitPoster(ProcessJournalEntry processJournalEntry,
+                             PostingExecutor postingExecutor,
+                             PeriodUpdateRetrier periodUpdateRetrier,
+                             ObjectMapper objectMapper,
+                             @Value("${accounting.posting.group-commit.enabled:true}") boolean enabled,
+                             @Value("${accounting.posting.group-commit.window-millis:2}") long windowMillis,
+                             @Value("${accounting.posting.group-commit.max-entries:64}") int maxEntries) {
+        this.processJournalEntry = processJournalEntry;
+        this.postingExecutor = postingExecutor;
+        this.periodUpdateRetrier = periodUpdateRetrier;
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.windowMillis = windowMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * 把一张凭证记入账套并等待结果，效果与单独记账相同
+     */
+    public JournalEntryView post(String accountSetId, JournalEntryView journalEntryView) {
+        if (!enabled || postingExecutor.isOnLane()) {
+            return postBatch(accountSetId, List.of(journalEntryView)).get(0);
+        }
+        PendingPosting posting = new PendingPosting(journalEntryView, new CompletableFuture<>());
+        int size;
+        synchronized (pending) {
+            List<PendingPosting> group = pending.computeIfAbsent(accountSetId, id -> new ArrayList<>());
+            group.add(posting);
+            size = group.size();
+        }
+        if (size >= maxEntries) {
+            postingExecutor.schedule(accountSetId, () -> flush(accountSetId), 0);
+        } else if (size == 1) {
+            postingExecutor.schedule(accountSetId, () -> flush(accountSetId), windowMillis);
+        }
+        try {
+            return posting.result().get();
+        } catch (ExecutionException e) {
+            throw PostingExecutor.unwrap(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Posting was interrupted.");
+        }
+    }
+
+    /**
+     * 不等待窗口，直接把一批凭证作为一次记账记入账套
+     */
+    public List<JournalEntryView> postBatch(String accountSetId, List<JournalEntryView> journalEntryViews) {
+        return postingExecutor.execute(accountSetId, () -> postWithRetry(accountSetId, journalEntryViews));
+    }
+
+    // posting fills in ids, so every attempt posts fresh copies and the originals can be posted again
+    private List<JournalEntryView> postWithRetry(String accountSetId, List<JournalEntryView> journalEntryViews) {
+        return periodUpdateRetrier.inTransaction(accountSetId, "posting", () -> processJournalEntry
+                .postJournalEntryViews(accountSetId, journalEntryViews.stream().map(this::copyOf).toList()));
+    }
+
+    private JournalEntryView copyOf(JournalEntryView journalEntryView) {
+        return objectMapper.convertValue(journalEntryView, JournalEntryView.class);
+    }
+
+    // runs on the lane of the account set, so it never overlaps another posting to the same set
+    private void flush(String accountSetId) {
+        List<PendingPosting> group;
+        synchronized (pending) {
+            group = pending.remove(accountSetId);
+        }
+        if (group == null) {
+            return;
+        }
+        if (group.size() > 1) {
+            try {
+                List<JournalEntryView> results = postWithRetry(accountSetId,
+                        group.stream().map(PendingPosting::journalEntryView).toList());
+                for (int i = 0; i < group.size(); i++) {
+                    group.get(i).result().complete(results.get(i));
+                }
+                return;
+            } catch (RuntimeException e) {
+                // fall through and find out which entries fail
+            }
+        }
+        for (PendingPosting posting : group) {
+            try {
+                posting.result().complete(postWithRetry(accountSetId, List.of(posting.journalEntryView())).get(0));
+            } catch (RuntimeException e) {
+                posting.result().completeExceptionally(e);
+            }
+        }
+    }
+}
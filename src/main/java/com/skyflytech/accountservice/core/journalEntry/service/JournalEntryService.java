@@ -4,6 +4,8 @@ import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPerio
 import com.skyflytech.accountservice.core.journalEntry.model.JournalEntry;
 import com.skyflytech.accountservice.core.journalEntry.model.JournalEntryView;
 
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
 import java.time.LocalDate;
 import java.util.List;
 
@@ -22,6 +24,17 @@ public interface JournalEntryService {
      */
     List<JournalEntry> getAllJournalEntries(String accountSetId);
 
+    /**
+     * 按日期排序流式导出记账凭证，边从游标读取边写入响应
+     * @param accountSetId 账套ID
+     * @param startDate 开始日期，可为null
+     * @param endDate 结束日期，可为null
+     * @param format ndjson或csv
+     * @return 响应体
+     */
+    StreamingResponseBody exportJournalEntries(String accountSetId, LocalDate startDate, LocalDate endDate,
+            String format);
+
     /**
      * 根据时间段获取记账凭证视图
      * @param accountSetId 账套ID
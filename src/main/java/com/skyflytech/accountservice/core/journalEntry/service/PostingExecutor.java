@@ -0,0 +1,103 @@
+package com.skyflytech.accountservice.core.journalEntry.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.concurrent.DelegatingSecurityContextCallable;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 记账执行器：按账套ID分道，每个道是一个单线程执行器。
+ * 同一账套的记账依次执行，不再因为并发改写同一批会计期间而产生写冲突；不同账套在不同的道上并行。
+ */
+@Service
+public class PostingExecutor {
+
+    private final ScheduledExecutorService[] lanes;
+    // threads of all lanes, a task already running on a lane is not queued again
+    private final Set<Thread> laneThreads = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public PostingExecutor(@Value("${accounting.posting.lanes:0}") int laneCount) {
+        int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        this.lanes = new ScheduledExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            String name = "posting-lane-" + i;
+            lanes[i] = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                laneThreads.add(thread);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * 在账套对应的道上执行任务并等待结果，任务抛出的异常原样抛出。
+     * 调用者的SecurityContext会传递到执行线程，CurrentAccountSetIdHolder照常可用
+     */
+    public <T> T execute(String accountSetId, Callable<T> task) {
+        try {
+            if (isOnLane()) {
+                return task.call();
+            }
+            return lanes[laneOf(accountSetId)].submit(new DelegatingSecurityContextCallable<>(task)).get();
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Posting was interrupted.");
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 延迟delayMillis后在账套对应的道上执行任务，不等待
+     */
+    public void schedule(String accountSetId, Runnable task, long delayMillis) {
+        lanes[laneOf(accountSetId)].schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 当前线程是否是某个道的执行线程
+     */
+    public boolean isOnLane() {
+        return laneThreads.contains(Thread.currentThread());
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        for (ScheduledExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ScheduledExecutorService lane : lanes) {
+            lane.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private int laneOf(String accountSetId) {
+        return Math.floorMod(accountSetId == null ? 0 : accountSetId.hashCode(), lanes.length);
+    }
+
+    static RuntimeException unwrap(Throwable cause) {
+        if (cause instanceof RuntimeException runtimeException) {
+            return runtimeException;
+        }
+        if (cause instanceof Error error) {
+            throw error;
+        }
+        return new IllegalStateException(cause.getMessage(), cause);
+    }
+}
@@ -0,0 +1,175 @@
+package com.skyflytech.accountservice.core.journalEntry.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 异步记账的本地预写日志：内存映射的定长段文件，只追加。
+ * 记录格式：int 内容长度 | int CRC32 | long 序号 | 内容，长度为0表示段内已写数据的结尾。
+ * 每次打开都从新的段开始写，已处理完的段由调用方通知后删除。
+ */
+public class PostingWriteAheadLog implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOG_ID_FILE = "log.id";
+    private static final int HEADER_SIZE = 16;
+
+    public record Record(long seq, byte[] payload) {
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean fsync;
+    private final String logId;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long lastSeq;
+
+    public PostingWriteAheadLog(Path directory, int segmentSize, boolean fsync) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        Files.createDirectories(directory);
+        Path logIdFile = directory.resolve(LOG_ID_FILE);
+        if (!Files.exists(logIdFile)) {
+            Files.writeString(logIdFile, UUID.randomUUID().toString(), StandardCharsets.UTF_8);
+        }
+        this.logId = Files.readString(logIdFile, StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * 日志的唯一标识，与序号一起标识一条记录
+     */
+    public String getLogId() {
+        return logId;
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * 读出所有段中的记录（段尾写了一半的记录被忽略），然后开始一个新段用于追加
+     */
+    public synchronized List<Record> open() throws IOException {
+        List<Record> records = new ArrayList<>();
+        for (Path segment : listSegments()) {
+            // the name of the last (possibly empty) segment keeps the sequence going after old ones are deleted
+            lastSeq = Math.max(lastSeq, firstSeqOf(segment) - 1);
+            try (FileChannel segmentChannel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                ByteBuffer segmentBuffer = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+                while (segmentBuffer.remaining() >= HEADER_SIZE) {
+                    int length = segmentBuffer.getInt();
+                    if (length <= 0 || length > segmentBuffer.remaining() - (HEADER_SIZE - 4)) {
+                        break;
+                    }
+                    int crc = segmentBuffer.getInt();
+                    long seq = segmentBuffer.getLong();
+                    byte[] payload = new byte[length];
+                    segmentBuffer.get(payload);
+                    if (crc != checksum(seq, payload)) {
+                        break;
+                    }
+                    records.add(new Record(seq, payload));
+                    lastSeq = Math.max(lastSeq, seq);
+                }
+            }
+        }
+        startSegment(lastSeq + 1);
+        return records;
+    }
+
+    /**
+     * 追加一条记录，返回它的序号。开启fsync时返回前已刷到磁盘
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        int recordSize = HEADER_SIZE + payload.length;
+        if (recordSize > segmentSize - 4) {
+            throw new IllegalArgumentException("The journal entry is too large for the posting log.");
+        }
+        long seq = lastSeq + 1;
+        // keep 4 bytes of zeros after the last record as the end marker
+        if (buffer.remaining() < recordSize + 4) {
+            closeSegment();
+            startSegment(seq);
+        }
+        buffer.putInt(payload.length).putInt(checksum(seq, payload)).putLong(seq).put(payload);
+        if (fsync) {
+            buffer.force();
+        }
+        lastSeq = seq;
+        return seq;
+    }
+
+    /**
+     * 删除所有记录都不大于appliedSeq的段（不含正在写的段）
+     */
+    public synchronized void deleteSegmentsUpTo(long appliedSeq) throws IOException {
+        List<Path> segments = listSegments();
+        // a segment ends right before the first seq of the next one
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstSeqOf(segments.get(i + 1)) - 1 <= appliedSeq) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeSegment();
+    }
+
+    private void startSegment(long firstSeq) throws IOException {
+        Path segment = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+        // an existing segment starting after the last valid record holds nothing, e.g. one left by a restart
+        Files.deleteIfExists(segment);
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+
+    private void closeSegment() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        buffer.force();
+        channel.close();
+        channel = null;
+        buffer = null;
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        }
+    }
+
+    private static long firstSeqOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static int checksum(long seq, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, seq));
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
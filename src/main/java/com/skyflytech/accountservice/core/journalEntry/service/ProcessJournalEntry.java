@@ -1,16 +1,22 @@
 package com.skyflytech.accountservice.core.journalEntry.service;
 
 import com.skyflytech.accountservice.core.account.model.AccountingDirection;
+import com.skyflytech.accountservice.core.account.service.AccountUsageService;
 import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
 import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
+import com.skyflytech.accountservice.core.accountingPeriod.model.PeriodAmountDelta;
 import com.skyflytech.accountservice.core.accountingPeriod.service.AccountingPeriodService;
 import com.skyflytech.accountservice.core.journalEntry.model.AutoEntryTemplate;
 import com.skyflytech.accountservice.core.journalEntry.model.JournalEntry;
 import com.skyflytech.accountservice.core.journalEntry.model.JournalEntryView;
 import com.skyflytech.accountservice.core.report.model.AccountingOperation;
 import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import com.skyflytech.accountservice.core.transaction.service.BalanceIndexService;
 import com.skyflytech.accountservice.security.model.CurrentAccountSetIdHolder;
 import com.skyflytech.accountservice.utils.Utils;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
@@ -22,7 +28,10 @@ import org.springframework.web.server.ResponseStatusException;
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -31,102 +40,254 @@ public class ProcessJournalEntry {
     private final MongoTemplate mongoTemplate;
     private final CurrentAccountSetIdHolder currentAccountSetIdHolder;
     private final AccountingPeriodService accountingPeriodService;
+    private final BalanceIndexService balanceIndexService;
+    private final AccountUsageService accountUsageService;
 
     public ProcessJournalEntry(MongoTemplate mongoTemplate,
                                CurrentAccountSetIdHolder currentAccountSetIdHolder,
-                               AccountingPeriodService accountingPeriodService) {
+                               AccountingPeriodService accountingPeriodService,
+                               BalanceIndexService balanceIndexService,
+                               AccountUsageService accountUsageService) {
         this.mongoTemplate = mongoTemplate;
         this.currentAccountSetIdHolder = currentAccountSetIdHolder;
         this.accountingPeriodService = accountingPeriodService;
+        this.balanceIndexService = balanceIndexService;
+        this.accountUsageService = accountUsageService;
     }
 
     @Transactional
     public JournalEntryView processJournalEntryView(JournalEntryView journalEntryView) {
-        JournalEntry journalEntry = journalEntryView.getJournalEntry();
-        List<Transaction> transactions_new = new ArrayList<>();
+        return processJournalEntryViews(List.of(journalEntryView)).get(0);
+    }
+
+    /**
+     * 批量记账：先校验全部凭证，再把所有凭证的借贷变化合并后一次性更新会计期间，
+     * 交易和凭证各用一次批量写入
+     */
+    @Transactional
+    public List<JournalEntryView> processJournalEntryViews(List<JournalEntryView> journalEntryViews) {
+        return postJournalEntryViews(currentAccountSetIdHolder.getCurrentAccountSetId(), journalEntryViews);
+    }
+
+    /**
+     * 校验一批凭证是否可以记入账套：账套匹配、日期有效、借贷平衡、凭证不重复，
+     * 已有的交易只能属于批次中的一张凭证（分录或原有的transactionIds），否则同一笔旧交易会被扣减两次
+     */
+    public void validateJournalEntryViews(String accountSetId, List<JournalEntryView> journalEntryViews) {
+        if (!Utils.isNotNullOrEmpty(journalEntryViews)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No journal entry to process.");
+        }
+        LocalDate now = LocalDate.now();
+        Set<String> journalEntryIds = new HashSet<>();
+        Set<String> transactionIds = new HashSet<>();
+        for (JournalEntryView journalEntryView : journalEntryViews) {
+            validateJournalEntryView(journalEntryView, accountSetId, now);
+            String journalEntryId = journalEntryView.getJournalEntry().getId();
+            if (Utils.isNotEmpty(journalEntryId) && !journalEntryIds.add(journalEntryId)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        "The journal entry " + journalEntryId + " appears more than once.");
+            }
+            // an entry lists its own lines again in transactionIds, the lines themselves must not repeat
+            Set<String> entryTransactionIds = new HashSet<>();
+            for (Transaction transaction : journalEntryView.getTransactions()) {
+                if (Utils.isNotEmpty(transaction.getId()) && !entryTransactionIds.add(transaction.getId())) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                            "The transaction " + transaction.getId() + " appears more than once.");
+                }
+            }
+            if (Utils.isNotNullOrEmpty(journalEntryView.getJournalEntry().getTransactionIds())) {
+                entryTransactionIds.addAll(journalEntryView.getJournalEntry().getTransactionIds());
+            }
+            for (String transactionId : entryTransactionIds) {
+                if (!transactionIds.add(transactionId)) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                            "The transaction " + transactionId + " appears in more than one journal entry.");
+                }
+            }
+        }
+    }
+
+    /**
+     * 把凭证记入指定账套，不依赖当前登录用户的账套，供后台任务（如异步记账）在调用方已确认账套后使用
+     */
+    @Transactional
+    public List<JournalEntryView> postJournalEntryViews(String currentAccountSetId,
+                                                       List<JournalEntryView> journalEntryViews) {
+        validateJournalEntryViews(currentAccountSetId, journalEntryViews);
+        LocalDate now = LocalDate.now();
+
+        LocalDate latestDate = null;
+        for (JournalEntryView journalEntryView : journalEntryViews) {
+            JournalEntry journalEntry = journalEntryView.getJournalEntry();
+            // 更新journalEntry Id
+            if (!Utils.isNotEmpty(journalEntry.getId())) {
+                journalEntry.setCreatedDate(now);
+                if (journalEntry.getModifiedDate() == null) {
+                    journalEntry.setModifiedDate(now);
+                }
+                // generate new id
+                journalEntry.setId(UUID.randomUUID().toString());
+            }
+            if (latestDate == null || journalEntry.getModifiedDate().isAfter(latestDate)) {
+                latestDate = journalEntry.getModifiedDate();
+            }
+        }
+
+        //检查最后的accountingPeriod是否在journalEntry modifiedDate 之后
+        AccountingPeriod last_accountingPeriod = accountingPeriodService.findLastAccountingPeriodByAccountSetId(currentAccountSetId);
+        if (last_accountingPeriod.getEndDate().isBefore(latestDate)) {
+            // 创建缺失accountingPeriods
+            accountingPeriodService.createAccountingPeriodsFromStartPeriodToEndDate(last_accountingPeriod, latestDate);
+        }
+
+        // 一次查询取出本次要更新或删除的旧交易
+        Set<String> oldTransactionIds = new HashSet<>();
+        for (JournalEntryView journalEntryView : journalEntryViews) {
+            journalEntryView.getTransactions().stream()
+                    .map(Transaction::getId).filter(Utils::isNotEmpty).forEach(oldTransactionIds::add);
+            if (Utils.isNotNullOrEmpty(journalEntryView.getJournalEntry().getTransactionIds())) {
+                oldTransactionIds.addAll(journalEntryView.getJournalEntry().getTransactionIds());
+            }
+        }
+        Map<String, Transaction> oldTransactions = findTransactionsByIds(oldTransactionIds);
+
+        // 所有凭证所有分录的借贷变化先汇总，再一次性更新会计期间
+        TransactionChanges changes = new TransactionChanges();
+        List<JournalEntryView> result = new ArrayList<>();
+        for (JournalEntryView journalEntryView : journalEntryViews) {
+            result.add(collectTransactionChanges(journalEntryView, oldTransactions, changes));
+        }
+
+        accountingPeriodService.updateAccountingPeriodsWhenTransactionsChange(currentAccountSetId, changes.delta);
+        writeTransactions(changes);
+        List<Transaction> written = new ArrayList<>(changes.toInsert);
+        written.addAll(changes.toReplace);
+        accountUsageService.recordPostings(written, changes.replacedOrDeleted);
+        writeJournalEntries(result);
+        balanceIndexService.applyAfterCommit(currentAccountSetId, changes.delta);
+        // 返回更新后的JournalEntryView
+        return result;
+    }
 
+    private void validateJournalEntryView(JournalEntryView journalEntryView, String currentAccountSetId, LocalDate now) {
+        JournalEntry journalEntry = journalEntryView.getJournalEntry();
+        if (journalEntry == null || journalEntryView.getTransactions() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The journal entry or its transactions is null.");
+        }
         // 检查accountSetId
         if (journalEntry.getAccountSetId() == null
-                || !journalEntry.getAccountSetId().equals(currentAccountSetIdHolder.getCurrentAccountSetId())) {
+                || !journalEntry.getAccountSetId().equals(currentAccountSetId)) {
             throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "The accountSetId is not match.");
         }
-
-        LocalDate now = LocalDate.now();
         //如果ModifedDate存在，检查modifiedDate是否超过当前日期
         if (journalEntry.getModifiedDate() != null && journalEntry.getModifiedDate().isAfter(now)) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The modifiedDate is after current date.");
         }
+        // 修改已有凭证时必须带上日期
+        if (Utils.isNotEmpty(journalEntry.getId()) && journalEntry.getModifiedDate() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The modifiedDate is null.");
+        }
         //检查是否借贷平衡
         validateBalancedDebitsAndCredits(journalEntryView.getTransactions());
+    }
 
-        // 更新journalEntry Id
-        if (!Utils.isNotEmpty(journalEntry.getId())) {
-            journalEntry.setCreatedDate(now);
-            if(journalEntry.getModifiedDate() == null){
-                journalEntry.setModifiedDate(now);
-            }
-            // generate new id
-            journalEntry.setId(UUID.randomUUID().toString());
-        }
-
-        //检查最后的accountingPeriod是否在journalEntry modifiedDate 之后
-        AccountingPeriod last_accountingPeriod = accountingPeriodService.findLastAccountingPeriodByAccountSetId(journalEntry.getAccountSetId());
-        if (last_accountingPeriod.getEndDate().isBefore(journalEntry.getModifiedDate())) {
-            // 创建缺失accountingPeriods
-            accountingPeriodService.createAccountingPeriodsFromStartPeriodToEndDate(last_accountingPeriod, journalEntry.getModifiedDate());
-        }
+    // sort the lines of one journal entry into inserts, replaces and deletes, and fold their amounts into the delta
+    private JournalEntryView collectTransactionChanges(JournalEntryView journalEntryView,
+                                                       Map<String, Transaction> oldTransactions,
+                                                       TransactionChanges changes) {
+        JournalEntry journalEntry = journalEntryView.getJournalEntry();
+        List<Transaction> transactions_new = new ArrayList<>();
         for (Transaction transaction : journalEntryView.getTransactions()) {
+            transaction.setModifiedDate(journalEntry.getModifiedDate());
+            transaction.setAccountSetId(journalEntry.getAccountSetId());
             if (!Utils.isNotEmpty(transaction.getId())) {
                 // 如果Transaction的ID为空，表示需要新建Transaction
                 transaction.setCreatedDate(journalEntry.getCreatedDate());
-                transaction.setModifiedDate(journalEntry.getModifiedDate());
-                transaction.setAccountSetId(journalEntry.getAccountSetId());
-                accountingPeriodService.updateAccountingPeriodsWhenTransactionAmountChange(transaction, transaction.getDebit(), transaction.getCredit());
+                transaction.setId(new ObjectId().toHexString());
+                changes.toInsert.add(transaction);
             } else {
                 // 如果Transaction的ID不为空，表示需要更新Transaction
-                transaction.setModifiedDate(journalEntry.getModifiedDate());
-                Transaction oldTransaction = mongoTemplate.findById(transaction.getId(), Transaction.class);
+                Transaction oldTransaction = oldTransactions.get(transaction.getId());
                 if (oldTransaction == null) {
                     throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Transaction not found");
                 }
-                BigDecimal debitChange = transaction.getDebit().subtract(oldTransaction.getDebit());
-                BigDecimal creditChange = transaction.getCredit().subtract(oldTransaction.getCredit());
-                if (debitChange.compareTo(BigDecimal.ZERO) != 0 || creditChange.compareTo(BigDecimal.ZERO) != 0) {
-                    accountingPeriodService.updateAccountingPeriodsWhenTransactionAmountChange(transaction, debitChange, creditChange);
-                }
+                changes.delta.subtract(oldTransaction);
+                changes.toReplace.add(transaction);
+                changes.replacedOrDeleted.add(oldTransaction);
             }
-            transactions_new.add(mongoTemplate.save(transaction));
+            changes.delta.add(transaction);
+            transactions_new.add(transaction);
         }
 
-
-
         // 删除更新分录后那些已经不存在的entry transactionsIds
-
         Set<String> transactionIds_new = transactions_new.stream().map(Transaction::getId).collect(Collectors.toSet());
-
         if (Utils.isNotNullOrEmpty(journalEntry.getTransactionIds())) {
-            Set<String> toDeleteTransactionIds = journalEntry.getTransactionIds().stream()
-                    .filter(i -> !transactionIds_new.contains(i)).collect(Collectors.toSet());
-            for (String transactionId : toDeleteTransactionIds) {
-                Transaction transaction = mongoTemplate.findById(transactionId, Transaction.class);
+            for (String transactionId : journalEntry.getTransactionIds()) {
+                if (transactionIds_new.contains(transactionId)) {
+                    continue;
+                }
+                Transaction transaction = oldTransactions.get(transactionId);
                 if (transaction == null) {
                     throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Transaction not found");
                 }
-                accountingPeriodService.updateAccountingPeriodsWhenTransactionAmountChange(transaction, transaction.getDebit().negate(),
-                        transaction.getCredit().negate());
-                mongoTemplate.remove(transaction);
+                changes.delta.subtract(transaction);
+                changes.toDeleteIds.add(transactionId);
+                changes.replacedOrDeleted.add(transaction);
             }
         }
 
         // 更新JournalEntry的transactionIds
         journalEntry.setTransactionIds(transactionIds_new);
-        mongoTemplate.save(journalEntry);
-        // 返回更新后的JournalEntryView
         return new JournalEntryView(journalEntry, transactions_new);
+    }
 
+    private Map<String, Transaction> findTransactionsByIds(Set<String> transactionIds) {
+        if (transactionIds.isEmpty()) {
+            return new HashMap<>();
+        }
+        return mongoTemplate.find(new Query(Criteria.where("_id").in(transactionIds)), Transaction.class).stream()
+                .collect(Collectors.toMap(Transaction::getId, t -> t));
     }
 
-    //
+    // insert, replace and delete transactions in a single bulk request
+    private void writeTransactions(TransactionChanges changes) {
+        if (changes.toInsert.isEmpty() && changes.toReplace.isEmpty() && changes.toDeleteIds.isEmpty()) {
+            return;
+        }
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Transaction.class);
+        if (!changes.toInsert.isEmpty()) {
+            bulkOperations.insert(changes.toInsert);
+        }
+        for (Transaction transaction : changes.toReplace) {
+            bulkOperations.replaceOne(new Query(Criteria.where("_id").is(transaction.getId())), transaction,
+                    FindAndReplaceOptions.empty());
+        }
+        if (!changes.toDeleteIds.isEmpty()) {
+            bulkOperations.remove(new Query(Criteria.where("_id").in(changes.toDeleteIds)));
+        }
+        bulkOperations.execute();
+    }
+
+    // upsert all journal entries in a single bulk request
+    private void writeJournalEntries(List<JournalEntryView> journalEntryViews) {
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, JournalEntry.class);
+        for (JournalEntryView journalEntryView : journalEntryViews) {
+            JournalEntry journalEntry = journalEntryView.getJournalEntry();
+            bulkOperations.replaceOne(new Query(Criteria.where("_id").is(journalEntry.getId())), journalEntry,
+                    FindAndReplaceOptions.options().upsert());
+        }
+        bulkOperations.execute();
+    }
+
+    // transactions to write and the amount changes they cause, collected over one or more journal entries
+    private static class TransactionChanges {
+        private final PeriodAmountDelta delta = new PeriodAmountDelta();
+        private final List<Transaction> toInsert = new ArrayList<>();
+        private final List<Transaction> toReplace = new ArrayList<>();
+        private final Set<String> toDeleteIds = new HashSet<>();
+        // the old versions of replaced and deleted transactions
+        private final List<Transaction> replacedOrDeleted = new ArrayList<>();
+    }
 
     // 自动生成凭证
     @Transactional
@@ -164,12 +325,13 @@ public class ProcessJournalEntry {
 
     private List<Transaction> generateTransactionsByOperations(AutoEntryTemplate  template, AccountingPeriod accountPeriod) {
         List<AccountingOperation> operations=template.getOperations();
+        Map<String, AccountAmountHolder> amountHolders = accountingPeriodService.resolveAmountHolders(accountPeriod);
         List<Transaction> transactions = new ArrayList<>();
         BigDecimal total=BigDecimal.ZERO;
         for (AccountingOperation operation : operations) {
             Transaction transaction = new Transaction();
             transaction.setAccountId(operation.getAccountId());
-            AccountAmountHolder amountHolder=accountPeriod.getAmountHolders().get(operation.getAccountId());
+            AccountAmountHolder amountHolder=amountHolders.get(operation.getAccountId());
             BigDecimal amount=BigDecimal.ZERO;
             switch(operation.getDataType()){
                 case DEBIT_TOTAL:
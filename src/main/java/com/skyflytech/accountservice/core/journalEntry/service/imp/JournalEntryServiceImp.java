@@ -1,12 +1,15 @@
 package com.skyflytech.accountservice.core.journalEntry.service.imp;
 
+import com.skyflytech.accountservice.core.account.service.AccountUsageService;
 import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
 import com.skyflytech.accountservice.core.journalEntry.model.JournalEntry;
 import com.skyflytech.accountservice.core.journalEntry.model.JournalEntryView;
 import com.skyflytech.accountservice.core.journalEntry.repository.EntryMongoRepository;
 import com.skyflytech.accountservice.core.journalEntry.service.JournalEntryService;
 import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import com.skyflytech.accountservice.core.transaction.service.BalanceIndexService;
 import com.skyflytech.accountservice.security.model.CurrentAccountSetIdHolder;
+import com.skyflytech.accountservice.utils.StreamingExporter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -14,10 +17,13 @@ import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.time.LocalDate;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -36,14 +42,23 @@ public class JournalEntryServiceImp implements JournalEntryService {
     private final EntryMongoRepository journalEntryRepository;
     private final CurrentAccountSetIdHolder currentAccountSetIdHolder;
     private final MongoTemplate mongoTemplate;
+    private final BalanceIndexService balanceIndexService;
+    private final AccountUsageService accountUsageService;
+    private final StreamingExporter streamingExporter;
 
     @Autowired
     public JournalEntryServiceImp(EntryMongoRepository journalEntryRepository,
                                   CurrentAccountSetIdHolder currentAccountSetIdHolder,
-                                  MongoTemplate mongoTemplate) {
+                                  MongoTemplate mongoTemplate,
+                                  BalanceIndexService balanceIndexService,
+                                  AccountUsageService accountUsageService,
+                                  StreamingExporter streamingExporter) {
         this.journalEntryRepository = journalEntryRepository;
         this.currentAccountSetIdHolder = currentAccountSetIdHolder;
         this.mongoTemplate = mongoTemplate;
+        this.balanceIndexService = balanceIndexService;
+        this.accountUsageService = accountUsageService;
+        this.streamingExporter = streamingExporter;
     }
 
     
@@ -58,6 +73,29 @@ public class JournalEntryServiceImp implements JournalEntryService {
         return journalEntryRepository.findAllByAccountSetId(accountSetId);
     }
 
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public StreamingResponseBody exportJournalEntries(String accountSetId, LocalDate startDate, LocalDate endDate,
+                                                      String format) {
+        Criteria criteria = Criteria.where("accountSetId").is(accountSetId);
+        if (startDate != null || endDate != null) {
+            Criteria dates = criteria.and("modifiedDate");
+            if (startDate != null) {
+                dates.gte(startDate);
+            }
+            if (endDate != null) {
+                dates.lte(endDate);
+            }
+        }
+        Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "modifiedDate", "_id"));
+        return streamingExporter.export(query, JournalEntry.class, format,
+                List.of("id", "voucherWord", "voucherNum", "createdDate", "modifiedDate", "bookkeeper", "auditor",
+                        "accountingSupervisor", "transactionIds"),
+                e -> Arrays.asList(e.getId(), e.getVoucherWord(), e.getVoucherNum(), e.getCreatedDate(),
+                        e.getModifiedDate(), e.getBookkeeper(), e.getAuditor(), e.getAccountingSupervisor(),
+                        e.getTransactionIds() == null ? null : String.join(";", e.getTransactionIds())));
+    }
+
     @Transactional(rollbackFor = Exception.class)
     public List<JournalEntryView> getJournalEntriesByPeriod(String accountSetId, LocalDate startDate, LocalDate endDate) {
         // 获取指定日期范围内的所有记账凭证
@@ -159,7 +197,9 @@ public boolean isVoucherNumContinuous(AccountingPeriod accountingPeriod) {
             throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "The accountSetId is not match.");
         }
         Set<String> transactionIds = entry.getTransactionIds();
-        mongoTemplate.findAllAndRemove(new Query(Criteria.where("id").in(transactionIds)),
-                Transaction.class);
+        List<Transaction> removed = mongoTemplate.findAllAndRemove(
+                new Query(Criteria.where("id").in(transactionIds)), Transaction.class);
+        accountUsageService.recordPostings(List.of(), removed);
+        balanceIndexService.invalidateAfterCommit(entry.getAccountSetId());
     }
 }
@@ -1,26 +1,67 @@
 package com.skyflytech.accountservice.core.report.controller;
 
 import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
+import com.skyflytech.accountservice.core.report.model.CodeRangeSummary;
 import com.skyflytech.accountservice.core.report.model.IncomeStatement;
+import com.skyflytech.accountservice.core.report.model.Ledger;
 import com.skyflytech.accountservice.core.report.service.ReportService;
+import com.skyflytech.accountservice.security.model.CurrentAccountSetIdHolder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import org.springframework.web.server.ResponseStatusException;
+
 import java.time.LocalDate;
+import java.util.List;
 
 @RestController
 @RequestMapping("/api/reports")
 public class ReportController {
 
     private final ReportService reportService;
+    private final CurrentAccountSetIdHolder currentAccountSetIdHolder;
 
     @Autowired
-    public ReportController(ReportService reportService) {
+    public ReportController(ReportService reportService, CurrentAccountSetIdHolder currentAccountSetIdHolder) {
         this.reportService = reportService;
+        this.currentAccountSetIdHolder = currentAccountSetIdHolder;
+    }
+
+    // ranges=6601xxxx,5001-5999 with either periodId or startDate and endDate
+    @GetMapping("/code-ranges")
+    public ResponseEntity<CodeRangeSummary> sumByCodeRanges(
+            @RequestParam List<String> ranges,
+            @RequestParam(required = false) String periodId,
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate startDate,
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate endDate) {
+        String accountSetId = currentAccountSetIdHolder.getCurrentAccountSetId();
+        if (periodId != null) {
+            return ResponseEntity.ok(reportService.sumByCodeRanges(accountSetId, ranges, periodId));
+        }
+        if (startDate == null || endDate == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Either periodId or startDate and endDate is required.");
+        }
+        return ResponseEntity.ok(reportService.sumByCodeRanges(accountSetId, ranges, startDate, endDate));
+    }
+
+    // 明细账，summaryOnly=true时为总账
+    @GetMapping("/ledger/{accountId}")
+    public ResponseEntity<Ledger> getLedger(
+            @PathVariable String accountId,
+            @RequestParam @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate startDate,
+            @RequestParam @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate endDate,
+            @RequestParam(defaultValue = "false") boolean summaryOnly,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "50") int size) {
+        return ResponseEntity.ok(reportService.getLedger(currentAccountSetIdHolder.getCurrentAccountSetId(),
+                accountId, startDate, endDate, summaryOnly, page, size));
     }
 
     @GetMapping("/income-statement")
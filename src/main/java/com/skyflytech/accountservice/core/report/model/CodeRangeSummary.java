@@ -0,0 +1,21 @@
+package com.skyflytech.accountservice.core.report.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按科目编码区间汇总的结果：每个区间一项，再加上所有区间合在一起（重叠部分只算一次）的合计
+ */
+@Data
+@NoArgsConstructor
+public class CodeRangeSummary {
+    // 实际汇总的会计期间范围，日期按整期间取
+    private LocalDate startDate;
+    private LocalDate endDate;
+    private List<CodeRangeTotals> ranges = new ArrayList<>();
+    private CodeRangeTotals total;
+}
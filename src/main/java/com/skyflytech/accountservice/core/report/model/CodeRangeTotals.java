@@ -0,0 +1,27 @@
+package com.skyflytech.accountservice.core.report.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个科目编码区间在期间内的借贷发生额和期末余额
+ */
+@Data
+@NoArgsConstructor
+public class CodeRangeTotals {
+    // 请求中的区间写法，如 6601、6601xxxx、5001-5999
+    private String range;
+    // 参与合计的最上层科目的编码
+    private List<String> accountCodes = new ArrayList<>();
+    private BigDecimal totalDebit = BigDecimal.ZERO;
+    private BigDecimal totalCredit = BigDecimal.ZERO;
+    private BigDecimal balance = BigDecimal.ZERO;
+
+    public CodeRangeTotals(String range) {
+        this.range = range;
+    }
+}
@@ -1,13 +1,13 @@
 package com.skyflytech.accountservice.core.report.model;
 
 import com.skyflytech.accountservice.core.account.model.Account;
-import com.skyflytech.accountservice.core.transaction.model.Transaction;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -24,10 +24,27 @@ public class Ledger {
     private LocalDate start;
     private LocalDate end;
 
-    private List<Transaction> transactions;
+    // 明细账当前页的交易及余额，总账模式下为空
+    private List<LedgerLine> transactions = new ArrayList<>();
 
+    // start之前的累计借贷发生额和余额（含期初余额）
     private BigDecimal previousTotalDebit = BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP);
     private BigDecimal previousTotalCredit = BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP);
+    private BigDecimal openingBalance = BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP);
+
+    // start到end的借贷发生额合计和期末余额
+    private BigDecimal totalDebit = BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP);
+    private BigDecimal totalCredit = BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP);
+    private BigDecimal closingBalance = BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP);
+
+    // 每月的本月合计，没有交易的月份也列出
+    private List<LedgerMonth> months = new ArrayList<>();
+
+    private boolean summaryOnly;
+    private int page;
+    private int size;
+    // start到end的交易总数
+    private long totalLines;
 
     // Constructor with default values for start and end dates
 
@@ -0,0 +1,20 @@
+package com.skyflytech.accountservice.core.report.model;
+
+import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+/**
+ * 明细账的一行：一笔交易及记入后的余额
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class LedgerLine {
+    private Transaction transaction;
+    // 按科目余额方向计算，含期初余额
+    private BigDecimal balance;
+}
@@ -0,0 +1,26 @@
+package com.skyflytech.accountservice.core.report.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * 明细账或总账中一个月的本月合计，start和end为该月落在账页日期范围内的部分
+ */
+@Data
+@NoArgsConstructor
+public class LedgerMonth {
+    private LocalDate start;
+    private LocalDate end;
+    private BigDecimal debit = BigDecimal.ZERO;
+    private BigDecimal credit = BigDecimal.ZERO;
+    // 月末余额
+    private BigDecimal balance = BigDecimal.ZERO;
+
+    public LedgerMonth(LocalDate start, LocalDate end) {
+        this.start = start;
+        this.end = end;
+    }
+}
@@ -1,10 +1,17 @@
 package com.skyflytech.accountservice.core.report.service;
 
+import com.skyflytech.accountservice.core.account.model.AccountTree;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
 import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
 import com.skyflytech.accountservice.core.report.model.AccountingFormula;
+import com.skyflytech.accountservice.core.report.model.CodeRangeSummary;
 import com.skyflytech.accountservice.core.report.model.IncomeStatement;
+import com.skyflytech.accountservice.core.report.model.Ledger;
 
 import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
 
 public interface ReportService {
 
@@ -28,5 +35,47 @@ public interface ReportService {
      */
     BigDecimal calculateFormula(AccountingFormula formula, AccountingPeriod accountingPeriod);
 
+    /**
+     * 按科目编码区间汇总借贷发生额和期末余额，日期按所在的会计期间取整
+     * @param accountSetId 账套ID
+     * @param ranges 编码前缀（如 6601、6601xxxx）或区间（如 5001-5999）
+     * @param startDate 开始日期
+     * @param endDate 结束日期
+     * @return 每个区间的合计及所有区间的总计
+     */
+    CodeRangeSummary sumByCodeRanges(String accountSetId, List<String> ranges, LocalDate startDate, LocalDate endDate);
+
+    /**
+     * 按科目编码区间汇总一个会计期间的借贷发生额和期末余额
+     * @param accountSetId 账套ID
+     * @param ranges 编码前缀或区间
+     * @param periodId 会计期间ID
+     * @return 每个区间的合计及所有区间的总计
+     */
+    CodeRangeSummary sumByCodeRanges(String accountSetId, List<String> ranges, String periodId);
+
+    /**
+     * 在已取得的期末金额上汇总一个编码区间
+     * @param tree 账套的科目树
+     * @param holders 会计期间的金额（上级包含下级）
+     * @param range 编码前缀或区间
+     * @return 区间的累计借贷和余额
+     */
+    AccountAmountHolder sumByCodeRange(AccountTree tree, Map<String, AccountAmountHolder> holders, String range);
+
+    /**
+     * 科目的明细账（含全部下级科目的交易），期初取自会计期间的累计金额，按日期逐笔计算余额和每月合计
+     * @param accountSetId 账套ID
+     * @param accountId 科目ID
+     * @param startDate 开始日期
+     * @param endDate 结束日期
+     * @param summaryOnly true: 总账，只返回期初、每月合计和期末，不返回交易
+     * @param page 交易的页码
+     * @param size 每页交易数
+     * @return 明细账或总账
+     */
+    Ledger getLedger(String accountSetId, String accountId, LocalDate startDate, LocalDate endDate,
+            boolean summaryOnly, int page, int size);
+
 
 }
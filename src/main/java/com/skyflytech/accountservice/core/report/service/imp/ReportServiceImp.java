@@ -1,20 +1,56 @@
 package com.skyflytech.accountservice.core.report.service.imp;
 
+import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountTree;
+import com.skyflytech.accountservice.core.account.model.AccountingDirection;
+import com.skyflytech.accountservice.core.account.service.AccountTreeCache;
 import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
 import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
+import com.skyflytech.accountservice.core.accountingPeriod.service.AccountingPeriodService;
+import com.skyflytech.accountservice.core.accountSet.model.AccountSet;
 import com.skyflytech.accountservice.core.report.model.AccountingFormula;
 import com.skyflytech.accountservice.core.report.model.AccountingOperation;
+import com.skyflytech.accountservice.core.report.model.CodeRangeSummary;
+import com.skyflytech.accountservice.core.report.model.CodeRangeTotals;
 import com.skyflytech.accountservice.core.report.model.DataType;
 import com.skyflytech.accountservice.core.report.model.IncomeStatement;
+import com.skyflytech.accountservice.core.report.model.Ledger;
+import com.skyflytech.accountservice.core.report.model.LedgerLine;
+import com.skyflytech.accountservice.core.report.model.LedgerMonth;
 import com.skyflytech.accountservice.core.report.model.ReportItem;
 import com.skyflytech.accountservice.core.report.service.ReportService;
+import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 @Service
 public class ReportServiceImp implements ReportService {
-    public ReportServiceImp() {
+    private final AccountingPeriodService accountingPeriodService;
+    private final AccountTreeCache accountTreeCache;
+    private final MongoTemplate mongoTemplate;
+
+    public ReportServiceImp(AccountingPeriodService accountingPeriodService, AccountTreeCache accountTreeCache,
+                            MongoTemplate mongoTemplate) {
+        this.accountingPeriodService = accountingPeriodService;
+        this.accountTreeCache = accountTreeCache;
+        this.mongoTemplate = mongoTemplate;
     }
 
     public void initializeDefaultIncomeStatementItems(IncomeStatement incomeStatement) {
@@ -73,29 +109,258 @@ public class ReportServiceImp implements ReportService {
     
     public BigDecimal calculateFormula(AccountingFormula formula,AccountingPeriod accountingPeriod) {
         // 计算公式
+        Map<String, AccountAmountHolder> amountHolders = accountingPeriodService.resolveAmountHolders(accountingPeriod);
         BigDecimal result = BigDecimal.ZERO;
         for (AccountingOperation operation : formula.getOperations()) {
             // 根据 operation 的类型进行计算
             switch (operation.getOperator().getSymbol()) {
                 case "+":
-                   result= result.add(getAccountAmount(accountingPeriod,operation.getAccountId(),operation.getDataType()));
+                   result= result.add(getAccountAmount(amountHolders,operation.getAccountId(),operation.getDataType()));
                     break;
                 case "-":
-                    result=result.subtract(getAccountAmount(accountingPeriod,operation.getAccountId(),operation.getDataType()));
+                    result=result.subtract(getAccountAmount(amountHolders,operation.getAccountId(),operation.getDataType()));
                     break;
                 case "*":
-                    result=result.multiply(getAccountAmount(accountingPeriod,operation.getAccountId(),operation.getDataType()));
+                    result=result.multiply(getAccountAmount(amountHolders,operation.getAccountId(),operation.getDataType()));
                     break;
                 case "/":
-                    result= result.divide(getAccountAmount(accountingPeriod,operation.getAccountId(),operation.getDataType()),4, RoundingMode.HALF_UP);
+                    result= result.divide(getAccountAmount(amountHolders,operation.getAccountId(),operation.getDataType()),4, RoundingMode.HALF_UP);
                     break;
             }
         }
         return result;
     }
 
-    private BigDecimal getAccountAmount(AccountingPeriod accountingPeriod,String accountId,DataType dataType){
-        AccountAmountHolder accountAmountHolder=accountingPeriod.getAmountHolders().get(accountId);
+    /**
+     * 按科目编码区间汇总：期末的累计金额减去开始日期所在期间之前的累计金额得到发生额，余额取期末。
+     * 每个区间在排序的编码数组上二分查找，只取区间内最上层的科目相加
+     */
+    public CodeRangeSummary sumByCodeRanges(String accountSetId, List<String> ranges, LocalDate startDate,
+                                            LocalDate endDate) {
+        if (ranges == null || ranges.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No code range to sum.");
+        }
+        if (startDate.isAfter(endDate)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The startDate is after the endDate.");
+        }
+        AccountingPeriod first = findPeriodEndingOnOrAfter(accountSetId, startDate);
+        AccountingPeriod last = findPeriodEndingOnOrAfter(accountSetId, endDate);
+        if (first == null || last == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Accounting period not found");
+        }
+        Query beforeQuery = new Query(Criteria.where("accountSetId").is(accountSetId)
+                .and("endDate").lt(first.getStartDate()))
+                .with(Sort.by(Sort.Direction.DESC, "endDate"));
+        AccountingPeriod before = mongoTemplate.findOne(beforeQuery, AccountingPeriod.class);
+
+        Map<String, AccountAmountHolder> closing = accountingPeriodService.resolveAmountHolders(
+                mongoTemplate.findById(last.getId(), AccountingPeriod.class));
+        Map<String, AccountAmountHolder> opening = before == null ? Map.of()
+                : accountingPeriodService.resolveAmountHolders(before);
+        AccountTree tree = accountTreeCache.get(accountSetId);
+
+        CodeRangeSummary summary = new CodeRangeSummary();
+        summary.setStartDate(first.getStartDate());
+        summary.setEndDate(last.getEndDate());
+        Map<String, Account> union = new LinkedHashMap<>();
+        for (String range : ranges) {
+            List<Account> accounts = findTopAccounts(tree, range);
+            summary.getRanges().add(sum(range, accounts, opening, closing));
+            accounts.forEach(account -> union.put(account.getId(), account));
+        }
+        // an account under another range's account is already in that one's amount
+        List<Account> unionTop = new ArrayList<>();
+        for (Account account : union.values()) {
+            if (tree.getAncestors(account.getId()).stream().skip(1).noneMatch(a -> union.containsKey(a.getId()))) {
+                unionTop.add(account);
+            }
+        }
+        summary.setTotal(sum(String.join(",", ranges), unionTop, opening, closing));
+        return summary;
+    }
+
+    public CodeRangeSummary sumByCodeRanges(String accountSetId, List<String> ranges, String periodId) {
+        AccountingPeriod period = mongoTemplate.findOne(new Query(Criteria.where("_id").is(periodId)
+                .and("accountSetId").is(accountSetId)), AccountingPeriod.class);
+        if (period == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Accounting period not found");
+        }
+        return sumByCodeRanges(accountSetId, ranges, period.getStartDate(), period.getEndDate());
+    }
+
+    public AccountAmountHolder sumByCodeRange(AccountTree tree, Map<String, AccountAmountHolder> holders,
+                                              String range) {
+        CodeRangeTotals totals = sum(range, findTopAccounts(tree, range), Map.of(), holders);
+        return new AccountAmountHolder(totals.getTotalDebit(), totals.getTotalCredit(), totals.getBalance());
+    }
+
+    // opening amounts come from the last period closed before start; the transactions from there to end are
+    // read once in date order, the ones before start finish the opening amounts, the rest give the running
+    // balance, the monthly subtotals and the requested page of lines
+    public Ledger getLedger(String accountSetId, String accountId, LocalDate startDate, LocalDate endDate,
+                            boolean summaryOnly, int page, int size) {
+        if (startDate == null || endDate == null || startDate.isAfter(endDate)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid date range.");
+        }
+        if (page < 0 || size <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid page or size.");
+        }
+        AccountTree tree = accountTreeCache.get(accountSetId);
+        Account account = tree.get(accountId);
+        if (account == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Account not found");
+        }
+        // the balance moves by the direction of the posted account, as in the period holders
+        Map<String, AccountingDirection> directions = new HashMap<>();
+        directions.put(accountId, account.getBalanceDirection());
+        tree.getDescendants(accountId).forEach(a -> directions.put(a.getId(), a.getBalanceDirection()));
+
+        Ledger ledger = new Ledger();
+        ledger.setAccount(account);
+        ledger.setStart(startDate);
+        ledger.setEnd(endDate);
+        ledger.setSummaryOnly(summaryOnly);
+        ledger.setPage(page);
+        ledger.setSize(size);
+        for (YearMonth month = YearMonth.from(startDate); !month.isAfter(YearMonth.from(endDate));
+             month = month.plusMonths(1)) {
+            LocalDate monthStart = month.atDay(1);
+            LocalDate monthEnd = month.atEndOfMonth();
+            ledger.getMonths().add(new LedgerMonth(monthStart.isBefore(startDate) ? startDate : monthStart,
+                    monthEnd.isAfter(endDate) ? endDate : monthEnd));
+        }
+
+        BigDecimal previousDebit = ledger.getPreviousTotalDebit();
+        BigDecimal previousCredit = ledger.getPreviousTotalCredit();
+        BigDecimal balance;
+        Criteria dates = Criteria.where("modifiedDate").lte(endDate);
+        AccountingPeriod closing = accountingPeriodService.findClosingBefore(accountSetId, accountId, startDate);
+        if (closing != null) {
+            AccountAmountHolder holder = closing.getAmountHolders().get(accountId);
+            balance = holder == null ? BigDecimal.ZERO : holder.getBalance();
+            if (holder != null) {
+                previousDebit = previousDebit.add(holder.getTotalDebit());
+                previousCredit = previousCredit.add(holder.getTotalCredit());
+            }
+            dates.gt(closing.getEndDate());
+        } else {
+            balance = findInitialBalance(accountSetId, accountId);
+        }
+        Query query = new Query(Criteria.where("accountId").in(directions.keySet()).andOperator(dates))
+                .with(Sort.by(Sort.Direction.ASC, "modifiedDate", "_id"));
+        if (summaryOnly) {
+            query.fields().include("accountId", "modifiedDate", "debit", "credit");
+        }
+
+        List<LedgerMonth> months = ledger.getMonths();
+        BigDecimal totalDebit = ledger.getTotalDebit();
+        BigDecimal totalCredit = ledger.getTotalCredit();
+        long first = (long) page * size;
+        long lines = 0;
+        int month = 0;
+        boolean opened = false;
+        try (Stream<Transaction> transactions = mongoTemplate.stream(query, Transaction.class)) {
+            Iterator<Transaction> iterator = transactions.iterator();
+            while (iterator.hasNext()) {
+                Transaction transaction = iterator.next();
+                BigDecimal debit = transaction.getDebit();
+                BigDecimal credit = transaction.getCredit();
+                BigDecimal change = directions.getOrDefault(transaction.getAccountId(), account.getBalanceDirection())
+                        == AccountingDirection.DEBIT ? debit.subtract(credit) : credit.subtract(debit);
+                if (transaction.getModifiedDate().isBefore(startDate)) {
+                    previousDebit = previousDebit.add(debit);
+                    previousCredit = previousCredit.add(credit);
+                    balance = balance.add(change);
+                    continue;
+                }
+                if (!opened) {
+                    ledger.setOpeningBalance(balance);
+                    opened = true;
+                }
+                // months passed without a line keep the balance carried into them
+                while (transaction.getModifiedDate().isAfter(months.get(month).getEnd())) {
+                    months.get(month++).setBalance(balance);
+                }
+                balance = balance.add(change);
+                totalDebit = totalDebit.add(debit);
+                totalCredit = totalCredit.add(credit);
+                LedgerMonth current = months.get(month);
+                current.setDebit(current.getDebit().add(debit));
+                current.setCredit(current.getCredit().add(credit));
+                if (!summaryOnly && lines >= first && lines < first + size) {
+                    ledger.getTransactions().add(new LedgerLine(transaction, balance));
+                }
+                lines++;
+            }
+        }
+        if (!opened) {
+            ledger.setOpeningBalance(balance);
+        }
+        for (; month < months.size(); month++) {
+            months.get(month).setBalance(balance);
+        }
+        ledger.setPreviousTotalDebit(previousDebit);
+        ledger.setPreviousTotalCredit(previousCredit);
+        ledger.setTotalDebit(totalDebit);
+        ledger.setTotalCredit(totalCredit);
+        ledger.setClosingBalance(balance);
+        ledger.setTotalLines(lines);
+        return ledger;
+    }
+
+    // the opening balance entered for the account set, used before the first period is closed
+    private BigDecimal findInitialBalance(String accountSetId, String accountId) {
+        Query query = new Query(Criteria.where("_id").is(accountSetId));
+        query.fields().include("initialAccountBalance." + accountId);
+        AccountSet accountSet = mongoTemplate.findOne(query, AccountSet.class);
+        BigDecimal balance = accountSet == null || accountSet.getInitialAccountBalance() == null ? null
+                : accountSet.getInitialAccountBalance().get(accountId);
+        return balance == null ? BigDecimal.ZERO : balance;
+    }
+
+    // 6601, 6601xxxx and 6601* are prefixes, 5001-5999 is a range whose end includes its sub-accounts
+    private static List<Account> findTopAccounts(AccountTree tree, String range) {
+        String[] bounds = range.trim().split("\\s*[-~]\\s*");
+        if (bounds.length == 0 || bounds.length > 2) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid code range: " + range);
+        }
+        String from = bounds[0].replaceAll("[xX*]+$", "");
+        String to = bounds.length == 2 ? bounds[1].replaceAll("[xX*]+$", "") : from;
+        if (from.isEmpty() || to.isEmpty() || from.compareTo(to) > 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid code range: " + range);
+        }
+        return tree.findTopByCodeRange(from, to);
+    }
+
+    private static CodeRangeTotals sum(String range, List<Account> accounts, Map<String, AccountAmountHolder> opening,
+                                       Map<String, AccountAmountHolder> closing) {
+        CodeRangeTotals totals = new CodeRangeTotals(range);
+        for (Account account : accounts) {
+            totals.getAccountCodes().add(account.getCode());
+            AccountAmountHolder end = closing.get(account.getId());
+            if (end == null) {
+                continue;
+            }
+            AccountAmountHolder start = opening.get(account.getId());
+            totals.setTotalDebit(totals.getTotalDebit().add(end.getTotalDebit())
+                    .subtract(start == null ? BigDecimal.ZERO : start.getTotalDebit()));
+            totals.setTotalCredit(totals.getTotalCredit().add(end.getTotalCredit())
+                    .subtract(start == null ? BigDecimal.ZERO : start.getTotalCredit()));
+            totals.setBalance(totals.getBalance().add(end.getBalance()));
+        }
+        return totals;
+    }
+
+    // the period holding the date, without its amounts
+    private AccountingPeriod findPeriodEndingOnOrAfter(String accountSetId, LocalDate date) {
+        Query query = new Query(Criteria.where("accountSetId").is(accountSetId).and("endDate").gte(date))
+                .with(Sort.by(Sort.Direction.ASC, "endDate"));
+        query.fields().exclude("amountHolders");
+        return mongoTemplate.findOne(query, AccountingPeriod.class);
+    }
+
+    private BigDecimal getAccountAmount(Map<String, AccountAmountHolder> amountHolders,String accountId,DataType dataType){
+        AccountAmountHolder accountAmountHolder=amountHolders.get(accountId);
         if(accountAmountHolder==null){
             return BigDecimal.ZERO;
         }
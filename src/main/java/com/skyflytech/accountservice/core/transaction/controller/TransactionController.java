@@ -1,9 +1,11 @@
 package com.skyflytech.accountservice.core.transaction.controller;
 
 import com.mongodb.client.result.DeleteResult;
+import com.skyflytech.accountservice.core.account.model.AccountUsage;
 import com.skyflytech.accountservice.core.transaction.model.Transaction;
 import com.skyflytech.accountservice.core.transaction.service.TransactionService;
 import com.skyflytech.accountservice.security.model.CurrentAccountSetIdHolder;
+import com.skyflytech.accountservice.utils.StreamingExporter;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
@@ -15,13 +17,16 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.web.PagedResourcesAssembler;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.hateoas.EntityModel;
 import org.springframework.hateoas.PagedModel;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
@@ -64,8 +69,23 @@ public class TransactionController {
         return ResponseEntity.ok(transactions);
     }
 
-    // Search transactions by description (fuzzy search)
-    @Operation(summary = "Search transactions", description = "Search transactions by description (fuzzy search)")
+    // 流式导出，format为ndjson或csv，内存占用与导出的数量无关
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportTransactions(
+            @RequestParam(defaultValue = StreamingExporter.NDJSON) String format,
+            @RequestParam(required = false) List<String> accountIds,
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate startDate,
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate endDate) {
+        StreamingResponseBody body = transactionService.exportTransactions(
+                currentAccountSetIdHolder.getCurrentAccountSetId(), accountIds, startDate, endDate, format);
+        return ResponseEntity.ok()
+                .contentType(StreamingExporter.mediaType(format))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"transactions." + format + "\"")
+                .body(body);
+    }
+
+    // Search transactions by description, best matches first
+    @Operation(summary = "Search transactions", description = "Search transactions by description, ranked by relevance then date")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Successful operation",
                     content = @Content(mediaType = "application/json", schema = @Schema(implementation = Transaction.class))),
@@ -73,9 +93,16 @@ public class TransactionController {
             @ApiResponse(responseCode = "500", description = "Internal server error")
     })
     @GetMapping("/search")
-    public ResponseEntity<List<Transaction>> searchTransactions(@RequestParam("query") String query) {
-        List<Transaction> transactions = transactionService.searchTransactions(currentAccountSetIdHolder.getCurrentAccountSetId(),query);
-        return ResponseEntity.ok(transactions);
+    public ResponseEntity<PagedModel<EntityModel<Transaction>>> searchTransactions(
+            @RequestParam("query") String query,
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate startDate,
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate endDate,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "20") int size,
+            PagedResourcesAssembler<Transaction> assembler) {
+        Page<Transaction> transactions = transactionService.searchTransactions(
+                currentAccountSetIdHolder.getCurrentAccountSetId(), query, startDate, endDate, page, size);
+        return ResponseEntity.ok(assembler.toModel(transactions));
     }
 
     @Operation(summary = "Get transactions by account ID", description = "Returns a list of transactions associated with the provided account ID.")
@@ -85,15 +112,23 @@ public class TransactionController {
         return ResponseEntity.ok(transactions);
     }
 
+    // cursor=true or an after token switches to keyset paging, page is then ignored
     @GetMapping("/period")
-    public ResponseEntity<PagedModel<EntityModel<Transaction>>> getTransactionsByAccountAndPeriod(
+    public ResponseEntity<?> getTransactionsByAccountAndPeriod(
             @RequestParam List<String> accountsIds,
             @RequestParam @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate startDate,
             @RequestParam @DateTimeFormat(pattern = "yyyy-MM-dd") LocalDate endDate,
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "10") int size,
+            @RequestParam(defaultValue = "false") boolean cursor,
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "false") boolean includeTotal,
             PagedResourcesAssembler<Transaction> assembler) {
 
+        if (cursor || after != null) {
+            return ResponseEntity.ok(transactionService.findTransactionsByAccountAndPeriodAfter(accountsIds, startDate,
+                    endDate, after, size, includeTotal));
+        }
         Page<Transaction> transactions = transactionService.findTransactionsByAccountAndPeriod(accountsIds, startDate, endDate, page, size);
         PagedModel<EntityModel<Transaction>> pagedModel = assembler.toModel(transactions);
 
@@ -117,6 +152,8 @@ public class TransactionController {
         }
 
         DeleteResult result = mongoOperations.remove(new Query(), Transaction.class);
+        mongoOperations.updateMulti(new Query(), new Update().set("transactionCount", 0)
+                .unset("firstPostingDate").unset("lastPostingDate"), AccountUsage.class);
         long deletedCount = result.getDeletedCount();
         return ResponseEntity.ok(String.format("deleted %d records successfully!",deletedCount));
     }
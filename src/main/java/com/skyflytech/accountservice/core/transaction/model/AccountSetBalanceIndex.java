@@ -0,0 +1,76 @@
+package com.skyflytech.accountservice.core.transaction.model;
+
+import com.skyflytech.accountservice.utils.FenwickTree;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 一个账套的借贷发生额索引：每个账户两棵按天分桶的树状数组（借方、贷方，单位为分），
+ * 任意日期区间的发生额和都可以在O(log n)内得到。第一个桶是baseDate，早于它的日期不能写入。
+ */
+public class AccountSetBalanceIndex {
+
+    private static final int SCALE = 2;
+
+    private final LocalDate baseDate;
+    private final int initialCapacity;
+    private final Map<String, FenwickTree> debits = new HashMap<>();
+    private final Map<String, FenwickTree> credits = new HashMap<>();
+
+    public AccountSetBalanceIndex(LocalDate baseDate, LocalDate endDate) {
+        this.baseDate = baseDate;
+        this.initialCapacity = (int) ChronoUnit.DAYS.between(baseDate, endDate) + 1;
+    }
+
+    public LocalDate getBaseDate() {
+        return baseDate;
+    }
+
+    /**
+     * 写入一个账户在某天的借贷变化（可为负数），日期早于baseDate时返回false，索引不变
+     */
+    public synchronized boolean add(String accountId, LocalDate date, BigDecimal debit, BigDecimal credit) {
+        if (date.isBefore(baseDate)) {
+            return false;
+        }
+        int day = dayOf(date);
+        debits.computeIfAbsent(accountId, id -> new FenwickTree(initialCapacity)).add(day, toCents(debit));
+        credits.computeIfAbsent(accountId, id -> new FenwickTree(initialCapacity)).add(day, toCents(credit));
+        return true;
+    }
+
+    /**
+     * 一组账户在[from, to]之间的借方、贷方发生额合计，from为null表示从最早开始
+     */
+    public synchronized Map.Entry<BigDecimal, BigDecimal> rangeSum(Collection<String> accountIds, LocalDate from,
+            LocalDate to) {
+        int fromDay = from == null || from.isBefore(baseDate) ? 0 : dayOf(from);
+        int toDay = to.isBefore(baseDate) ? -1 : dayOf(to);
+        long debit = 0;
+        long credit = 0;
+        for (String accountId : accountIds) {
+            FenwickTree debitTree = debits.get(accountId);
+            if (debitTree != null) {
+                debit += debitTree.rangeSum(fromDay, toDay);
+                credit += credits.get(accountId).rangeSum(fromDay, toDay);
+            }
+        }
+        return new AbstractMap.SimpleEntry<>(BigDecimal.valueOf(debit, SCALE), BigDecimal.valueOf(credit, SCALE));
+    }
+
+    private int dayOf(LocalDate date) {
+        return Math.toIntExact(ChronoUnit.DAYS.between(baseDate, date));
+    }
+
+    // amounts are stored with 2 decimals (see Transaction), so cents are exact
+    private static long toCents(BigDecimal amount) {
+        return amount.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+}
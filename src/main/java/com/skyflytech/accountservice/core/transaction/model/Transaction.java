@@ -1,10 +1,13 @@
 package com.skyflytech.accountservice.core.transaction.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.skyflytech.accountservice.core.account.model.AccountingDirection;
+import com.skyflytech.accountservice.utils.BigramTokenizer;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.math.BigDecimal;
@@ -15,7 +18,13 @@ import java.util.Objects;
 @Data
 @NoArgsConstructor
 @Document(collection = "transactions")
-@CompoundIndex(name = "account_date_idx", def = "{'accountId': 1, 'modifiedDate': 1}")
+@CompoundIndexes({
+        // exports of an account set in date order
+        @CompoundIndex(name = "accountSet_date_idx", def = "{'accountSetId': 1, 'modifiedDate': 1}"),
+        // date ranges of an account (scanned backwards when ascending) and keyset paging newest first:
+        // a range scan per account merged on (modifiedDate, _id)
+        @CompoundIndex(name = "account_date_id_idx", def = "{'accountId': 1, 'modifiedDate': -1, '_id': -1}")
+})
 public class Transaction  {
 
     @Id
@@ -31,12 +40,22 @@ public class Transaction  {
 
     private String description;
 
+    // description cut into words by BigramTokenizer, searched through the text index built in MongoDataMigration
+    @JsonIgnore
+    private String descriptionTokens;
+
     private String vouchWord;
     private AccountingDirection balanceDirection;
 
     private BigDecimal debit = BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP);
     private BigDecimal credit = BigDecimal.ZERO.setScale(2, RoundingMode.HALF_UP);
 
+    // Setter for description keeping the search tokens in step
+    public void setDescription(String description) {
+        this.description = description;
+        this.descriptionTokens = BigramTokenizer.indexTokens(description);
+    }
+
     // Setter for debit with rounding to 2 decimal places
     public void setDebit(BigDecimal debit) {
         this.debit = Objects.requireNonNullElse(debit, BigDecimal.ZERO).setScale(2, RoundingMode.HALF_UP);
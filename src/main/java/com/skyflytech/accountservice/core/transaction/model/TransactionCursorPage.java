@@ -0,0 +1,20 @@
+package com.skyflytech.accountservice.core.transaction.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 按游标翻页的一页交易：把next原样作为下一次请求的after即可取下一页，next为null表示没有更多
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TransactionCursorPage {
+    private List<Transaction> content;
+    private String next;
+    // 只在请求时计算，可能是几十秒前缓存的值
+    private Long total;
+}
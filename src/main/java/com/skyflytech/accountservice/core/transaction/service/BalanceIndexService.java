@@ -0,0 +1,193 @@
+package com.skyflytech.accountservice.core.transaction.service;
+
+import com.skyflytech.accountservice.core.account.model.AccountingDirection;
+import com.skyflytech.accountservice.core.accountSet.model.AccountSet;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
+import com.skyflytech.accountservice.core.accountingPeriod.model.PeriodAmountDelta;
+import com.skyflytech.accountservice.core.transaction.model.AccountSetBalanceIndex;
+import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import com.skyflytech.accountservice.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * 进程内的借贷发生额索引，每个账套第一次查询时从交易数据建立，之后由记账在事务提交后增量更新。
+ * 只保留最近使用的若干个账套。索引只反映本实例的写入，多实例部署时不要开启。
+ * 未开启或无法建立索引时返回Optional.empty()，调用方应回退到数据库查询。
+ */
+@Service
+public class BalanceIndexService {
+    private static final Logger logger = LoggerFactory.getLogger(BalanceIndexService.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean enabled;
+    // accountSetId -> index, in access order, guarded by itself
+    private final Map<String, AccountSetBalanceIndex> indexes;
+    // bumped on every change of an account set, an index built from older data is not kept
+    private final Map<String, Long> generations = new ConcurrentHashMap<>();
+
+    @Autowired
+    public BalanceIndexService(MongoTemplate mongoTemplate,
+                               @Value("${accounting.balance-index.enabled:false}") boolean enabled,
+                               @Value("${accounting.balance-index.max-account-sets:32}") int maxAccountSets) {
+        this.mongoTemplate = mongoTemplate;
+        this.enabled = enabled;
+        this.indexes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AccountSetBalanceIndex> eldest) {
+                return size() > maxAccountSets;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 一组账户在[from, to]之间的借方、贷方发生额合计
+     * @param from 开始日期，null表示从最早开始
+     */
+    public Optional<Map.Entry<BigDecimal, BigDecimal>> totalsBetween(String accountSetId,
+            Collection<String> accountIds, LocalDate from, LocalDate to) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        AccountSetBalanceIndex index = getOrBuild(accountSetId);
+        return index == null ? Optional.empty() : Optional.of(index.rangeSum(accountIds, from, to));
+    }
+
+    /**
+     * 一组账户在date之前（不含date）的借方、贷方发生额合计
+     */
+    public Optional<Map.Entry<BigDecimal, BigDecimal>> totalsBefore(String accountSetId,
+            Collection<String> accountIds, LocalDate date) {
+        return totalsBetween(accountSetId, accountIds, null, date.minusDays(1));
+    }
+
+    /**
+     * 截至date（含）按余额方向计算的余额变动，不含账套的期初余额
+     */
+    public Optional<BigDecimal> balanceChangeAsOf(String accountSetId, Collection<String> accountIds,
+            AccountingDirection direction, LocalDate date) {
+        return totalsBetween(accountSetId, accountIds, null, date)
+                .map(totals -> direction == AccountingDirection.DEBIT
+                        ? totals.getKey().subtract(totals.getValue())
+                        : totals.getValue().subtract(totals.getKey()));
+    }
+
+    /**
+     * 当前事务提交后把记账的借贷变化写入索引
+     */
+    public void applyAfterCommit(String accountSetId, PeriodAmountDelta delta) {
+        if (enabled) {
+            Utils.afterCommit(() -> apply(accountSetId, delta));
+        }
+    }
+
+    /**
+     * 当前事务提交后丢弃账套的索引，下次查询时重建。用于无法逐笔计算变化的写入
+     */
+    public void invalidateAfterCommit(String accountSetId) {
+        if (enabled) {
+            Utils.afterCommit(() -> invalidate(accountSetId));
+        }
+    }
+
+    private void apply(String accountSetId, PeriodAmountDelta delta) {
+        generations.merge(accountSetId, 1L, Long::sum);
+        AccountSetBalanceIndex index;
+        synchronized (indexes) {
+            index = indexes.get(accountSetId);
+        }
+        if (index == null) {
+            return;
+        }
+        for (Map.Entry<LocalDate, Map<String, AccountAmountHolder>> dateEntry : delta.getChanges().entrySet()) {
+            for (Map.Entry<String, AccountAmountHolder> entry : dateEntry.getValue().entrySet()) {
+                if (!index.add(entry.getKey(), dateEntry.getKey(), entry.getValue().getTotalDebit(),
+                        entry.getValue().getTotalCredit())) {
+                    // posted before the first bucket of the index
+                    invalidate(accountSetId);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void invalidate(String accountSetId) {
+        generations.merge(accountSetId, 1L, Long::sum);
+        synchronized (indexes) {
+            indexes.remove(accountSetId);
+        }
+    }
+
+    private AccountSetBalanceIndex getOrBuild(String accountSetId) {
+        synchronized (indexes) {
+            AccountSetBalanceIndex index = indexes.get(accountSetId);
+            if (index != null) {
+                return index;
+            }
+        }
+        long generation = generations.getOrDefault(accountSetId, 0L);
+        AccountSetBalanceIndex built;
+        try {
+            built = build(accountSetId);
+        } catch (ArithmeticException e) {
+            logger.warn("Balance index not available for account set {}: {}", accountSetId, e.getMessage());
+            return null;
+        }
+        synchronized (indexes) {
+            // changed while building, answer this query but build again next time
+            if (generations.getOrDefault(accountSetId, 0L) != generation) {
+                return built;
+            }
+            indexes.putIfAbsent(accountSetId, built);
+            return indexes.get(accountSetId);
+        }
+    }
+
+    // the first bucket is the earlier of the account set start date and the earliest transaction
+    private AccountSetBalanceIndex build(String accountSetId) {
+        LocalDate today = LocalDate.now();
+        LocalDate baseDate = today;
+        AccountSet accountSet = mongoTemplate.findById(accountSetId, AccountSet.class);
+        if (accountSet != null && accountSet.getAccountingPeriodStartDate() != null
+                && accountSet.getAccountingPeriodStartDate().isBefore(baseDate)) {
+            baseDate = accountSet.getAccountingPeriodStartDate();
+        }
+        Query earliestQuery = new Query(Criteria.where("accountSetId").is(accountSetId))
+                .with(Sort.by(Sort.Direction.ASC, "modifiedDate"));
+        earliestQuery.fields().include("modifiedDate");
+        Transaction earliest = mongoTemplate.findOne(earliestQuery, Transaction.class);
+        if (earliest != null && earliest.getModifiedDate().isBefore(baseDate)) {
+            baseDate = earliest.getModifiedDate();
+        }
+
+        AccountSetBalanceIndex index = new AccountSetBalanceIndex(baseDate, today);
+        Query query = new Query(Criteria.where("accountSetId").is(accountSetId));
+        query.fields().include("accountId").include("modifiedDate").include("debit").include("credit");
+        query.cursorBatchSize(1000);
+        try (Stream<Transaction> transactions = mongoTemplate.stream(query, Transaction.class)) {
+            transactions.forEach(transaction -> index.add(transaction.getAccountId(), transaction.getModifiedDate(),
+                    transaction.getDebit(), transaction.getCredit()));
+        }
+        return index;
+    }
+}
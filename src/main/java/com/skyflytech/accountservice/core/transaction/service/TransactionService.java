@@ -3,7 +3,9 @@ package com.skyflytech.accountservice.core.transaction.service;
 import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
 import com.skyflytech.accountservice.core.journalEntry.model.JournalEntry;
 import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import com.skyflytech.accountservice.core.transaction.model.TransactionCursorPage;
 import org.springframework.data.domain.Page;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
@@ -25,12 +27,29 @@ public interface TransactionService {
     List<Transaction> getAllTransactions(String accountSetId);
 
     /**
-     * 模糊搜索交易
-     * @param query 搜索关键词
+     * 按日期排序流式导出交易，边从游标读取边写入响应
+     * @param accountSetId 账套ID
+     * @param accountIds 只导出这些账户的交易，为空时导出全部
+     * @param startDate 开始日期，可为null
+     * @param endDate 结束日期，可为null
+     * @param format ndjson或csv
+     * @return 响应体
+     */
+    StreamingResponseBody exportTransactions(String accountSetId, List<String> accountIds, LocalDate startDate,
+            LocalDate endDate, String format);
+
+    /**
+     * 按摘要搜索交易，使用摘要的文本索引，摘要包含关键词切出的全部词才算匹配，按相关度和日期排序
      * @param accountSetId 账套ID
-     * @return 匹配的交易列表
+     * @param query 搜索关键词
+     * @param startDate 开始日期，可为null
+     * @param endDate 结束日期，可为null
+     * @param page 页码
+     * @param size 每页大小
+     * @return 匹配的交易分页
      */
-    List<Transaction> searchTransactions(String query, String accountSetId);
+    Page<Transaction> searchTransactions(String accountSetId, String query, LocalDate startDate, LocalDate endDate,
+            int page, int size);
 
     /**
      * 根据账户ID查找交易
@@ -50,6 +69,19 @@ public interface TransactionService {
      */
     Page<Transaction> findTransactionsByAccountAndPeriod(List<String> leafAccountsIds, LocalDate startDate, LocalDate endDate, int page, int size);
 
+    /**
+     * 根据账户和时间段按游标翻页查找交易，按日期和ID倒序，每页的代价与翻到第几页无关
+     * @param leafAccountsIds 所有叶子账号的ids
+     * @param startDate 开始日期
+     * @param endDate 结束日期
+     * @param after 上一页返回的next，为null时取第一页
+     * @param size 每页大小
+     * @param includeTotal 是否返回总数（短时间缓存）
+     * @return 一页交易及下一页的游标
+     */
+    TransactionCursorPage findTransactionsByAccountAndPeriodAfter(List<String> leafAccountsIds, LocalDate startDate,
+            LocalDate endDate, String after, int size, boolean includeTotal);
+
     /**
      * 计算总借方和总贷方金额
      * @param accountId 账户ID
@@ -85,4 +117,13 @@ public interface TransactionService {
     List<Transaction> findTransactionsByAccountingPeriod(AccountingPeriod accountingPeriod);
 
     void saveAll(List<Transaction> transactions);
+
+    /**
+     * 把一个账户的所有交易转到另一个账户，在数据库端批量更新，不读入内存
+     * @param accountSetId 账套ID
+     * @param fromAccountId 原账户ID
+     * @param toAccountId 新账户ID
+     * @return 转移的交易数
+     */
+    long reassignTransactions(String accountSetId, String fromAccountId, String toAccountId);
 }
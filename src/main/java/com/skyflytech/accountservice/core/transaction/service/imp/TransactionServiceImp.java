@@ -1,24 +1,45 @@
 package com.skyflytech.accountservice.core.transaction.service.imp;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.skyflytech.accountservice.core.account.model.AccountTree;
+import com.skyflytech.accountservice.core.account.service.AccountTreeCache;
+import com.skyflytech.accountservice.core.account.service.AccountUsageService;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
 import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
+import com.skyflytech.accountservice.core.accountingPeriod.service.AccountingPeriodService;
 import com.skyflytech.accountservice.core.journalEntry.model.JournalEntry;
 import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import com.skyflytech.accountservice.core.transaction.model.TransactionCursorPage;
 import com.skyflytech.accountservice.core.transaction.repository.TransactionMongoRepository;
+import com.skyflytech.accountservice.core.transaction.service.BalanceIndexService;
 import com.skyflytech.accountservice.core.transaction.service.TransactionService;
 import com.skyflytech.accountservice.security.model.CurrentAccountSetIdHolder;
+import com.skyflytech.accountservice.utils.BigramTokenizer;
+import com.skyflytech.accountservice.utils.StreamingExporter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.*;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.aggregation.Aggregation;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.TextCriteria;
+import org.springframework.data.mongodb.core.query.TextQuery;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.support.PageableExecutionUtils;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 /**
@@ -28,26 +49,96 @@ import java.util.*;
  **/
 @Service
 public class TransactionServiceImp implements TransactionService {
+
     private final TransactionMongoRepository transactionRepository;
     private final MongoOperations mongoOperations;
     private final CurrentAccountSetIdHolder currentAccountSetIdHolder;
+    private final BalanceIndexService balanceIndexService;
+    private final AccountUsageService accountUsageService;
+    private final AccountTreeCache accountTreeCache;
+    private final AccountingPeriodService accountingPeriodService;
+    private final StreamingExporter streamingExporter;
+    // 游标翻页时按账户和日期缓存的交易总数
+    private final Cache<String, Long> periodCounts;
 
     @Autowired
-    public TransactionServiceImp (TransactionMongoRepository transactionRepository, MongoOperations mongoOperations, CurrentAccountSetIdHolder currentAccountSetIdHolder) {
+    public TransactionServiceImp (TransactionMongoRepository transactionRepository, MongoOperations mongoOperations, CurrentAccountSetIdHolder currentAccountSetIdHolder,
+                                  BalanceIndexService balanceIndexService, AccountUsageService accountUsageService,
+                                  AccountTreeCache accountTreeCache, AccountingPeriodService accountingPeriodService,
+                                  StreamingExporter streamingExporter,
+                                  @Value("${accounting.transaction.count-cache-seconds:30}") long countCacheSeconds) {
 
         this.transactionRepository = transactionRepository;
         this.mongoOperations = mongoOperations;
         this.currentAccountSetIdHolder = currentAccountSetIdHolder;
+        this.balanceIndexService = balanceIndexService;
+        this.accountUsageService = accountUsageService;
+        this.accountTreeCache = accountTreeCache;
+        this.accountingPeriodService = accountingPeriodService;
+        this.streamingExporter = streamingExporter;
+        this.periodCounts = Caffeine.newBuilder().maximumSize(10000)
+                .expireAfterWrite(Duration.ofSeconds(countCacheSeconds)).build();
     }
 
     public List<Transaction> getAllTransactions(String accountSetId) {
         return mongoOperations.find(Query.query(Criteria.where("accountSetId").is(accountSetId)), Transaction.class);
     }
 
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public StreamingResponseBody exportTransactions(String accountSetId, List<String> accountIds, LocalDate startDate,
+                                                    LocalDate endDate, String format) {
+        Criteria criteria = Criteria.where("accountSetId").is(accountSetId);
+        if (accountIds != null && !accountIds.isEmpty()) {
+            criteria.and("accountId").in(accountIds);
+        }
+        if (startDate != null || endDate != null) {
+            Criteria dates = criteria.and("modifiedDate");
+            if (startDate != null) {
+                dates.gte(startDate);
+            }
+            if (endDate != null) {
+                dates.lte(endDate);
+            }
+        }
+        Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "modifiedDate"));
+        return streamingExporter.export(query, Transaction.class, format,
+                List.of("id", "modifiedDate", "createdDate", "accountId", "vouchWord", "description",
+                        "debit", "credit", "balanceDirection"),
+                t -> Arrays.asList(t.getId(), t.getModifiedDate(), t.getCreatedDate(), t.getAccountId(),
+                        t.getVouchWord(), t.getDescription(), t.getDebit(), t.getCredit(), t.getBalanceDirection()));
+    }
 
-    // Fuzzy search transactions by description
-    public List<Transaction> searchTransactions(String query,String accountSetId) {
-        return mongoOperations.find(Query.query(Criteria.where("accountSetId").is(accountSetId).and("description").regex(query, "i")), Transaction.class);
+    // Search transactions by description through the text index on the description tokens
+    public Page<Transaction> searchTransactions(String accountSetId, String query, LocalDate startDate,
+                                                LocalDate endDate, int page, int size) {
+        if (page < 0 || size <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid page or size.");
+        }
+        List<String> tokens = BigramTokenizer.queryTokens(query);
+        if (tokens.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The search query has no searchable text.");
+        }
+        // every token as a phrase: a transaction has to contain all of them
+        TextCriteria text = TextCriteria.forLanguage("none");
+        tokens.forEach(text::matchingPhrase);
+        Criteria criteria = Criteria.where("accountSetId").is(accountSetId);
+        if (startDate != null || endDate != null) {
+            Criteria dates = criteria.and("modifiedDate");
+            if (startDate != null) {
+                dates.gte(startDate);
+            }
+            if (endDate != null) {
+                dates.lte(endDate);
+            }
+        }
+        Pageable pageable = PageRequest.of(page, size);
+        Query search = TextQuery.queryText(text).sortByScore()
+                .addCriteria(criteria)
+                .with(Sort.by(Sort.Direction.DESC, "modifiedDate", "_id"))
+                .with(pageable);
+        List<Transaction> transactions = mongoOperations.find(search, Transaction.class);
+        return PageableExecutionUtils.getPage(transactions, pageable,
+                () -> mongoOperations.count(Query.query(criteria).addCriteria(text), Transaction.class));
     }
 
     public List<Transaction> findByAccountId(String accountId) {
@@ -65,7 +156,7 @@ public class TransactionServiceImp implements TransactionService {
 
         Aggregation aggregation = Aggregation.newAggregation(
             Aggregation.match(criteria),
-            Aggregation.sort(Sort.Direction.DESC, "modifiedDate"),
+            Aggregation.sort(Sort.by(Sort.Direction.DESC, "modifiedDate", "_id")),
             Aggregation.skip((long) pageable.getPageNumber() * pageable.getPageSize()),
             Aggregation.limit(pageable.getPageSize())
         );
@@ -77,20 +168,97 @@ public class TransactionServiceImp implements TransactionService {
 
         return new PageImpl<>(transactions, pageable, total);
     }
-    public Map.Entry<BigDecimal, BigDecimal> calculateTotalDebitAndCredit(String accountId, LocalDate modifiedDate) {
-        // Fetch only debit and credit fields
-        List<Transaction> transactions = transactionRepository.findDebitsAndCreditsByAccountIdAndModifiedDateLessThan(accountId, modifiedDate);
 
-        // Calculate total debit and total credit manually
-        BigDecimal totalDebit = transactions.stream()
-                .map(Transaction::getDebit)
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
+    // seek past the last line of the previous page on (modifiedDate, _id) instead of skipping, one more line
+    // than asked tells whether there is a next page
+    public TransactionCursorPage findTransactionsByAccountAndPeriodAfter(List<String> leafAccountsIds,
+            LocalDate startDate, LocalDate endDate, String after, int size, boolean includeTotal) {
+        if (size <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The size must be positive.");
+        }
+        Criteria criteria = Criteria.where("accountId").in(leafAccountsIds)
+                .and("modifiedDate").gte(startDate).lte(endDate);
+        Query query = new Query(criteria);
+        if (after != null) {
+            String[] cursor = decodeCursor(after);
+            LocalDate date = LocalDate.parse(cursor[0]);
+            query.addCriteria(new Criteria().orOperator(
+                    Criteria.where("modifiedDate").lt(date),
+                    Criteria.where("modifiedDate").is(date).and("_id").lt(cursor[1])));
+        }
+        query.with(Sort.by(Sort.Direction.DESC, "modifiedDate", "_id")).limit(size + 1);
+        List<Transaction> transactions = new ArrayList<>(mongoOperations.find(query, Transaction.class));
 
-        BigDecimal totalCredit = transactions.stream()
-                .map(Transaction::getCredit)
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        String next = null;
+        if (transactions.size() > size) {
+            transactions = new ArrayList<>(transactions.subList(0, size));
+            Transaction last = transactions.get(size - 1);
+            next = encodeCursor(last.getModifiedDate(), last.getId());
+        }
+        Long total = null;
+        if (includeTotal) {
+            List<String> sortedIds = new ArrayList<>(leafAccountsIds);
+            Collections.sort(sortedIds);
+            total = periodCounts.get(String.join(",", sortedIds) + "|" + startDate + "|" + endDate,
+                    key -> mongoOperations.count(new Query(criteria), Transaction.class));
+        }
+        return new TransactionCursorPage(transactions, next, total);
+    }
 
-        // Return the totals as a Map.Entry
+    private static String encodeCursor(LocalDate modifiedDate, String id) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((modifiedDate + "|" + id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String[] decodeCursor(String cursor) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(cursor);
+            }
+            LocalDate.parse(parts[0]);
+            return parts;
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor: " + cursor);
+        }
+    }
+
+    // the account with its descendants, like the period holders. the closing holder of the last period before
+    // the date plus a $group over the days after that period, so only the partial period is read
+    public Map.Entry<BigDecimal, BigDecimal> calculateTotalDebitAndCredit(String accountId, LocalDate modifiedDate) {
+        String accountSetId = currentAccountSetIdHolder.getCurrentAccountSetId();
+        AccountTree tree = accountTreeCache.get(accountSetId);
+        List<String> accountIds = new ArrayList<>();
+        accountIds.add(accountId);
+        tree.getDescendants(accountId).forEach(account -> accountIds.add(account.getId()));
+        Optional<Map.Entry<BigDecimal, BigDecimal>> indexed = balanceIndexService.totalsBefore(
+                accountSetId, accountIds, modifiedDate);
+        if (indexed.isPresent()) {
+            return indexed.get();
+        }
+
+        BigDecimal totalDebit = BigDecimal.ZERO;
+        BigDecimal totalCredit = BigDecimal.ZERO;
+        Criteria dates = Criteria.where("modifiedDate").lt(modifiedDate);
+        AccountingPeriod closing = accountingPeriodService.findClosingBefore(accountSetId, accountId, modifiedDate);
+        if (closing != null) {
+            AccountAmountHolder holder = closing.getAmountHolders().get(accountId);
+            if (holder != null) {
+                totalDebit = totalDebit.add(holder.getTotalDebit());
+                totalCredit = totalCredit.add(holder.getTotalCredit());
+            }
+            dates.gt(closing.getEndDate());
+        }
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("accountId").in(accountIds).andOperator(dates)),
+                Aggregation.project("debit", "credit"),
+                Aggregation.group().sum("debit").as("debit").sum("credit").as("credit"));
+        Transaction partial = mongoOperations.aggregate(aggregation, Transaction.class, Transaction.class)
+                .getUniqueMappedResult();
+        if (partial != null) {
+            totalDebit = totalDebit.add(partial.getDebit());
+            totalCredit = totalCredit.add(partial.getCredit());
+        }
         return new AbstractMap.SimpleEntry<>(totalDebit, totalCredit);
     }
 
@@ -98,7 +266,12 @@ public class TransactionServiceImp implements TransactionService {
         @Transactional
     public Transaction saveTransaction(Transaction transaction) {
         checkAccountSetId(transaction);
-        return transactionRepository.save(transaction);
+        balanceIndexService.invalidateAfterCommit(transaction.getAccountSetId());
+        Transaction old = transaction.getId() == null ? null
+                : transactionRepository.findById(transaction.getId()).orElse(null);
+        Transaction saved = transactionRepository.save(transaction);
+        accountUsageService.recordPostings(List.of(saved), old == null ? List.of() : List.of(old));
+        return saved;
     }
 
     public void deleteByJourneyEntry(JournalEntry entry) {
@@ -110,14 +283,18 @@ public class TransactionServiceImp implements TransactionService {
             throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "The accountSetId is not match."); 
         }   
         Set<String> transactionIds = entry.getTransactionIds();
-        mongoOperations.findAllAndRemove(new Query(Criteria.where("id").in(transactionIds)),
-                                           Transaction.class);
+        List<Transaction> removed = mongoOperations.findAllAndRemove(
+                new Query(Criteria.where("id").in(transactionIds)), Transaction.class);
+        accountUsageService.recordPostings(List.of(), removed);
+        balanceIndexService.invalidateAfterCommit(entry.getAccountSetId());
     }
 
     public void deleteTransaction(String transactionId) {
         Transaction transaction = transactionRepository.findById(transactionId).orElse(null);
         checkAccountSetId(transaction);
         transactionRepository.delete(transaction);
+        accountUsageService.recordPostings(List.of(), List.of(transaction));
+        balanceIndexService.invalidateAfterCommit(transaction.getAccountSetId());
     }
     
 
@@ -143,7 +320,22 @@ public class TransactionServiceImp implements TransactionService {
     }
 
     @Override
+    // an updateMulti on the server inside the caller's transaction, nothing is loaded
+    @Transactional
+    public long reassignTransactions(String accountSetId, String fromAccountId, String toAccountId) {
+        long moved = mongoOperations.updateMulti(new Query(Criteria.where("accountId").is(fromAccountId)),
+                Update.update("accountId", toAccountId), Transaction.class).getModifiedCount();
+        if (moved > 0) {
+            accountUsageService.moveTransactions(accountSetId, fromAccountId, toAccountId);
+            balanceIndexService.invalidateAfterCommit(accountSetId);
+        }
+        return moved;
+    }
+
     public void saveAll(List<Transaction> transactions) {
         transactionRepository.saveAll(transactions);
+        accountUsageService.recordPostings(transactions, List.of());
+        transactions.stream().map(Transaction::getAccountSetId).filter(Objects::nonNull).distinct()
+                .forEach(balanceIndexService::invalidateAfterCommit);
     }
 }
\ No newline at end of file
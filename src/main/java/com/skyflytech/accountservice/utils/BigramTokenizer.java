@@ -0,0 +1,97 @@
+package com.skyflytech.accountservice.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 把文本切成可以放进Mongo文本索引的词：连续的汉字切成单字和相邻两字，其他连续的字母数字作为一个词，其余字符作为分隔。
+ * 文本索引本身按空白和标点分词，不能切分中文，所以保存切好的词，查询时用同样的规则切分关键词。
+ */
+public final class BigramTokenizer {
+
+    private BigramTokenizer() {
+    }
+
+    /**
+     * 保存用的词，去重后以空格连接，text为空时返回null
+     */
+    public static String indexTokens(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String run : runs(text)) {
+            if (isHan(run.codePointAt(0))) {
+                int[] chars = run.codePoints().toArray();
+                for (int i = 0; i < chars.length; i++) {
+                    tokens.add(new String(chars, i, 1));
+                    if (i + 1 < chars.length) {
+                        tokens.add(new String(chars, i, 2));
+                    }
+                }
+            } else {
+                tokens.add(run);
+            }
+        }
+        return tokens.isEmpty() ? null : String.join(" ", tokens);
+    }
+
+    /**
+     * 查询用的词：两个字以上的汉字只取相邻两字，文档包含全部的词才算匹配
+     */
+    public static List<String> queryTokens(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String run : runs(text)) {
+            if (isHan(run.codePointAt(0))) {
+                int[] chars = run.codePoints().toArray();
+                if (chars.length == 1) {
+                    tokens.add(run);
+                }
+                for (int i = 0; i + 1 < chars.length; i++) {
+                    tokens.add(new String(chars, i, 2));
+                }
+            } else {
+                tokens.add(run);
+            }
+        }
+        return new ArrayList<>(tokens);
+    }
+
+    // lower-cased runs of Han characters and of other letters or digits
+    private static List<String> runs(String text) {
+        List<String> runs = new ArrayList<>();
+        if (text == null) {
+            return runs;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        StringBuilder run = new StringBuilder();
+        boolean runIsHan = false;
+        for (int i = 0; i < lower.length(); ) {
+            int cp = lower.codePointAt(i);
+            i += Character.charCount(cp);
+            boolean han = isHan(cp);
+            if (!han && !Character.isLetterOrDigit(cp)) {
+                flush(run, runs);
+                continue;
+            }
+            if (run.length() > 0 && han != runIsHan) {
+                flush(run, runs);
+            }
+            runIsHan = han;
+            run.appendCodePoint(cp);
+        }
+        flush(run, runs);
+        return runs;
+    }
+
+    private static void flush(StringBuilder run, List<String> runs) {
+        if (run.length() > 0) {
+            runs.add(run.toString());
+            run.setLength(0);
+        }
+    }
+
+    private static boolean isHan(int cp) {
+        return Character.UnicodeScript.of(cp) == Character.UnicodeScript.HAN;
+    }
+}
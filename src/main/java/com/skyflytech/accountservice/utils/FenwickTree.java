@@ -0,0 +1,67 @@
+package com.skyflytech.accountservice.utils;
+
+import java.util.Arrays;
+
+/**
+ * 树状数组（Fenwick tree），O(log n) 单点增加和前缀求和，容量不够时自动翻倍。
+ * 下标从0开始，超出容量的位置视为0。
+ */
+public class FenwickTree {
+
+    // 1-based, tree[i] holds the sum of (i - lowbit(i), i], capacity is always a power of two
+    private long[] tree;
+
+    public FenwickTree(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        tree = new long[size + 1];
+    }
+
+    public void add(int index, long delta) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("index " + index);
+        }
+        while (index >= capacity()) {
+            grow();
+        }
+        for (int i = index + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * [0, index]的和，index小于0时为0
+     */
+    public long prefixSum(int index) {
+        long sum = 0;
+        for (int i = Math.min(index + 1, capacity()); i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * [from, to]的和
+     */
+    public long rangeSum(int from, int to) {
+        if (to < from) {
+            return 0;
+        }
+        return prefixSum(to) - prefixSum(from - 1);
+    }
+
+    public int capacity() {
+        return tree.length - 1;
+    }
+
+    // doubling a power-of-two tree keeps every existing node: nodes between n and 2n cover only empty
+    // positions, except node 2n which covers the whole old range
+    private void grow() {
+        int n = capacity();
+        long total = prefixSum(n - 1);
+        tree = Arrays.copyOf(tree, 2 * n + 1);
+        tree[2 * n] = total;
+    }
+}
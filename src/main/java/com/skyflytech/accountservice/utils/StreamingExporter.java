@@ -0,0 +1,107 @@
+package com.skyflytech.accountservice.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * 把查询结果按Mongo游标逐批读出，边读边以NDJSON或CSV写入响应，内存占用与导出的数量无关
+ */
+@Component
+public class StreamingExporter {
+
+    public static final String NDJSON = "ndjson";
+    public static final String CSV = "csv";
+
+    private final MongoTemplate mongoTemplate;
+    private final ObjectMapper objectMapper;
+    private final int batchSize;
+
+    public StreamingExporter(MongoTemplate mongoTemplate, ObjectMapper objectMapper,
+                             @Value("${accounting.export.batch-size:1000}") int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.objectMapper = objectMapper;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 导出格式对应的响应类型，不支持的格式抛出400
+     */
+    public static MediaType mediaType(String format) {
+        return switch (normalize(format)) {
+            case NDJSON -> MediaType.parseMediaType("application/x-ndjson;charset=UTF-8");
+            case CSV -> MediaType.parseMediaType("text/csv;charset=UTF-8");
+            default -> throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported export format: " + format);
+        };
+    }
+
+    /**
+     * 响应体：NDJSON每行一个文档，CSV先写表头再每个文档一行
+     * @param csvHeader CSV的列名
+     * @param csvRow 文档对应的CSV各列的值
+     */
+    public <T> StreamingResponseBody export(Query query, Class<T> type, String format, List<String> csvHeader,
+                                            Function<T, List<?>> csvRow) {
+        boolean csv = CSV.equals(normalize(format));
+        mediaType(format);
+        query.cursorBatchSize(batchSize);
+        return out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            try (Stream<T> documents = mongoTemplate.stream(query, type)) {
+                if (csv) {
+                    // BOM so that spreadsheet programs read the Chinese text as UTF-8
+                    writer.write('\uFEFF');
+                    writeCsvLine(writer, csvHeader);
+                }
+                Iterator<T> iterator = documents.iterator();
+                while (iterator.hasNext()) {
+                    T document = iterator.next();
+                    if (csv) {
+                        writeCsvLine(writer, csvRow.apply(document));
+                    } else {
+                        writer.write(objectMapper.writeValueAsString(document));
+                        writer.write('\n');
+                    }
+                }
+            }
+            writer.flush();
+        };
+    }
+
+    private static void writeCsvLine(Writer writer, List<?> values) throws IOException {
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            Object value = values.get(i);
+            String text = value == null ? "" : value.toString();
+            if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0
+                    || text.indexOf('\r') >= 0) {
+                text = '"' + text.replace("\"", "\"\"") + '"';
+            }
+            writer.write(text);
+        }
+        writer.write("\r\n");
+    }
+
+    private static String normalize(String format) {
+        return format == null ? NDJSON : format.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,5 +1,8 @@
 package com.skyflytech.accountservice.utils;
 
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
 import java.util.Collection;
 import java.util.Objects;
 
@@ -17,4 +20,18 @@ public class Utils {
         return s!=null&&!s.isEmpty();
     }
 
+    // run the action once the current transaction has committed, or right away when there is no transaction
+    public static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
 }
@@ -0,0 +1,258 @@
+package com.skyflytech.accountservice.core.account;
+
+import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountState;
+import com.skyflytech.accountservice.core.account.model.AccountType;
+import com.skyflytech.accountservice.core.account.model.AccountUsage;
+import com.skyflytech.accountservice.core.account.model.AccountingDirection;
+import com.skyflytech.accountservice.core.account.service.AccountTreeCache;
+import com.skyflytech.accountservice.core.account.service.imp.AccountServiceImp;
+import com.skyflytech.accountservice.core.accountSet.model.AccountSet;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
+import com.skyflytech.accountservice.core.accountingPeriod.model.BalanceCheckpoint;
+import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import com.skyflytech.accountservice.global.GlobalConst;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cache.CacheManager;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 账户结构变化时各会计期间金额和期初余额的转移：新建下级、移动和合并账户（默认的累计模式，上级金额包含下级）
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+public class AccountServiceImpIntegrationTest {
+
+    // 没有登录信息时当前账套就是测试账套
+    private static final String ACCOUNT_SET_ID = GlobalConst.Current_AccountSet_Id_Test;
+
+    @Autowired
+    private AccountServiceImp accountServiceImp;
+
+    @Autowired
+    private AccountTreeCache accountTreeCache;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private Account cash;      // 1001，有一个下级
+    private Account petty;     // 10010001，余额100
+    private Account bank;      // 1002，末级，余额30
+    private AccountingPeriod period;
+
+    @BeforeEach
+    void setUp() {
+        Query bySet = Query.query(Criteria.where("accountSetId").is(ACCOUNT_SET_ID));
+        mongoTemplate.remove(bySet, Account.class);
+        mongoTemplate.remove(bySet, AccountingPeriod.class);
+        mongoTemplate.remove(bySet, BalanceCheckpoint.class);
+        mongoTemplate.remove(bySet, Transaction.class);
+        mongoTemplate.remove(bySet, AccountUsage.class);
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(ACCOUNT_SET_ID)), AccountSet.class);
+        for (String cacheName : List.of("accounts", "accountingPeriods", "accountSets")) {
+            cacheManager.getCache(cacheName).clear();
+        }
+
+        cash = insertAccount("1001", "库存现金", null, 1, false);
+        petty = insertAccount("10010001", "备用金", cash.getId(), 2, true);
+        bank = insertAccount("1002", "银行存款", null, 1, true);
+        accountTreeCache.markChanged(ACCOUNT_SET_ID);
+
+        AccountSet accountSet = new AccountSet();
+        accountSet.setId(ACCOUNT_SET_ID);
+        accountSet.setName("账户金额转移测试账套");
+        accountSet.setAccountingPeriodStartDate(LocalDate.of(2024, 1, 1));
+        accountSet.getInitialAccountBalance().put(petty.getId(), new BigDecimal("100"));
+        accountSet.getInitialAccountBalance().put(bank.getId(), new BigDecimal("30"));
+        mongoTemplate.save(accountSet);
+
+        period = new AccountingPeriod();
+        period.setAccountSetId(ACCOUNT_SET_ID);
+        period.setName("2024年01月");
+        period.setStartDate(LocalDate.of(2024, 1, 1));
+        period.setEndDate(LocalDate.of(2024, 1, 31));
+        period.getAmountHolders().put(cash.getId(), holder("100"));
+        period.getAmountHolders().put(petty.getId(), holder("100"));
+        period.getAmountHolders().put(bank.getId(), holder("30"));
+        period = mongoTemplate.insert(period);
+    }
+
+    @Test
+    void testNewChildOfLeafTakesOverItsAmounts() {
+        Transaction deposit = new Transaction();
+        deposit.setAccountSetId(ACCOUNT_SET_ID);
+        deposit.setAccountId(bank.getId());
+        deposit.setModifiedDate(LocalDate.of(2024, 1, 10));
+        deposit.setDebit(new BigDecimal("30"));
+        deposit.setCredit(BigDecimal.ZERO);
+        deposit = mongoTemplate.insert(deposit);
+
+        Account child = new Account("10020001", "工商银行", ACCOUNT_SET_ID, AccountType.CURRENT_ASSET, null,
+                AccountingDirection.DEBIT, AccountState.ACTIVE);
+        Account saved = accountServiceImp.createAccount(child);
+
+        Map<String, AccountAmountHolder> holders = reloadHolders();
+        assertBalance("30", holders.get(saved.getId()));
+        // 上级的金额包含下级，保持不变
+        assertBalance("30", holders.get(bank.getId()));
+        assertFalse(mongoTemplate.findById(bank.getId(), Account.class).isLeaf());
+        // 原末级账户的交易转给了新的下级
+        assertEquals(saved.getId(), mongoTemplate.findById(deposit.getId(), Transaction.class).getAccountId());
+    }
+
+    @Test
+    void testReparentLeafUnderLeafWithHistory() {
+        accountServiceImp.reparentAccount(petty.getId(), bank.getId(), null);
+
+        // 银行存款原有的30转给了它的新下级，备用金的100从库存现金转到银行存款
+        Map<String, AccountAmountHolder> holders = reloadHolders();
+        assertBalance("130", holders.get(petty.getId()));
+        assertBalance("130", holders.get(bank.getId()));
+        assertBalance("0", holders.get(cash.getId()));
+
+        Account moved = mongoTemplate.findById(petty.getId(), Account.class);
+        assertEquals("10020001", moved.getCode());
+        assertEquals(bank.getId(), moved.getParentId());
+        assertTrue(mongoTemplate.findById(cash.getId(), Account.class).isLeaf());
+        assertFalse(mongoTemplate.findById(bank.getId(), Account.class).isLeaf());
+    }
+
+    @Test
+    void testReparentNonLeafUnderLeafWithHistoryIsRejected() {
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> accountServiceImp.reparentAccount(cash.getId(), bank.getId(), null));
+        assertEquals(HttpStatus.NOT_ACCEPTABLE, exception.getStatusCode());
+
+        Map<String, AccountAmountHolder> holders = reloadHolders();
+        assertBalance("100", holders.get(cash.getId()));
+        assertBalance("30", holders.get(bank.getId()));
+    }
+
+    @Test
+    void testUpdateCannotMoveToAnotherParent() {
+        Account changed = mongoTemplate.findById(petty.getId(), Account.class);
+        changed.setCode("10020001");
+        changed.setParentId(null);
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> accountServiceImp.updateAccount(changed));
+        assertEquals(HttpStatus.NOT_ACCEPTABLE, exception.getStatusCode());
+
+        Account unchanged = mongoTemplate.findById(petty.getId(), Account.class);
+        assertEquals("10010001", unchanged.getCode());
+        assertEquals(cash.getId(), unchanged.getParentId());
+        assertBalance("100", reloadHolders().get(cash.getId()));
+    }
+
+    @Test
+    void testMergeMovesAmountsAndOpeningBalance() {
+        Account deposit = insertDeposit();
+        AccountSet accountSet = mongoTemplate.findById(ACCOUNT_SET_ID, AccountSet.class);
+        accountSet.getInitialAccountBalance().put(deposit.getId(), new BigDecimal("20"));
+        mongoTemplate.save(accountSet);
+
+        accountServiceImp.mergeAccount(deposit.getId(), bank.getId());
+
+        // 合并后的金额从原账户的上级中减去，加到目标账户上
+        Map<String, AccountAmountHolder> holders = reloadHolders();
+        assertFalse(holders.containsKey(deposit.getId()));
+        assertBalance("50", holders.get(bank.getId()));
+        assertBalance("100", holders.get(cash.getId()));
+        assertBalance("100", holders.get(petty.getId()));
+
+        // 期初余额也并到目标账户上，新建会计期间时不会丢失
+        assertMergedOpeningBalance(deposit);
+        assertNull(mongoTemplate.findById(deposit.getId(), Account.class));
+    }
+
+    @Test
+    void testMergeWithOpeningBalancesStoredAsStrings() {
+        Account deposit = insertDeposit();
+        // 旧账套的期初余额是以字符串保存的
+        Document initialAccountBalance = new Document(petty.getId(), "100")
+                .append(bank.getId(), "30")
+                .append(deposit.getId(), "20");
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(AccountSet.class)).updateOne(
+                new Document("_id", ACCOUNT_SET_ID),
+                new Document("$set", new Document("initialAccountBalance", initialAccountBalance)));
+
+        accountServiceImp.mergeAccount(deposit.getId(), bank.getId());
+
+        assertBalance("50", reloadHolders().get(bank.getId()));
+        assertMergedOpeningBalance(deposit);
+    }
+
+    @Test
+    void testBulkCodeChangeCannotMoveToAnotherParent() {
+        Account changed = mongoTemplate.findById(petty.getId(), Account.class);
+        changed.setCode("10020001");
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> accountServiceImp.saveAccounts(List.of(changed)));
+        assertEquals(HttpStatus.NOT_ACCEPTABLE, exception.getStatusCode());
+        assertEquals("10010001", mongoTemplate.findById(petty.getId(), Account.class).getCode());
+    }
+
+    // 1001下再加一个余额20的末级账户
+    private Account insertDeposit() {
+        Account deposit = insertAccount("10010002", "零用现金", cash.getId(), 2, true);
+        accountTreeCache.markChanged(ACCOUNT_SET_ID);
+        Map<String, AccountAmountHolder> amountHolders = new HashMap<>(period.getAmountHolders());
+        amountHolders.put(deposit.getId(), holder("20"));
+        amountHolders.put(cash.getId(), holder("120"));
+        period.setAmountHolders(amountHolders);
+        period = mongoTemplate.save(period);
+        return deposit;
+    }
+
+    private void assertMergedOpeningBalance(Account deposit) {
+        Map<String, BigDecimal> initial = mongoTemplate.findById(ACCOUNT_SET_ID, AccountSet.class)
+                .getInitialAccountBalance();
+        assertFalse(initial.containsKey(deposit.getId()));
+        assertEquals(0, new BigDecimal("50").compareTo(initial.get(bank.getId())));
+        assertEquals(0, new BigDecimal("100").compareTo(initial.get(petty.getId())));
+    }
+
+    private Account insertAccount(String code, String name, String parentId, int level, boolean leaf) {
+        Account account = new Account(code, name, ACCOUNT_SET_ID, AccountType.CURRENT_ASSET, parentId,
+                AccountingDirection.DEBIT, AccountState.ACTIVE);
+        account.setLevel(level);
+        account.setLeaf(leaf);
+        return mongoTemplate.insert(account);
+    }
+
+    private Map<String, AccountAmountHolder> reloadHolders() {
+        return mongoTemplate.findById(period.getId(), AccountingPeriod.class).getAmountHolders();
+    }
+
+    private static AccountAmountHolder holder(String amount) {
+        return new AccountAmountHolder(new BigDecimal(amount), BigDecimal.ZERO, new BigDecimal(amount));
+    }
+
+    private static void assertBalance(String expected, AccountAmountHolder holder) {
+        assertNotNull(holder);
+        assertEquals(0, new BigDecimal(expected).compareTo(holder.getBalance()));
+        assertEquals(0, new BigDecimal(expected).compareTo(holder.getTotalDebit()));
+    }
+}
@@ -0,0 +1,83 @@
+package com.skyflytech.accountservice.core.account.model;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccountSearchIndexTest {
+
+    private AccountSearchIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new AccountSearchIndex(List.of(
+                account("a1", "1001", "库存现金"),
+                account("a2", "1002", "银行存款"),
+                account("b1", "10020001", "工商银行"),
+                account("a3", "1122", "应收账款"),
+                account("a4", "2202", "应付账款"),
+                account("a5", "6602", "Office Expense"),
+                account("a6", "5101", "制造费用")));
+    }
+
+    @Test
+    void testCodePrefixMatchesComeFirst() {
+        assertEquals(List.of("1002", "10020001"), codes(index.search("1002", 0)));
+        // 编码中间包含关键词的排在前缀匹配之后
+        assertEquals(List.of("1001", "1002", "10020001", "5101"), codes(index.search("10", 0)));
+        assertEquals(List.of("1002", "10020001", "2202", "6602"), codes(index.search("02", 0)));
+    }
+
+    @Test
+    void testNameMatchesUseTwoCharacterGrams() {
+        assertEquals(List.of("1002", "10020001"), codes(index.search("银行", 0)));
+        assertEquals(List.of("1122", "2202"), codes(index.search("账款", 0)));
+        assertEquals(List.of("1122"), codes(index.search("应收账款", 0)));
+        assertTrue(index.search("收付", 0).isEmpty());
+    }
+
+    @Test
+    void testSearchIgnoresCaseAndSurroundingSpaces() {
+        assertEquals(List.of("6602"), codes(index.search("  office ", 0)));
+        assertEquals(List.of("6602"), codes(index.search("EXP", 0)));
+    }
+
+    @Test
+    void testLimit() {
+        assertEquals(List.of("1122"), codes(index.search("账款", 1)));
+        assertEquals(7, index.search("", 0).size());
+        assertEquals(2, index.search("", 2).size());
+    }
+
+    @Test
+    void testPutAndRemove() {
+        // 更新时传入新的对象，旧的索引项按旧的名称和编码删除
+        index.put(account("a3", "1221", "其他应收款"));
+        assertEquals(List.of("2202"), codes(index.search("账款", 0)));
+        assertEquals(List.of("1221"), codes(index.search("1221", 0)));
+        assertTrue(index.search("1122", 0).isEmpty());
+
+        index.remove("a4");
+        assertTrue(index.search("应付", 0).isEmpty());
+        assertTrue(index.search("2202", 0).isEmpty());
+
+        index.put(account("a7", "2241", "其他应付款"));
+        assertEquals(List.of("2241"), codes(index.search("应付", 0)));
+    }
+
+    private static Account account(String id, String code, String name) {
+        Account account = new Account();
+        account.setId(id);
+        account.setCode(code);
+        account.setName(name);
+        account.setType(AccountType.CURRENT_ASSET);
+        return account;
+    }
+
+    private static List<String> codes(List<Account> accounts) {
+        return accounts.stream().map(Account::getCode).toList();
+    }
+}
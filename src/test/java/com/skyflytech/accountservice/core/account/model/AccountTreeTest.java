@@ -0,0 +1,82 @@
+package com.skyflytech.accountservice.core.account.model;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccountTreeTest {
+
+    private AccountTree tree;
+
+    @BeforeEach
+    void setUp() {
+        tree = AccountTree.of("set", List.of(
+                account("a1", "1001", "库存现金", null),
+                account("a2", "1002", "银行存款", null),
+                account("b1", "10020001", "工商银行", "a2"),
+                account("b2", "10020002", "建设银行", "a2"),
+                account("c1", "10020001001", "工行基本户", "b1"),
+                account("a3", "1122", "应收账款", null),
+                account("a4", "2202", "应付账款", null)));
+    }
+
+    @Test
+    void testFindTopByCodeRangeSkipsAccountsUnderAnotherInRange() {
+        assertEquals(List.of("1001", "1002", "1122"), codes(tree.findTopByCodeRange("1001", "1122")));
+    }
+
+    @Test
+    void testFindTopByCodeRangeStartingInsideASubtree() {
+        // 区间从下级开始时，上级不在区间内，下级就是最上层
+        assertEquals(List.of("10020001", "10020002", "1122"), codes(tree.findTopByCodeRange("10020001", "1122")));
+        assertEquals(List.of("10020002"), codes(tree.findTopByCodeRange("10020002", "10020002")));
+    }
+
+    @Test
+    void testFindTopByCodeRangeTreatsToAsPrefix() {
+        // from等于to时就是编码以它开头的科目中最上层的
+        assertEquals(List.of("1002"), codes(tree.findTopByCodeRange("1002", "1002")));
+        assertEquals(List.of("1001", "1002"), codes(tree.findTopByCodeRange("1001", "1002")));
+        assertTrue(tree.findTopByCodeRange("3000", "4000").isEmpty());
+        assertTrue(tree.findTopByCodeRange("2202", "1001").isEmpty());
+    }
+
+    @Test
+    void testLookups() {
+        assertEquals("b1", tree.findByCode("10020001").getId());
+        assertNull(tree.findByCode("1003"));
+        assertEquals(List.of("10020001", "10020001001", "10020002"), codes(tree.findByCodePrefix("10020")));
+        assertEquals(List.of("c1", "b1", "a2"), tree.getAncestors("c1").stream().map(Account::getId).toList());
+        assertEquals(List.of("10020001", "10020001001", "10020002"), codes(tree.getDescendants("a2")));
+        assertEquals(List.of("10020001", "10020002"), codes(tree.getChildren("a2")));
+        assertFalse(tree.isLeaf("a2"));
+        assertTrue(tree.isLeaf("b2"));
+        assertEquals(List.of("1001", "1002", "1122", "2202"), codes(tree.getRoots()));
+    }
+
+    @Test
+    void testMissingParentMakesARoot() {
+        AccountTree orphaned = AccountTree.of("set", List.of(
+                account("a1", "1001", "库存现金", null),
+                account("b1", "10010001", "零用金", "missing")));
+        assertEquals(List.of("1001", "10010001"), codes(orphaned.getRoots()));
+        assertEquals(List.of("1001", "10010001"), codes(orphaned.findTopByCodeRange("1001", "1001")));
+    }
+
+    private static Account account(String id, String code, String name, String parentId) {
+        Account account = new Account();
+        account.setId(id);
+        account.setCode(code);
+        account.setName(name);
+        account.setParentId(parentId);
+        account.setType(AccountType.CURRENT_ASSET);
+        return account;
+    }
+
+    private static List<String> codes(List<Account> accounts) {
+        return accounts.stream().map(Account::getCode).toList();
+    }
+}
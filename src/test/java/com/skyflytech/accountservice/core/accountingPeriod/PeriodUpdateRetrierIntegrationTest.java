@@ -0,0 +1,110 @@
+package com.skyflytech.accountservice.core.accountingPeriod;
+
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
+import com.skyflytech.accountservice.core.accountingPeriod.service.PeriodUpdateRetrier;
+import com.skyflytech.accountservice.global.GlobalConst;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.LocalDate;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 会计期间并发更新的重试：版本号冲突时重新读取再写，非冲突的错误不重试，重试次数用完后返回409
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+public class PeriodUpdateRetrierIntegrationTest {
+
+    private static final String ACCOUNT_SET_ID = GlobalConst.Current_AccountSet_Id_Test;
+    private static final String OPERATION = "retry-test";
+
+    @Autowired
+    private PeriodUpdateRetrier periodUpdateRetrier;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private AccountingPeriod period;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate.remove(Query.query(Criteria.where("accountSetId").is(ACCOUNT_SET_ID)), AccountingPeriod.class);
+        period = new AccountingPeriod();
+        period.setAccountSetId(ACCOUNT_SET_ID);
+        period.setName("2024年01月");
+        period.setStartDate(LocalDate.of(2024, 1, 1));
+        period.setEndDate(LocalDate.of(2024, 1, 31));
+        period = mongoTemplate.insert(period);
+    }
+
+    @Test
+    void testStaleVersionIsReadAgainAndRetried() {
+        // 第一次尝试拿到的是另一个写入之前读出的旧版本
+        AccountingPeriod stale = mongoTemplate.findById(period.getId(), AccountingPeriod.class);
+        AccountingPeriod other = mongoTemplate.findById(period.getId(), AccountingPeriod.class);
+        other.setClosed(true);
+        mongoTemplate.save(other);
+        double conflicts = conflicts();
+
+        AtomicInteger attempts = new AtomicInteger();
+        AccountingPeriod saved = periodUpdateRetrier.inTransaction(ACCOUNT_SET_ID, OPERATION, () -> {
+            AccountingPeriod current = attempts.incrementAndGet() == 1 ? stale
+                    : mongoTemplate.findById(period.getId(), AccountingPeriod.class);
+            current.setName("一月");
+            return mongoTemplate.save(current);
+        });
+
+        assertEquals(2, attempts.get());
+        assertEquals(conflicts + 1, conflicts());
+        AccountingPeriod reloaded = mongoTemplate.findById(period.getId(), AccountingPeriod.class);
+        assertEquals("一月", reloaded.getName());
+        // 另一个写入没有被覆盖
+        assertTrue(reloaded.isClosed());
+        assertEquals(saved.getVersion(), reloaded.getVersion());
+    }
+
+    @Test
+    void testOtherErrorsAreNotRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+        assertThrows(IllegalStateException.class, () -> periodUpdateRetrier.inTransaction(ACCOUNT_SET_ID, OPERATION,
+                () -> {
+                    attempts.incrementAndGet();
+                    throw new IllegalStateException("not a conflict");
+                }));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void testConflictAfterLastAttemptIsAConflictStatus() {
+        AtomicInteger attempts = new AtomicInteger();
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> periodUpdateRetrier.inTransaction(ACCOUNT_SET_ID, OPERATION, () -> {
+                    attempts.incrementAndGet();
+                    throw new OptimisticLockingFailureException("always stale");
+                }));
+        assertEquals(HttpStatus.CONFLICT, exception.getStatusCode());
+        // accounting.period.update.max-attempts
+        assertEquals(5, attempts.get());
+    }
+
+    private double conflicts() {
+        return meterRegistry.counter("accounting.period.update.conflicts",
+                "accountSetId", ACCOUNT_SET_ID, "operation", OPERATION).count();
+    }
+}
@@ -0,0 +1,75 @@
+package com.skyflytech.accountservice.core.accountingPeriod.model;
+
+import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeriodAmountDeltaTest {
+
+    private static final LocalDate JAN_10 = LocalDate.of(2024, 1, 10);
+    private static final LocalDate FEB_5 = LocalDate.of(2024, 2, 5);
+
+    @Test
+    void testLinesOfOneAccountAndDateAreFolded() {
+        PeriodAmountDelta delta = new PeriodAmountDelta();
+        delta.add(line("petty", JAN_10, "60", "0"));
+        delta.add(line("petty", JAN_10, "40", "0"));
+        delta.add(line("payable", JAN_10, "0", "100"));
+
+        AccountAmountHolder petty = delta.getChanges().get(JAN_10).get("petty");
+        assertEquals(0, new BigDecimal("100").compareTo(petty.getTotalDebit()));
+        assertEquals(0, BigDecimal.ZERO.compareTo(petty.getTotalCredit()));
+        assertEquals(Set.of("petty", "payable"), delta.getAccountIds());
+    }
+
+    @Test
+    void testEditReversesTheOldDate() {
+        // 凭证从1月10日改到2月5日：旧分录在旧日期扣减，新分录在新日期累加
+        PeriodAmountDelta delta = new PeriodAmountDelta();
+        delta.subtract(line("petty", JAN_10, "100", "0"));
+        delta.add(line("petty", FEB_5, "100", "0"));
+
+        assertFalse(delta.isEmpty());
+        assertEquals(JAN_10, delta.getEarliestDate());
+        assertEquals(0, new BigDecimal("-100").compareTo(delta.getChanges().get(JAN_10).get("petty").getTotalDebit()));
+        assertEquals(0, new BigDecimal("100").compareTo(delta.getChanges().get(FEB_5).get("petty").getTotalDebit()));
+    }
+
+    @Test
+    void testUnchangedEditIsEmpty() {
+        PeriodAmountDelta delta = new PeriodAmountDelta();
+        delta.subtract(line("petty", JAN_10, "100", "0"));
+        delta.add(line("petty", JAN_10, "100", "0"));
+
+        assertTrue(delta.isEmpty());
+        assertTrue(delta.getAccountIds().isEmpty());
+    }
+
+    @Test
+    void testAddAllMergesEntriesOfABatch() {
+        PeriodAmountDelta first = new PeriodAmountDelta();
+        first.add(line("petty", JAN_10, "100", "0"));
+        PeriodAmountDelta second = new PeriodAmountDelta();
+        second.add(line("petty", JAN_10, "50", "0"));
+        second.add(line("payable", FEB_5, "0", "50"));
+
+        first.addAll(second);
+
+        assertEquals(0, new BigDecimal("150").compareTo(first.getChanges().get(JAN_10).get("petty").getTotalDebit()));
+        assertEquals(0, new BigDecimal("50").compareTo(first.getChanges().get(FEB_5).get("payable").getTotalCredit()));
+    }
+
+    private static Transaction line(String accountId, LocalDate date, String debit, String credit) {
+        Transaction transaction = new Transaction();
+        transaction.setAccountId(accountId);
+        transaction.setModifiedDate(date);
+        transaction.setDebit(new BigDecimal(debit));
+        transaction.setCredit(new BigDecimal(credit));
+        return transaction;
+    }
+}
@@ -0,0 +1,210 @@
+package com.skyflytech.accountservice.core.journalEntry;
+
+import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountState;
+import com.skyflytech.accountservice.core.account.model.AccountType;
+import com.skyflytech.accountservice.core.account.model.AccountUsage;
+import com.skyflytech.accountservice.core.account.model.AccountingDirection;
+import com.skyflytech.accountservice.core.account.service.AccountTreeCache;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
+import com.skyflytech.accountservice.core.accountingPeriod.model.BalanceCheckpoint;
+import com.skyflytech.accountservice.core.journalEntry.model.JournalEntry;
+import com.skyflytech.accountservice.core.journalEntry.model.JournalEntryView;
+import com.skyflytech.accountservice.core.journalEntry.service.GroupCommitPoster;
+import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import com.skyflytech.accountservice.global.GlobalConst;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cache.CacheManager;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 组提交：同一账套同时到达的记账请求合并记账，结果与逐张记账相同，失败的凭证只影响它自己的调用者
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+public class GroupCommitPosterIntegrationTest {
+
+    private static final String ACCOUNT_SET_ID = GlobalConst.Current_AccountSet_Id_Test;
+    private static final int CALLERS = 16;
+
+    @Autowired
+    private GroupCommitPoster groupCommitPoster;
+
+    @Autowired
+    private AccountTreeCache accountTreeCache;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private Account cash;      // 1001，借方，有一个下级
+    private Account petty;     // 10010001，借方
+    private Account payable;   // 2202，贷方
+    private AccountingPeriod period;
+    private ExecutorService callers;
+
+    @BeforeEach
+    void setUp() {
+        Query bySet = Query.query(Criteria.where("accountSetId").is(ACCOUNT_SET_ID));
+        mongoTemplate.remove(bySet, Account.class);
+        mongoTemplate.remove(bySet, AccountingPeriod.class);
+        mongoTemplate.remove(bySet, BalanceCheckpoint.class);
+        mongoTemplate.remove(bySet, Transaction.class);
+        mongoTemplate.remove(bySet, JournalEntry.class);
+        mongoTemplate.remove(bySet, AccountUsage.class);
+        for (String cacheName : List.of("accounts", "accountingPeriods")) {
+            cacheManager.getCache(cacheName).clear();
+        }
+
+        cash = insertAccount("1001", "库存现金", null, 1, false, AccountingDirection.DEBIT);
+        petty = insertAccount("10010001", "备用金", cash.getId(), 2, true, AccountingDirection.DEBIT);
+        payable = insertAccount("2202", "应付账款", null, 1, true, AccountingDirection.CREDIT);
+        accountTreeCache.markChanged(ACCOUNT_SET_ID);
+
+        period = new AccountingPeriod();
+        period.setAccountSetId(ACCOUNT_SET_ID);
+        period.setStartDate(LocalDate.of(2024, 1, 1));
+        period.setEndDate(LocalDate.of(2024, 1, 31));
+        period = mongoTemplate.insert(period);
+
+        callers = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        callers.shutdownNow();
+        callers.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testConcurrentPostsAreAllPosted() throws Exception {
+        List<JournalEntryView> views = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            views.add(entry("10", "10"));
+        }
+
+        List<Future<JournalEntryView>> results = postConcurrently(views);
+
+        Set<String> entryIds = new HashSet<>();
+        for (Future<JournalEntryView> result : results) {
+            JournalEntryView posted = result.get(30, TimeUnit.SECONDS);
+            assertEquals(2, posted.getJournalEntry().getTransactionIds().size());
+            entryIds.add(posted.getJournalEntry().getId());
+        }
+        assertEquals(CALLERS, entryIds.size());
+        assertEquals(2L * CALLERS, mongoTemplate.count(Query.query(Criteria.where("accountSetId").is(ACCOUNT_SET_ID)),
+                Transaction.class));
+        Map<String, AccountAmountHolder> holders = reloadHolders();
+        assertBalance("160", holders.get(petty.getId()));
+        assertBalance("160", holders.get(cash.getId()));
+        assertBalance("160", holders.get(payable.getId()));
+    }
+
+    @Test
+    void testUnbalancedEntryFailsOnlyItsCaller() throws Exception {
+        List<JournalEntryView> views = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            views.add(i == 3 ? entry("10", "5") : entry("10", "10"));
+        }
+
+        List<Future<JournalEntryView>> results = postConcurrently(views);
+
+        for (int i = 0; i < CALLERS; i++) {
+            if (i == 3) {
+                ExecutionException exception = assertThrows(ExecutionException.class,
+                        () -> results.get(3).get(30, TimeUnit.SECONDS));
+                ResponseStatusException cause = assertInstanceOf(ResponseStatusException.class, exception.getCause());
+                assertEquals(HttpStatus.BAD_REQUEST, cause.getStatusCode());
+            } else {
+                assertNotNull(results.get(i).get(30, TimeUnit.SECONDS).getJournalEntry().getId());
+            }
+        }
+        // 其余凭证照常记账
+        Map<String, AccountAmountHolder> holders = reloadHolders();
+        assertBalance("150", holders.get(petty.getId()));
+        assertBalance("150", holders.get(payable.getId()));
+        assertEquals(CALLERS - 1, mongoTemplate.count(
+                Query.query(Criteria.where("accountSetId").is(ACCOUNT_SET_ID)), JournalEntry.class));
+    }
+
+    // all callers start together so that they land in the same window
+    private List<Future<JournalEntryView>> postConcurrently(List<JournalEntryView> views) {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<JournalEntryView>> results = new ArrayList<>();
+        for (JournalEntryView view : views) {
+            results.add(callers.submit(() -> {
+                start.await();
+                return groupCommitPoster.post(ACCOUNT_SET_ID, view);
+            }));
+        }
+        start.countDown();
+        return results;
+    }
+
+    // 借备用金、贷应付账款的凭证
+    private JournalEntryView entry(String debit, String credit) {
+        JournalEntry journalEntry = new JournalEntry();
+        journalEntry.setAccountSetId(ACCOUNT_SET_ID);
+        journalEntry.setModifiedDate(LocalDate.of(2024, 1, 10));
+        List<Transaction> lines = new ArrayList<>();
+        lines.add(line(petty.getId(), debit, "0"));
+        lines.add(line(payable.getId(), "0", credit));
+        return new JournalEntryView(journalEntry, lines);
+    }
+
+    private static Transaction line(String accountId, String debit, String credit) {
+        Transaction transaction = new Transaction();
+        transaction.setAccountId(accountId);
+        transaction.setDescription("组提交测试");
+        transaction.setDebit(new BigDecimal(debit));
+        transaction.setCredit(new BigDecimal(credit));
+        return transaction;
+    }
+
+    private Account insertAccount(String code, String name, String parentId, int level, boolean leaf,
+                                  AccountingDirection direction) {
+        AccountType type = direction == AccountingDirection.DEBIT ? AccountType.CURRENT_ASSET
+                : AccountType.CURRENT_LIABILITY;
+        Account account = new Account(code, name, ACCOUNT_SET_ID, type, parentId, direction, AccountState.ACTIVE);
+        account.setLevel(level);
+        account.setLeaf(leaf);
+        return mongoTemplate.insert(account);
+    }
+
+    private Map<String, AccountAmountHolder> reloadHolders() {
+        return mongoTemplate.findById(period.getId(), AccountingPeriod.class).getAmountHolders();
+    }
+
+    private static void assertBalance(String expected, AccountAmountHolder holder) {
+        assertNotNull(holder);
+        assertEquals(0, new BigDecimal(expected).compareTo(holder.getBalance()));
+    }
+}
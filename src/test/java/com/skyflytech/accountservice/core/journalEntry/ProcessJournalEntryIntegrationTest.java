@@ -0,0 +1,264 @@
+package com.skyflytech.accountservice.core.journalEntry;
+
+import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountState;
+import com.skyflytech.accountservice.core.account.model.AccountType;
+import com.skyflytech.accountservice.core.account.model.AccountUsage;
+import com.skyflytech.accountservice.core.account.model.AccountingDirection;
+import com.skyflytech.accountservice.core.account.service.AccountTreeCache;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
+import com.skyflytech.accountservice.core.accountingPeriod.model.BalanceCheckpoint;
+import com.skyflytech.accountservice.core.journalEntry.model.JournalEntry;
+import com.skyflytech.accountservice.core.journalEntry.model.JournalEntryView;
+import com.skyflytech.accountservice.core.journalEntry.service.ProcessJournalEntry;
+import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import com.skyflytech.accountservice.global.GlobalConst;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cache.CacheManager;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 记账后交易、凭证和各会计期间金额的变化（默认的累计模式：记账日期所在及之后的期间都累加，上级金额包含下级）
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+public class ProcessJournalEntryIntegrationTest {
+
+    // 没有登录信息时当前账套就是测试账套
+    private static final String ACCOUNT_SET_ID = GlobalConst.Current_AccountSet_Id_Test;
+
+    @Autowired
+    private ProcessJournalEntry processJournalEntry;
+
+    @Autowired
+    private AccountTreeCache accountTreeCache;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private Account cash;      // 1001，借方，有一个下级
+    private Account petty;     // 10010001，借方
+    private Account payable;   // 2202，贷方
+    private AccountingPeriod january;
+    private AccountingPeriod february;
+
+    @BeforeEach
+    void setUp() {
+        Query bySet = Query.query(Criteria.where("accountSetId").is(ACCOUNT_SET_ID));
+        mongoTemplate.remove(bySet, Account.class);
+        mongoTemplate.remove(bySet, AccountingPeriod.class);
+        mongoTemplate.remove(bySet, BalanceCheckpoint.class);
+        mongoTemplate.remove(bySet, Transaction.class);
+        mongoTemplate.remove(bySet, JournalEntry.class);
+        mongoTemplate.remove(bySet, AccountUsage.class);
+        for (String cacheName : List.of("accounts", "accountingPeriods")) {
+            cacheManager.getCache(cacheName).clear();
+        }
+
+        cash = insertAccount("1001", "库存现金", null, 1, false, AccountingDirection.DEBIT);
+        petty = insertAccount("10010001", "备用金", cash.getId(), 2, true, AccountingDirection.DEBIT);
+        payable = insertAccount("2202", "应付账款", null, 1, true, AccountingDirection.CREDIT);
+        accountTreeCache.markChanged(ACCOUNT_SET_ID);
+
+        january = insertPeriod(LocalDate.of(2024, 1, 1), LocalDate.of(2024, 1, 31));
+        february = insertPeriod(LocalDate.of(2024, 2, 1), LocalDate.of(2024, 2, 29));
+    }
+
+    @Test
+    void testSingleEntryUpdatesItsPeriodAndLaterOnes() {
+        JournalEntryView posted = processJournalEntry.processJournalEntryView(entry(LocalDate.of(2024, 2, 10), "100"));
+
+        assertNotNull(posted.getJournalEntry().getId());
+        assertEquals(2, posted.getJournalEntry().getTransactionIds().size());
+        // 记账日期之前的期间不变
+        assertFalse(reloadHolders(january).containsKey(petty.getId()));
+        Map<String, AccountAmountHolder> holders = reloadHolders(february);
+        assertAmounts("100", "0", "100", holders.get(petty.getId()));
+        assertAmounts("100", "0", "100", holders.get(cash.getId()));
+        assertAmounts("0", "100", "100", holders.get(payable.getId()));
+    }
+
+    @Test
+    void testEditMovesEntryToAnotherDate() {
+        JournalEntryView posted = processJournalEntry.processJournalEntryView(entry(LocalDate.of(2024, 1, 10), "100"));
+        posted.getJournalEntry().setModifiedDate(LocalDate.of(2024, 2, 5));
+
+        processJournalEntry.processJournalEntryView(posted);
+
+        // 旧分录按原日期扣减，新分录按新日期累加
+        Map<String, AccountAmountHolder> januaryHolders = reloadHolders(january);
+        assertAmounts("0", "0", "0", januaryHolders.get(petty.getId()));
+        assertAmounts("0", "0", "0", januaryHolders.get(cash.getId()));
+        assertAmounts("0", "0", "0", januaryHolders.get(payable.getId()));
+        Map<String, AccountAmountHolder> februaryHolders = reloadHolders(february);
+        assertAmounts("100", "0", "100", februaryHolders.get(petty.getId()));
+        assertAmounts("0", "100", "100", februaryHolders.get(payable.getId()));
+    }
+
+    @Test
+    void testEditRemovesALine() {
+        JournalEntry journalEntry = new JournalEntry();
+        journalEntry.setAccountSetId(ACCOUNT_SET_ID);
+        journalEntry.setModifiedDate(LocalDate.of(2024, 1, 10));
+        List<Transaction> lines = new ArrayList<>();
+        lines.add(line(petty.getId(), "60", "0"));
+        lines.add(line(petty.getId(), "40", "0"));
+        lines.add(line(payable.getId(), "0", "100"));
+        JournalEntryView posted = processJournalEntry.processJournalEntryView(new JournalEntryView(journalEntry, lines));
+
+        // 去掉40的那一行，贷方改为60
+        String removedId = posted.getTransactions().get(1).getId();
+        List<Transaction> edited = new ArrayList<>(posted.getTransactions());
+        edited.remove(1);
+        edited.get(1).setCredit(new BigDecimal("60"));
+        posted.setTransactions(edited);
+        processJournalEntry.processJournalEntryView(posted);
+
+        assertNull(mongoTemplate.findById(removedId, Transaction.class));
+        assertEquals(2, mongoTemplate.count(Query.query(Criteria.where("accountSetId").is(ACCOUNT_SET_ID)),
+                Transaction.class));
+        Map<String, AccountAmountHolder> holders = reloadHolders(february);
+        assertAmounts("60", "0", "60", holders.get(petty.getId()));
+        assertAmounts("60", "0", "60", holders.get(cash.getId()));
+        assertAmounts("0", "60", "60", holders.get(payable.getId()));
+    }
+
+    @Test
+    void testBatchPostsAllEntriesInOnePass() {
+        List<JournalEntryView> posted = processJournalEntry.processJournalEntryViews(List.of(
+                entry(LocalDate.of(2024, 1, 10), "100"),
+                entry(LocalDate.of(2024, 1, 20), "50")));
+
+        assertEquals(2, posted.size());
+        for (JournalEntryView view : posted) {
+            assertNotNull(view.getJournalEntry().getId());
+            assertEquals(2, view.getJournalEntry().getTransactionIds().size());
+        }
+        assertEquals(4, mongoTemplate.count(Query.query(Criteria.where("accountSetId").is(ACCOUNT_SET_ID)),
+                Transaction.class));
+        for (AccountingPeriod period : List.of(january, february)) {
+            Map<String, AccountAmountHolder> holders = reloadHolders(period);
+            assertAmounts("150", "0", "150", holders.get(petty.getId()));
+            assertAmounts("150", "0", "150", holders.get(cash.getId()));
+            assertAmounts("0", "150", "150", holders.get(payable.getId()));
+        }
+    }
+
+    @Test
+    void testBatchEditsAndAddsEntries() {
+        JournalEntryView first = processJournalEntry.processJournalEntryView(entry(LocalDate.of(2024, 1, 10), "100"));
+        first.getTransactions().forEach(t -> {
+            t.setDebit(t.getDebit().signum() == 0 ? BigDecimal.ZERO : new BigDecimal("80"));
+            t.setCredit(t.getCredit().signum() == 0 ? BigDecimal.ZERO : new BigDecimal("80"));
+        });
+
+        processJournalEntry.processJournalEntryViews(List.of(first, entry(LocalDate.of(2024, 1, 20), "50")));
+
+        // 修改的凭证先减去旧金额再加上新金额
+        Map<String, AccountAmountHolder> holders = reloadHolders(february);
+        assertAmounts("130", "0", "130", holders.get(petty.getId()));
+        assertAmounts("0", "130", "130", holders.get(payable.getId()));
+        assertEquals(4, mongoTemplate.count(Query.query(Criteria.where("accountSetId").is(ACCOUNT_SET_ID)),
+                Transaction.class));
+    }
+
+    @Test
+    void testTransactionInTwoEntriesOfABatchIsRejected() {
+        JournalEntryView first = processJournalEntry.processJournalEntryView(entry(LocalDate.of(2024, 1, 10), "100"));
+        JournalEntryView second = processJournalEntry.processJournalEntryView(entry(LocalDate.of(2024, 1, 20), "50"));
+        // 第二张凭证的借方分录换成第一张凭证的同一笔交易
+        Transaction shared = first.getTransactions().stream().filter(t -> t.getDebit().signum() > 0).findFirst().get();
+        List<Transaction> secondLines = new ArrayList<>(second.getTransactions());
+        secondLines.removeIf(t -> t.getDebit().signum() > 0);
+        Transaction copy = line(shared.getAccountId(), "50", "0");
+        copy.setId(shared.getId());
+        secondLines.add(copy);
+        second.setTransactions(secondLines);
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> processJournalEntry.processJournalEntryViews(List.of(first, second)));
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatusCode());
+        assertAmounts("150", "0", "150", reloadHolders(february).get(petty.getId()));
+    }
+
+    @Test
+    void testSameLineTwiceInAnEntryIsRejected() {
+        JournalEntryView first = processJournalEntry.processJournalEntryView(entry(LocalDate.of(2024, 1, 10), "100"));
+        List<Transaction> lines = new ArrayList<>(first.getTransactions());
+        lines.addAll(first.getTransactions());
+        first.setTransactions(lines);
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> processJournalEntry.processJournalEntryViews(List.of(first)));
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatusCode());
+    }
+
+    // 借备用金、贷应付账款的凭证
+    private JournalEntryView entry(LocalDate date, String amount) {
+        JournalEntry journalEntry = new JournalEntry();
+        journalEntry.setAccountSetId(ACCOUNT_SET_ID);
+        journalEntry.setModifiedDate(date);
+        List<Transaction> lines = new ArrayList<>();
+        lines.add(line(petty.getId(), amount, "0"));
+        lines.add(line(payable.getId(), "0", amount));
+        return new JournalEntryView(journalEntry, lines);
+    }
+
+    private static Transaction line(String accountId, String debit, String credit) {
+        Transaction transaction = new Transaction();
+        transaction.setAccountId(accountId);
+        transaction.setDescription("测试分录");
+        transaction.setDebit(new BigDecimal(debit));
+        transaction.setCredit(new BigDecimal(credit));
+        return transaction;
+    }
+
+    private Account insertAccount(String code, String name, String parentId, int level, boolean leaf,
+                                  AccountingDirection direction) {
+        AccountType type = direction == AccountingDirection.DEBIT ? AccountType.CURRENT_ASSET
+                : AccountType.CURRENT_LIABILITY;
+        Account account = new Account(code, name, ACCOUNT_SET_ID, type, parentId, direction, AccountState.ACTIVE);
+        account.setLevel(level);
+        account.setLeaf(leaf);
+        return mongoTemplate.insert(account);
+    }
+
+    private AccountingPeriod insertPeriod(LocalDate startDate, LocalDate endDate) {
+        AccountingPeriod period = new AccountingPeriod();
+        period.setAccountSetId(ACCOUNT_SET_ID);
+        period.setStartDate(startDate);
+        period.setEndDate(endDate);
+        return mongoTemplate.insert(period);
+    }
+
+    private Map<String, AccountAmountHolder> reloadHolders(AccountingPeriod period) {
+        return mongoTemplate.findById(period.getId(), AccountingPeriod.class).getAmountHolders();
+    }
+
+    private static void assertAmounts(String debit, String credit, String balance, AccountAmountHolder holder) {
+        assertNotNull(holder);
+        assertEquals(0, new BigDecimal(debit).compareTo(holder.getTotalDebit()));
+        assertEquals(0, new BigDecimal(credit).compareTo(holder.getTotalCredit()));
+        assertEquals(0, new BigDecimal(balance).compareTo(holder.getBalance()));
+    }
+}
@@ -0,0 +1,133 @@
+package com.skyflytech.accountservice.core.journalEntry.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PostingWriteAheadLogTest {
+
+    // 每段正好放下两条10字节内容的记录
+    private static final int SEGMENT_SIZE = 64;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testReplayAfterReopen() throws IOException {
+        String logId;
+        try (PostingWriteAheadLog log = new PostingWriteAheadLog(directory, 4096, false)) {
+            assertTrue(log.open().isEmpty());
+            assertEquals(1, log.append(bytes("first")));
+            assertEquals(2, log.append(bytes("second")));
+            logId = log.getLogId();
+        }
+
+        try (PostingWriteAheadLog log = new PostingWriteAheadLog(directory, 4096, false)) {
+            List<PostingWriteAheadLog.Record> records = log.open();
+            assertEquals(logId, log.getLogId());
+            assertEquals(List.of(1L, 2L), records.stream().map(PostingWriteAheadLog.Record::seq).toList());
+            assertEquals("first", text(records.get(0)));
+            assertEquals("second", text(records.get(1)));
+            // 重新打开后序号接着增加
+            assertEquals(2, log.getLastSeq());
+            assertEquals(3, log.append(bytes("third")));
+        }
+    }
+
+    @Test
+    void testCorruptRecordEndsTheSegment() throws IOException {
+        try (PostingWriteAheadLog log = new PostingWriteAheadLog(directory, 4096, false)) {
+            log.open();
+            log.append(bytes("one"));
+            log.append(bytes("two"));
+        }
+        // 第二条记录从19开始（16字节头加3字节内容），改掉它内容的第一个字节
+        Path segment = segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'x'}), 19 + 16);
+        }
+
+        try (PostingWriteAheadLog log = new PostingWriteAheadLog(directory, 4096, false)) {
+            List<PostingWriteAheadLog.Record> records = log.open();
+            assertEquals(1, records.size());
+            assertEquals("one", text(records.get(0)));
+        }
+    }
+
+    @Test
+    void testSegmentsRollAndAppliedOnesAreDeleted() throws IOException {
+        try (PostingWriteAheadLog log = new PostingWriteAheadLog(directory, SEGMENT_SIZE, false)) {
+            log.open();
+            for (int i = 1; i <= 5; i++) {
+                log.append(bytes("record-" + (char) ('a' + i) + "..")); // 10 bytes
+            }
+            assertEquals(3, segments().size());
+
+            // 只删除全部记录都已处理的段
+            log.deleteSegmentsUpTo(3);
+            assertEquals(2, segments().size());
+            log.deleteSegmentsUpTo(2);
+            assertEquals(2, segments().size());
+            // 正在写的段不删除
+            log.deleteSegmentsUpTo(5);
+            assertEquals(1, segments().size());
+        }
+
+        try (PostingWriteAheadLog log = new PostingWriteAheadLog(directory, SEGMENT_SIZE, false)) {
+            List<PostingWriteAheadLog.Record> records = log.open();
+            assertEquals(List.of(5L), records.stream().map(PostingWriteAheadLog.Record::seq).toList());
+            // 旧段都删掉后序号也不会重复
+            assertEquals(6, log.append(bytes("record-f..")));
+        }
+    }
+
+    @Test
+    void testSequenceContinuesAfterAllSegmentsAreApplied() throws IOException {
+        try (PostingWriteAheadLog log = new PostingWriteAheadLog(directory, SEGMENT_SIZE, false)) {
+            log.open();
+            log.append(bytes("record-a.."));
+            log.append(bytes("record-b.."));
+        }
+        try (PostingWriteAheadLog log = new PostingWriteAheadLog(directory, SEGMENT_SIZE, false)) {
+            assertEquals(2, log.open().size());
+            log.deleteSegmentsUpTo(2);
+        }
+        try (PostingWriteAheadLog log = new PostingWriteAheadLog(directory, SEGMENT_SIZE, false)) {
+            assertTrue(log.open().isEmpty());
+            assertEquals(3, log.append(bytes("record-c..")));
+        }
+    }
+
+    @Test
+    void testTooLargeRecordIsRejected() throws IOException {
+        try (PostingWriteAheadLog log = new PostingWriteAheadLog(directory, SEGMENT_SIZE, false)) {
+            log.open();
+            assertThrows(IllegalArgumentException.class, () -> log.append(new byte[SEGMENT_SIZE]));
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("wal-")).sorted().toList();
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(PostingWriteAheadLog.Record record) {
+        return new String(record.payload(), StandardCharsets.UTF_8);
+    }
+}
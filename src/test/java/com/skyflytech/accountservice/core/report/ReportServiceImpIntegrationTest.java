@@ -0,0 +1,183 @@
+package com.skyflytech.accountservice.core.report;
+
+import com.skyflytech.accountservice.core.account.model.Account;
+import com.skyflytech.accountservice.core.account.model.AccountState;
+import com.skyflytech.accountservice.core.account.model.AccountType;
+import com.skyflytech.accountservice.core.account.model.AccountingDirection;
+import com.skyflytech.accountservice.core.account.service.AccountTreeCache;
+import com.skyflytech.accountservice.core.accountSet.model.AccountSet;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountAmountHolder;
+import com.skyflytech.accountservice.core.accountingPeriod.model.AccountingPeriod;
+import com.skyflytech.accountservice.core.accountingPeriod.model.BalanceCheckpoint;
+import com.skyflytech.accountservice.core.report.model.Ledger;
+import com.skyflytech.accountservice.core.report.model.LedgerLine;
+import com.skyflytech.accountservice.core.report.model.LedgerMonth;
+import com.skyflytech.accountservice.core.report.service.ReportService;
+import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import com.skyflytech.accountservice.global.GlobalConst;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cache.CacheManager;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 明细账和总账：期初余额、逐笔余额、每月合计和月末余额，上级科目包含下级的交易
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+public class ReportServiceImpIntegrationTest {
+
+    private static final String ACCOUNT_SET_ID = GlobalConst.Current_AccountSet_Id_Test;
+    private static final LocalDate START = LocalDate.of(2024, 1, 1);
+    private static final LocalDate END = LocalDate.of(2024, 3, 31);
+
+    @Autowired
+    private ReportService reportService;
+
+    @Autowired
+    private AccountTreeCache accountTreeCache;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private Account cash;      // 1001，期初100，有两个下级
+    private Account petty;     // 10010001，期初100
+    private Account deposit;   // 10010002
+
+    @BeforeEach
+    void setUp() {
+        Query bySet = Query.query(Criteria.where("accountSetId").is(ACCOUNT_SET_ID));
+        mongoTemplate.remove(bySet, Account.class);
+        mongoTemplate.remove(bySet, AccountingPeriod.class);
+        mongoTemplate.remove(bySet, BalanceCheckpoint.class);
+        mongoTemplate.remove(bySet, Transaction.class);
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(ACCOUNT_SET_ID)), AccountSet.class);
+        for (String cacheName : List.of("accounts", "accountingPeriods", "accountSets")) {
+            cacheManager.getCache(cacheName).clear();
+        }
+
+        cash = insertAccount("1001", "库存现金", null, 1, false);
+        petty = insertAccount("10010001", "备用金", cash.getId(), 2, true);
+        deposit = insertAccount("10010002", "零用现金", cash.getId(), 2, true);
+        accountTreeCache.markChanged(ACCOUNT_SET_ID);
+
+        AccountSet accountSet = new AccountSet();
+        accountSet.setId(ACCOUNT_SET_ID);
+        accountSet.setName("账页测试账套");
+        accountSet.setAccountingPeriodStartDate(LocalDate.of(2023, 12, 1));
+        accountSet.getInitialAccountBalance().put(cash.getId(), new BigDecimal("100"));
+        accountSet.getInitialAccountBalance().put(petty.getId(), new BigDecimal("100"));
+        mongoTemplate.save(accountSet);
+
+        insertTransaction(petty, LocalDate.of(2023, 12, 20), "10", "0");
+        insertTransaction(petty, LocalDate.of(2024, 1, 5), "50", "0");
+        insertTransaction(petty, LocalDate.of(2024, 1, 5), "0", "20");
+        insertTransaction(deposit, LocalDate.of(2024, 1, 15), "7", "0");
+        insertTransaction(petty, LocalDate.of(2024, 3, 10), "5", "0");
+    }
+
+    @Test
+    void testDetailLedgerRunningBalances() {
+        Ledger ledger = reportService.getLedger(ACCOUNT_SET_ID, petty.getId(), START, END, false, 0, 2);
+
+        // 没有之前的期间时，期初余额加上开始日期前的交易
+        assertAmount("10", ledger.getPreviousTotalDebit());
+        assertAmount("110", ledger.getOpeningBalance());
+        assertEquals(3, ledger.getTotalLines());
+        List<LedgerLine> lines = ledger.getTransactions();
+        assertEquals(2, lines.size());
+        assertAmount("160", lines.get(0).getBalance());
+        assertAmount("140", lines.get(1).getBalance());
+
+        List<LedgerMonth> months = ledger.getMonths();
+        assertEquals(3, months.size());
+        assertMonth("50", "20", "140", months.get(0));
+        // 没有交易的月份沿用上月余额
+        assertMonth("0", "0", "140", months.get(1));
+        assertMonth("5", "0", "145", months.get(2));
+        assertAmount("55", ledger.getTotalDebit());
+        assertAmount("20", ledger.getTotalCredit());
+        assertAmount("145", ledger.getClosingBalance());
+
+        Ledger secondPage = reportService.getLedger(ACCOUNT_SET_ID, petty.getId(), START, END, false, 1, 2);
+        assertEquals(1, secondPage.getTransactions().size());
+        assertAmount("145", secondPage.getTransactions().get(0).getBalance());
+        assertAmount("145", secondPage.getClosingBalance());
+    }
+
+    @Test
+    void testSummaryLedgerIncludesDescendants() {
+        Ledger ledger = reportService.getLedger(ACCOUNT_SET_ID, cash.getId(), START, END, true, 0, 20);
+
+        assertTrue(ledger.getTransactions().isEmpty());
+        assertEquals(4, ledger.getTotalLines());
+        assertAmount("110", ledger.getOpeningBalance());
+        List<LedgerMonth> months = ledger.getMonths();
+        assertMonth("57", "20", "147", months.get(0));
+        assertMonth("0", "0", "147", months.get(1));
+        assertMonth("5", "0", "152", months.get(2));
+        assertAmount("152", ledger.getClosingBalance());
+    }
+
+    @Test
+    void testOpeningComesFromThePeriodBeforeStart() {
+        AccountingPeriod december = new AccountingPeriod();
+        december.setAccountSetId(ACCOUNT_SET_ID);
+        december.setName("2023年12月");
+        december.setStartDate(LocalDate.of(2023, 12, 1));
+        december.setEndDate(LocalDate.of(2023, 12, 31));
+        december.getAmountHolders().put(petty.getId(),
+                new AccountAmountHolder(new BigDecimal("110"), BigDecimal.ZERO, new BigDecimal("110")));
+        mongoTemplate.insert(december);
+
+        Ledger ledger = reportService.getLedger(ACCOUNT_SET_ID, petty.getId(), START, END, false, 0, 20);
+
+        // 期间内的交易已经含在期间金额中，不再重复累加
+        assertAmount("110", ledger.getPreviousTotalDebit());
+        assertAmount("110", ledger.getOpeningBalance());
+        assertEquals(3, ledger.getTotalLines());
+        assertAmount("145", ledger.getClosingBalance());
+    }
+
+    private Account insertAccount(String code, String name, String parentId, int level, boolean leaf) {
+        Account account = new Account(code, name, ACCOUNT_SET_ID, AccountType.CURRENT_ASSET, parentId,
+                AccountingDirection.DEBIT, AccountState.ACTIVE);
+        account.setLevel(level);
+        account.setLeaf(leaf);
+        return mongoTemplate.insert(account);
+    }
+
+    private void insertTransaction(Account account, LocalDate date, String debit, String credit) {
+        Transaction transaction = new Transaction();
+        transaction.setAccountSetId(ACCOUNT_SET_ID);
+        transaction.setAccountId(account.getId());
+        transaction.setModifiedDate(date);
+        transaction.setDebit(new BigDecimal(debit));
+        transaction.setCredit(new BigDecimal(credit));
+        mongoTemplate.insert(transaction);
+    }
+
+    private static void assertMonth(String debit, String credit, String balance, LedgerMonth month) {
+        assertAmount(debit, month.getDebit());
+        assertAmount(credit, month.getCredit());
+        assertAmount(balance, month.getBalance());
+    }
+
+    private static void assertAmount(String expected, BigDecimal actual) {
+        assertEquals(0, new BigDecimal(expected).compareTo(actual));
+    }
+}
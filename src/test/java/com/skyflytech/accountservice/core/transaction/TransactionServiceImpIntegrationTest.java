@@ -0,0 +1,107 @@
+package com.skyflytech.accountservice.core.transaction;
+
+import com.skyflytech.accountservice.core.transaction.model.Transaction;
+import com.skyflytech.accountservice.core.transaction.model.TransactionCursorPage;
+import com.skyflytech.accountservice.core.transaction.service.imp.TransactionServiceImp;
+import com.skyflytech.accountservice.global.GlobalConst;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 按游标翻页查找交易：按日期和ID倒序，同一天的交易不会跨页重复或遗漏
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+public class TransactionServiceImpIntegrationTest {
+
+    private static final String ACCOUNT_SET_ID = GlobalConst.Current_AccountSet_Id_Test;
+    private static final LocalDate START = LocalDate.of(2024, 1, 1);
+    private static final LocalDate END = LocalDate.of(2024, 1, 31);
+
+    @Autowired
+    private TransactionServiceImp transactionServiceImp;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private List<Transaction> inPeriod;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate.remove(Query.query(Criteria.where("accountSetId").is(ACCOUNT_SET_ID)), Transaction.class);
+        // 两个账户，有几笔在同一天，另有一笔在期间之外
+        inPeriod = new ArrayList<>();
+        inPeriod.add(insertTransaction("A", LocalDate.of(2024, 1, 5)));
+        inPeriod.add(insertTransaction("B", LocalDate.of(2024, 1, 5)));
+        inPeriod.add(insertTransaction("A", LocalDate.of(2024, 1, 5)));
+        inPeriod.add(insertTransaction("B", LocalDate.of(2024, 1, 20)));
+        inPeriod.add(insertTransaction("A", LocalDate.of(2024, 1, 31)));
+        insertTransaction("A", LocalDate.of(2024, 2, 1));
+        inPeriod.sort(Comparator.comparing(Transaction::getModifiedDate).thenComparing(Transaction::getId).reversed());
+    }
+
+    @Test
+    void testPagesCoverThePeriodInOrder() {
+        List<String> seen = new ArrayList<>();
+        String after = null;
+        int pages = 0;
+        do {
+            TransactionCursorPage page = transactionServiceImp.findTransactionsByAccountAndPeriodAfter(
+                    List.of("A", "B"), START, END, after, 2, pages == 0);
+            if (pages == 0) {
+                assertEquals(5L, page.getTotal());
+            } else {
+                assertNull(page.getTotal());
+            }
+            assertTrue(page.getContent().size() <= 2);
+            page.getContent().forEach(t -> seen.add(t.getId()));
+            after = page.getNext();
+            pages++;
+        } while (after != null);
+
+        assertEquals(3, pages);
+        assertEquals(inPeriod.stream().map(Transaction::getId).toList(), seen);
+    }
+
+    @Test
+    void testExactlyOnePageHasNoNext() {
+        TransactionCursorPage page = transactionServiceImp.findTransactionsByAccountAndPeriodAfter(
+                List.of("A", "B"), START, END, null, 5, false);
+        assertEquals(5, page.getContent().size());
+        assertNull(page.getNext());
+    }
+
+    @Test
+    void testInvalidCursorIsRejected() {
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> transactionServiceImp.findTransactionsByAccountAndPeriodAfter(
+                        List.of("A", "B"), START, END, "not-a-cursor", 2, false));
+        assertEquals(HttpStatus.BAD_REQUEST, exception.getStatusCode());
+    }
+
+    private Transaction insertTransaction(String accountId, LocalDate date) {
+        Transaction transaction = new Transaction();
+        transaction.setAccountSetId(ACCOUNT_SET_ID);
+        transaction.setAccountId(accountId);
+        transaction.setModifiedDate(date);
+        transaction.setDebit(BigDecimal.TEN);
+        transaction.setCredit(BigDecimal.ZERO);
+        return mongoTemplate.insert(transaction);
+    }
+}
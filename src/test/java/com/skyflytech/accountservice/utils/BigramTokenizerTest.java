@@ -0,0 +1,48 @@
+package com.skyflytech.accountservice.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BigramTokenizerTest {
+
+    @Test
+    void testIndexTokensSplitsHanIntoUnigramsAndBigrams() {
+        assertEquals("银 银行 行 行存 存 存款 款", BigramTokenizer.indexTokens("银行存款"));
+    }
+
+    @Test
+    void testIndexTokensKeepsOtherRunsAsWords() {
+        // 字母数字小写后整体作为一个词，汉字与字母相邻时也分开
+        assertEquals("pay 工 工资 资 2024", BigramTokenizer.indexTokens("Pay 工资-2024"));
+        assertEquals("abc 工 工资 资", BigramTokenizer.indexTokens("ABC工资"));
+        // 重复的词只保留一次
+        assertEquals("工 工资 资", BigramTokenizer.indexTokens("工资，工资"));
+    }
+
+    @Test
+    void testIndexTokensOfEmptyText() {
+        assertNull(BigramTokenizer.indexTokens(null));
+        assertNull(BigramTokenizer.indexTokens(""));
+        assertNull(BigramTokenizer.indexTokens("，。 -"));
+    }
+
+    @Test
+    void testQueryTokens() {
+        assertEquals(List.of("银行", "行存", "存款"), BigramTokenizer.queryTokens("银行存款"));
+        // 单个汉字只能按单字查询
+        assertEquals(List.of("银"), BigramTokenizer.queryTokens("银"));
+        assertEquals(List.of("pay", "工资"), BigramTokenizer.queryTokens("Pay工资"));
+        assertTrue(BigramTokenizer.queryTokens(null).isEmpty());
+    }
+
+    @Test
+    void testQueryTokensAreContainedInIndexTokens() {
+        List<String> indexed = List.of(BigramTokenizer.indexTokens("支付3月份办公室租金").split(" "));
+        assertTrue(indexed.containsAll(BigramTokenizer.queryTokens("办公室租金")));
+        assertTrue(indexed.containsAll(BigramTokenizer.queryTokens("3月")));
+        assertFalse(indexed.containsAll(BigramTokenizer.queryTokens("公租")));
+    }
+}
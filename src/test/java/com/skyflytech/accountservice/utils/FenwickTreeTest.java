@@ -0,0 +1,73 @@
+package com.skyflytech.accountservice.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FenwickTreeTest {
+
+    @Test
+    void testPrefixAndRangeSums() {
+        FenwickTree tree = new FenwickTree(8);
+        tree.add(0, 5);
+        tree.add(3, 2);
+        tree.add(3, 4);
+        tree.add(7, -1);
+
+        assertEquals(5, tree.prefixSum(0));
+        assertEquals(5, tree.prefixSum(2));
+        assertEquals(11, tree.prefixSum(3));
+        assertEquals(10, tree.prefixSum(7));
+        assertEquals(6, tree.rangeSum(1, 3));
+        assertEquals(-1, tree.rangeSum(4, 7));
+        // 空区间和负下标
+        assertEquals(0, tree.prefixSum(-1));
+        assertEquals(0, tree.rangeSum(5, 2));
+    }
+
+    @Test
+    void testGrowKeepsExistingSums() {
+        FenwickTree tree = new FenwickTree(3);
+        assertEquals(4, tree.capacity());
+        tree.add(0, 5);
+        tree.add(3, 2);
+
+        // 超出容量时翻倍，原来的和不变
+        tree.add(10, 7);
+        assertEquals(16, tree.capacity());
+        assertEquals(7, tree.prefixSum(3));
+        assertEquals(7, tree.prefixSum(9));
+        assertEquals(14, tree.prefixSum(10));
+        assertEquals(7, tree.rangeSum(4, 10));
+        // 超出容量的位置视为0
+        assertEquals(14, tree.prefixSum(1000));
+    }
+
+    @Test
+    void testMatchesPlainArray() {
+        Random random = new Random(42);
+        FenwickTree tree = new FenwickTree(1);
+        long[] values = new long[300];
+        for (int n = 0; n < 2000; n++) {
+            int index = random.nextInt(values.length);
+            long delta = random.nextInt(2001) - 1000;
+            tree.add(index, delta);
+            values[index] += delta;
+        }
+        for (int from = 0; from < values.length; from += 7) {
+            long sum = 0;
+            for (int to = from; to < values.length; to++) {
+                sum += values[to];
+                assertEquals(sum, tree.rangeSum(from, to));
+            }
+        }
+    }
+
+    @Test
+    void testNegativeIndexIsRejected() {
+        FenwickTree tree = new FenwickTree(4);
+        assertThrows(IndexOutOfBoundsException.class, () -> tree.add(-1, 1));
+    }
+}